@@ -0,0 +1,115 @@
+package com.aepl.atcu;
+
+/**
+ * AnsiStripper: streaming state machine that removes ANSI/VT escape sequences
+ * from a byte stream.
+ *
+ * Handles CSI (ESC [ params intermediates final), OSC and the other string
+ * controls (ESC ] / P / X / ^ / _ ... terminated by BEL or ESC \) and plain
+ * two/three byte escapes such as ESC ( B. State is kept between calls, so a
+ * sequence split across serial events is still removed completely.
+ *
+ * Callers only need to route a byte through {@link #consume(byte)} when it is
+ * ESC or {@link #inEscape()} is true; everything else is plain text.
+ */
+public class AnsiStripper {
+
+	public static final byte ESC = 0x1B;
+	private static final byte BEL = 0x07;
+
+	private static final int GROUND = 0;
+	private static final int ESCAPE = 1; // saw ESC
+	private static final int ESCAPE_INTERMEDIATE = 2; // ESC followed by 0x20-0x2F
+	private static final int CSI = 3; // ESC [
+	private static final int STRING = 4; // OSC/DCS/SOS/PM/APC body
+	private static final int STRING_ESC = 5; // ESC inside a string, expecting '\'
+
+	private int state = GROUND;
+
+	public boolean inEscape() {
+		return state != GROUND;
+	}
+
+	/**
+	 * Feed one byte. Returns true if the byte was part of an escape sequence and
+	 * must be dropped, false if it is visible text.
+	 */
+	public boolean consume(byte b) {
+		int c = b & 0xFF;
+		switch (state) {
+		case GROUND:
+			if (b == ESC) {
+				state = ESCAPE;
+				return true;
+			}
+			return false;
+		case ESCAPE:
+			if (c == '[') {
+				state = CSI;
+			} else if (c == ']' || c == 'P' || c == 'X' || c == '^' || c == '_') {
+				state = STRING;
+			} else if (c >= 0x20 && c <= 0x2F) {
+				state = ESCAPE_INTERMEDIATE;
+			} else if (c >= 0x30 && c <= 0x7E) {
+				state = GROUND; // two-byte escape, e.g. ESC 7 / ESC M
+			} else {
+				return abort(b);
+			}
+			return true;
+		case ESCAPE_INTERMEDIATE:
+			if (c >= 0x20 && c <= 0x2F)
+				return true;
+			if (c >= 0x30 && c <= 0x7E) {
+				state = GROUND;
+				return true;
+			}
+			return abort(b);
+		case CSI:
+			if (c >= 0x20 && c <= 0x3F)
+				return true; // parameters and intermediates
+			if (c >= 0x40 && c <= 0x7E) {
+				state = GROUND;
+				return true;
+			}
+			return abort(b);
+		case STRING:
+			if (b == BEL) {
+				state = GROUND;
+			} else if (b == ESC) {
+				state = STRING_ESC;
+			} else if (c == '\r' || c == '\n') {
+				return abort(b);
+			}
+			return true;
+		case STRING_ESC:
+			if (c == '\\') {
+				state = GROUND;
+				return true;
+			}
+			if (c == '\r' || c == '\n')
+				return abort(b);
+			state = STRING;
+			return true;
+		default:
+			return abort(b);
+		}
+	}
+
+	/**
+	 * Malformed or interrupted sequence: drop back to text. The current byte is
+	 * reported as visible, so line terminators are never lost, unless it is an
+	 * ESC: that starts a new sequence, as on a terminal.
+	 */
+	private boolean abort(byte b) {
+		if (b == ESC) {
+			state = ESCAPE;
+			return true;
+		}
+		state = GROUND;
+		return false;
+	}
+
+	public void reset() {
+		state = GROUND;
+	}
+}
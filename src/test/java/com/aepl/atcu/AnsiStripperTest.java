@@ -0,0 +1,51 @@
+package com.aepl.atcu;
+
+import java.io.ByteArrayOutputStream;
+import java.nio.charset.StandardCharsets;
+
+import junit.framework.TestCase;
+
+/**
+ * AnsiStripperTest: complete, split and interrupted escape sequences.
+ */
+public class AnsiStripperTest extends TestCase {
+
+	private static String strip(AnsiStripper s, String text) {
+		ByteArrayOutputStream out = new ByteArrayOutputStream();
+		for (byte b : text.getBytes(StandardCharsets.ISO_8859_1))
+			if (!((b == AnsiStripper.ESC || s.inEscape()) && s.consume(b)))
+				out.write(b);
+		return new String(out.toByteArray(), StandardCharsets.ISO_8859_1);
+	}
+
+	private static String strip(String text) {
+		return strip(new AnsiStripper(), text);
+	}
+
+	public void testRemovesCsiOscAndShortEscapes() {
+		assertEquals("VERSION: 5.2.8", strip("\u001b[1;32mVERSION:\u001b[0m 5.2.8"));
+		assertEquals("title gone", strip("\u001b]0;window\u0007title gone"));
+		assertEquals("st gone", strip("\u001b]0;window\u001b\\st gone"));
+		assertEquals("charset", strip("\u001b(Bcharset"));
+		assertEquals("saved", strip("\u001b7saved"));
+	}
+
+	public void testSequenceSplitAcrossCalls() {
+		AnsiStripper s = new AnsiStripper();
+		assertEquals("A", strip(s, "A\u001b[3"));
+		assertTrue(s.inEscape());
+		assertEquals("B", strip(s, "1;1mB"));
+		assertFalse(s.inEscape());
+	}
+
+	public void testLineTerminatorAbortsSequence() {
+		assertEquals("A\nB", strip("A\u001b[12\nB"));
+		assertEquals("A\r\nB", strip("A\u001b]0;title\r\nB"));
+	}
+
+	public void testEscInsideSequenceStartsANewOne() {
+		assertEquals("AB", strip("A\u001b[12\u001b[0mB"));
+		assertEquals("AB", strip("A\u001b(\u001b[1mB"));
+		assertEquals("AB", strip("A\u001b\u001b[1mB"));
+	}
+}
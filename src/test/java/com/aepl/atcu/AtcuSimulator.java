@@ -0,0 +1,133 @@
+package com.aepl.atcu;
+
+import java.io.BufferedReader;
+import java.io.FileInputStream;
+import java.io.IOException;
+import java.io.InputStream;
+import java.io.InputStreamReader;
+import java.nio.file.Files;
+import java.nio.file.Path;
+import java.nio.file.Paths;
+import java.util.ArrayList;
+import java.util.List;
+import java.util.Properties;
+import java.util.concurrent.Executors;
+import java.util.concurrent.ScheduledExecutorService;
+import java.util.concurrent.ScheduledThreadPoolExecutor;
+
+import org.apache.logging.log4j.LogManager;
+import org.apache.logging.log4j.Logger;
+
+/**
+ * AtcuSimulator: runs a fleet of SimulatedAtcu devices, each behind its own
+ * pty, so the orchestrator can be pointed at serial.port=/tmp/ttyATCU0 and do
+ * a full FOTA run without hardware.
+ *
+ * Usage: AtcuSimulator [simulator.properties]
+ *
+ * Keys: sim.count (1), sim.link.dir (/tmp), sim.link.prefix (ttyATCU),
+ * sim.device.id.format (ATCU%04d), sim.threads (2) and the device profile
+ * under "sim" (see SimulatedAtcu.Profile#fromProperties, e.g.
+ * sim.version=5.2.0, sim.failures=ROLLBACK,NONE). Device i gets device id
+ * format(i) and link &lt;dir&gt;/&lt;prefix&gt;&lt;i&gt;.
+ *
+ * Commands on stdin: "fota &lt;i|all&gt; &lt;version&gt;", "status", "quit".
+ */
+public class AtcuSimulator {
+
+	private static final Logger LOG = LogManager.getLogger(AtcuSimulator.class);
+
+	private final List<SimulatedAtcu> devices = new ArrayList<>();
+	private final List<PtyLink> links = new ArrayList<>();
+	private final ScheduledExecutorService scheduler;
+
+	public AtcuSimulator(Properties p) throws IOException {
+		int count = Integer.parseInt(p.getProperty("sim.count", "1"));
+		Path dir = Paths.get(p.getProperty("sim.link.dir", "/tmp"));
+		String prefix = p.getProperty("sim.link.prefix", "ttyATCU");
+		String idFormat = p.getProperty("sim.device.id.format", "ATCU%04d");
+		int threads = Integer.parseInt(p.getProperty("sim.threads", "2"));
+		SimulatedAtcu.Profile base = SimulatedAtcu.Profile.fromProperties(p, "sim");
+
+		ScheduledThreadPoolExecutor ses = new ScheduledThreadPoolExecutor(threads, r -> {
+			Thread t = Executors.defaultThreadFactory().newThread(r);
+			t.setName("atcu-sim-" + t.getId());
+			t.setDaemon(true);
+			return t;
+		});
+		ses.setRemoveOnCancelPolicy(true);
+		scheduler = ses;
+
+		for (int i = 0; i < count; i++) {
+			SimulatedAtcu.Profile profile = base.copy();
+			profile.deviceId = String.format(idFormat, i);
+			profile.imei = String.format("8643940%08d", i);
+			profile.seed = base.seed + i;
+			PtyLink link = new PtyLink(dir.resolve(prefix + i));
+			SimulatedAtcu device = new SimulatedAtcu(profile, scheduler, link);
+			link.attach(device);
+			links.add(link);
+			devices.add(device);
+			LOG.info("{} on {} ({}) version {}", profile.deviceId, link.getLink(), link.getSlaveName(),
+					profile.version);
+		}
+	}
+
+	public void start() {
+		for (SimulatedAtcu d : devices)
+			d.start();
+	}
+
+	public void stop() {
+		for (SimulatedAtcu d : devices)
+			d.stop();
+		for (PtyLink l : links)
+			l.close();
+		scheduler.shutdownNow();
+	}
+
+	public List<SimulatedAtcu> getDevices() {
+		return devices;
+	}
+
+	public static void main(String[] args) throws Exception {
+		Properties p = new Properties();
+		if (args.length > 0) {
+			try (InputStream in = new FileInputStream(args[0])) {
+				p.load(in);
+			}
+		} else if (Files.exists(Paths.get("simulator.properties"))) {
+			try (InputStream in = new FileInputStream("simulator.properties")) {
+				p.load(in);
+			}
+		}
+		AtcuSimulator sim = new AtcuSimulator(p);
+		Runtime.getRuntime().addShutdownHook(new Thread(sim::stop));
+		sim.start();
+
+		BufferedReader console = new BufferedReader(new InputStreamReader(System.in));
+		String line;
+		while ((line = console.readLine()) != null) {
+			String[] cmd = line.trim().split("\\s+");
+			if (cmd[0].equalsIgnoreCase("quit"))
+				break;
+			if (cmd[0].equalsIgnoreCase("status")) {
+				for (SimulatedAtcu d : sim.getDevices())
+					LOG.info("{} version={} running={} lines={} fota={}", d.getDeviceId(), d.getVersion(),
+							d.isRunning(), d.getLinesWritten(), d.getFotaAttempts());
+			} else if (cmd[0].equalsIgnoreCase("fota") && cmd.length == 3) {
+				for (int i = 0; i < sim.getDevices().size(); i++) {
+					if (cmd[1].equalsIgnoreCase("all") || cmd[1].equals(String.valueOf(i))) {
+						SimulatedAtcu d = sim.getDevices().get(i);
+						LOG.info("{} FOTA to {}: {}", d.getDeviceId(), cmd[2],
+								d.triggerFota(cmd[2]) ? "started" : "ignored (not running)");
+					}
+				}
+			} else if (!cmd[0].isEmpty()) {
+				LOG.info("commands: fota <i|all> <version> | status | quit");
+			}
+		}
+		sim.stop();
+		LogManager.shutdown();
+	}
+}
@@ -0,0 +1,68 @@
+package com.aepl.atcu;
+
+import java.io.DataInput;
+import java.io.IOException;
+import java.nio.ByteBuffer;
+import java.nio.charset.StandardCharsets;
+
+/**
+ * CaptureFormat: layout shared by CaptureSink and CaptureReader.
+ *
+ * Capture file: 8-byte magic, then blocks. A block starts with a BLOCK tag and
+ * resets all delta state, so decoding can start at any block. Inside a block:
+ *
+ * <pre>
+ * PORT  0x02 varint portRef, varint length, UTF-8 port id   (before first use)
+ * LINE  0x01 zigzag(epochNanos - previous), varint portRef,
+ *            zigzag(sequence - previous), varint length, payload bytes
+ * </pre>
+ *
+ * Index file ({@code <capture>.idx}): 8-byte magic, then one fixed 24-byte
+ * entry per block: first epochNanos, first sequence, block offset (all
+ * big-endian longs). Entries are only written once the block they point to is
+ * on disk.
+ */
+final class CaptureFormat {
+
+	static final byte[] CAPTURE_MAGIC = "ATCUCAP1".getBytes(StandardCharsets.US_ASCII);
+	static final byte[] INDEX_MAGIC = "ATCUIDX1".getBytes(StandardCharsets.US_ASCII);
+	static final String INDEX_SUFFIX = ".idx";
+	static final int INDEX_ENTRY_BYTES = 24;
+
+	static final byte TAG_LINE = 0x01;
+	static final byte TAG_PORT = 0x02;
+	static final byte TAG_BLOCK = 0x03;
+
+	/** Largest encoded varint. */
+	static final int MAX_VARINT_BYTES = 10;
+
+	private CaptureFormat() {
+	}
+
+	static void putVarLong(ByteBuffer buf, long v) {
+		while ((v & ~0x7FL) != 0) {
+			buf.put((byte) ((v & 0x7F) | 0x80));
+			v >>>= 7;
+		}
+		buf.put((byte) v);
+	}
+
+	static long readVarLong(DataInput in) throws IOException {
+		long v = 0;
+		for (int shift = 0; shift < 64; shift += 7) {
+			int b = in.readUnsignedByte();
+			v |= (long) (b & 0x7F) << shift;
+			if ((b & 0x80) == 0)
+				return v;
+		}
+		throw new IOException("Malformed varint");
+	}
+
+	static long zigzag(long v) {
+		return (v << 1) ^ (v >> 63);
+	}
+
+	static long unzigzag(long v) {
+		return (v >>> 1) ^ -(v & 1);
+	}
+}
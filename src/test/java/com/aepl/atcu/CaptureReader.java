@@ -0,0 +1,218 @@
+package com.aepl.atcu;
+
+import java.io.BufferedInputStream;
+import java.io.Closeable;
+import java.io.DataInputStream;
+import java.io.EOFException;
+import java.io.IOException;
+import java.nio.ByteBuffer;
+import java.nio.channels.Channels;
+import java.nio.channels.FileChannel;
+import java.nio.charset.StandardCharsets;
+import java.nio.file.Files;
+import java.nio.file.Path;
+import java.nio.file.StandardOpenOption;
+import java.util.ArrayList;
+import java.util.Arrays;
+import java.util.List;
+
+/**
+ * CaptureReader: streams SerialLines back out of a CaptureSink file.
+ *
+ * {@link #seekToTime(long)} and {@link #seekToSequence(long)} binary-search the
+ * index file with positional reads (O(log n) entries touched), jump to that
+ * block and skip forward inside it; {@link #next()} then streams records in
+ * file order. Without an index (or past its end) seeks fall back to scanning
+ * from the last indexed block. A truncated last record (crash while writing)
+ * reads as end of capture.
+ *
+ * Replayed lines carry the recorded epoch time and sequence; the monotonic
+ * capture time is not recorded and is 0. Not thread-safe.
+ */
+public class CaptureReader implements Closeable {
+
+	private final FileChannel channel;
+	private final FileChannel indexChannel;
+	private final long indexEntries;
+	private final ByteBuffer entry = ByteBuffer.allocate(CaptureFormat.INDEX_ENTRY_BYTES);
+
+	private DataInputStream in;
+	private final List<String> ports = new ArrayList<>();
+	private byte[] payload = new byte[256];
+	private long prevEpochNanos;
+	private long prevSequence;
+	private SerialLine peeked;
+
+	public CaptureReader(Path file) throws IOException {
+		channel = FileChannel.open(file, StandardOpenOption.READ);
+		byte[] magic = new byte[CaptureFormat.CAPTURE_MAGIC.length];
+		ByteBuffer mb = ByteBuffer.wrap(magic);
+		while (mb.hasRemaining() && channel.read(mb) >= 0) {
+		}
+		if (!Arrays.equals(magic, CaptureFormat.CAPTURE_MAGIC)) {
+			channel.close();
+			throw new IOException("Not a capture file: " + file);
+		}
+		indexChannel = openIndex(CaptureSink.indexFileFor(file));
+		indexEntries = (indexChannel == null) ? 0
+				: (indexChannel.size() - CaptureFormat.INDEX_MAGIC.length) / CaptureFormat.INDEX_ENTRY_BYTES;
+		position(CaptureFormat.CAPTURE_MAGIC.length);
+	}
+
+	private static FileChannel openIndex(Path indexFile) throws IOException {
+		if (!Files.exists(indexFile))
+			return null;
+		FileChannel ch = FileChannel.open(indexFile, StandardOpenOption.READ);
+		ByteBuffer mb = ByteBuffer.allocate(CaptureFormat.INDEX_MAGIC.length);
+		while (mb.hasRemaining() && ch.read(mb) >= 0) {
+		}
+		if (!Arrays.equals(mb.array(), CaptureFormat.INDEX_MAGIC)) {
+			ch.close();
+			return null;
+		}
+		return ch;
+	}
+
+	/** Next record, or null at the end of the capture. */
+	public SerialLine next() throws IOException {
+		if (peeked != null) {
+			SerialLine l = peeked;
+			peeked = null;
+			return l;
+		}
+		try {
+			while (true) {
+				int tag = in.read();
+				if (tag < 0)
+					return null;
+				switch (tag) {
+				case CaptureFormat.TAG_BLOCK:
+					ports.clear();
+					prevEpochNanos = 0;
+					prevSequence = 0;
+					break;
+				case CaptureFormat.TAG_PORT: {
+					int ref = (int) CaptureFormat.readVarLong(in);
+					byte[] id = new byte[(int) CaptureFormat.readVarLong(in)];
+					in.readFully(id);
+					while (ports.size() <= ref)
+						ports.add(null);
+					ports.set(ref, new String(id, StandardCharsets.UTF_8));
+					break;
+				}
+				case CaptureFormat.TAG_LINE: {
+					long epochNanos = prevEpochNanos + CaptureFormat.unzigzag(CaptureFormat.readVarLong(in));
+					int ref = (int) CaptureFormat.readVarLong(in);
+					long sequence = prevSequence + CaptureFormat.unzigzag(CaptureFormat.readVarLong(in));
+					int len = (int) CaptureFormat.readVarLong(in);
+					if (len > payload.length)
+						payload = new byte[Math.max(len, payload.length * 2)];
+					in.readFully(payload, 0, len);
+					prevEpochNanos = epochNanos;
+					prevSequence = sequence;
+					String port = (ref < ports.size()) ? ports.get(ref) : null;
+					return new SerialLine(epochNanos, 0L, port, sequence,
+							new String(payload, 0, len, StandardCharsets.UTF_8));
+				}
+				default:
+					throw new IOException("Corrupt capture: unknown record tag " + tag);
+				}
+			}
+		} catch (EOFException truncated) {
+			return null;
+		}
+	}
+
+	/**
+	 * Position so that {@link #next()} returns the first record with
+	 * epochNanos >= the given time.
+	 */
+	public void seekToTime(long epochNanos) throws IOException {
+		seekBlock(lastEntryBefore(0, epochNanos));
+		SerialLine l;
+		while ((l = next()) != null && l.getEpochNanos() < epochNanos) {
+		}
+		peeked = l;
+	}
+
+	/**
+	 * Position so that {@link #next()} returns the first record with sequence
+	 * >= the given one.
+	 */
+	public void seekToSequence(long sequence) throws IOException {
+		seekBlock(lastEntryBefore(1, sequence));
+		SerialLine l;
+		while ((l = next()) != null && l.getSequence() < sequence) {
+		}
+		peeked = l;
+	}
+
+	/** Back to the first record. */
+	public void rewind() throws IOException {
+		position(CaptureFormat.CAPTURE_MAGIC.length);
+	}
+
+	/**
+	 * Binary search over index entries for the last one whose field (0 = time,
+	 * 1 = sequence) is < key; -1 if none. Strictly less: lines of one serial
+	 * chunk share a timestamp, so the first record equal to key can sit in the
+	 * block before one that starts with it.
+	 */
+	private long lastEntryBefore(int field, long key) throws IOException {
+		long lo = 0, hi = indexEntries - 1, found = -1;
+		while (lo <= hi) {
+			long mid = (lo + hi) >>> 1;
+			if (readEntry(mid, field) < key) {
+				found = mid;
+				lo = mid + 1;
+			} else {
+				hi = mid - 1;
+			}
+		}
+		return found;
+	}
+
+	private void seekBlock(long entryIndex) throws IOException {
+		if (entryIndex < 0) {
+			rewind();
+			return;
+		}
+		long offset = readEntry(entryIndex, 2);
+		position(offset < channel.size() ? offset : CaptureFormat.CAPTURE_MAGIC.length);
+	}
+
+	private long readEntry(long index, int field) throws IOException {
+		entry.clear();
+		long pos = CaptureFormat.INDEX_MAGIC.length + index * CaptureFormat.INDEX_ENTRY_BYTES;
+		while (entry.hasRemaining()) {
+			if (indexChannel.read(entry, pos + entry.position()) < 0)
+				throw new EOFException("Truncated capture index");
+		}
+		return entry.getLong(field * 8);
+	}
+
+	private void position(long offset) throws IOException {
+		channel.position(offset);
+		// not closed: closing would close the shared channel
+		in = new DataInputStream(new BufferedInputStream(Channels.newInputStream(channel), 64 * 1024));
+		ports.clear();
+		prevEpochNanos = 0;
+		prevSequence = 0;
+		peeked = null;
+	}
+
+	/** Index entries (blocks) available for seeking. */
+	public long getIndexEntries() {
+		return indexEntries;
+	}
+
+	@Override
+	public void close() throws IOException {
+		try {
+			channel.close();
+		} finally {
+			if (indexChannel != null)
+				indexChannel.close();
+		}
+	}
+}
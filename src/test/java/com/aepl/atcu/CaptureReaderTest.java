@@ -0,0 +1,130 @@
+package com.aepl.atcu;
+
+import java.io.IOException;
+import java.nio.channels.FileChannel;
+import java.nio.file.Files;
+import java.nio.file.Path;
+import java.nio.file.StandardOpenOption;
+import java.util.ArrayList;
+import java.util.List;
+import java.util.Random;
+import java.util.stream.Stream;
+
+import junit.framework.TestCase;
+
+/**
+ * CaptureReaderTest: lines written by CaptureSink stream back unchanged, and
+ * seeks by time or sequence land on the first matching record, also when
+ * equal timestamps span blocks.
+ */
+public class CaptureReaderTest extends TestCase {
+
+	private Path dir;
+	private Path file;
+
+	@Override
+	protected void setUp() throws IOException {
+		dir = Files.createTempDirectory("capture-test");
+		file = dir.resolve("capture.bin");
+	}
+
+	@Override
+	protected void tearDown() throws IOException {
+		try (Stream<Path> files = Files.list(dir)) {
+			for (Object f : files.toArray())
+				Files.deleteIfExists((Path) f);
+		}
+		Files.deleteIfExists(dir);
+	}
+
+	/** Run a sink with small blocks over lines and stop it once all are written. */
+	private void capture(List<SerialLine> lines, int blockSize) throws InterruptedException {
+		LineRingBuffer<SerialLine> ring = new LineRingBuffer<>(1024, LineRingBuffer.WaitStrategy.PARK);
+		LineRingBuffer.Cursor<SerialLine> cursor = ring.addConsumer("capture", 512,
+				LineRingBuffer.OverflowPolicy.BLOCK);
+		CaptureSink sink = new CaptureSink(cursor, file, blockSize);
+		Thread t = new Thread(sink, "capture-test");
+		t.start();
+		for (SerialLine line : lines)
+			assertTrue(ring.tryPublish(line));
+		long deadline = System.currentTimeMillis() + 5000;
+		while (sink.getRecordsWritten() < lines.size() && System.currentTimeMillis() < deadline)
+			Thread.sleep(1);
+		t.interrupt();
+		t.join(5000);
+		assertEquals(lines.size(), sink.getRecordsWritten());
+	}
+
+	/** Lines in bursts: every line of a burst has the arrival time of its chunk. */
+	private static List<SerialLine> bursts(int n, long seed) {
+		Random random = new Random(seed);
+		List<SerialLine> lines = new ArrayList<>();
+		long epochNanos = 1_700_000_000_000_000_000L;
+		for (int i = 0; i < n; i++) {
+			if (random.nextInt(8) == 0)
+				epochNanos += random.nextInt(5_000_000);
+			String port = random.nextInt(10) == 0 ? "COM22" : "COM21";
+			lines.add(new SerialLine(epochNanos, 0, port, i + 1, "line " + i + " \u00E9"));
+		}
+		return lines;
+	}
+
+	private static void assertSameLine(SerialLine expected, SerialLine actual) {
+		assertNotNull("missing " + expected, actual);
+		assertEquals(expected.getEpochNanos(), actual.getEpochNanos());
+		assertEquals(expected.getPortId(), actual.getPortId());
+		assertEquals(expected.getSequence(), actual.getSequence());
+		assertEquals(expected.getPayload(), actual.getPayload());
+	}
+
+	public void testStreamsBackEveryLine() throws Exception {
+		List<SerialLine> lines = bursts(5000, 1);
+		capture(lines, 64);
+		try (CaptureReader reader = new CaptureReader(file)) {
+			assertEquals((5000 + 63) / 64, reader.getIndexEntries());
+			for (SerialLine expected : lines)
+				assertSameLine(expected, reader.next());
+			assertNull(reader.next());
+			reader.rewind();
+			assertSameLine(lines.get(0), reader.next());
+		}
+	}
+
+	public void testSeeksLandOnFirstMatchingRecord() throws Exception {
+		List<SerialLine> lines = bursts(5000, 2);
+		capture(lines, 16);
+		Random random = new Random(3);
+		try (CaptureReader reader = new CaptureReader(file)) {
+			for (int k = 0; k < 2000; k++) {
+				int i = random.nextInt(lines.size());
+				long time = lines.get(i).getEpochNanos() - (random.nextBoolean() ? 0 : 1);
+				int first = 0;
+				while (lines.get(first).getEpochNanos() < time)
+					first++;
+				reader.seekToTime(time);
+				assertSameLine(lines.get(first), reader.next());
+
+				reader.seekToSequence(lines.get(i).getSequence());
+				assertSameLine(lines.get(i), reader.next());
+			}
+			reader.seekToTime(Long.MAX_VALUE);
+			assertNull(reader.next());
+			reader.seekToSequence(0);
+			assertSameLine(lines.get(0), reader.next());
+		}
+	}
+
+	public void testTruncatedTailEndsCapture() throws Exception {
+		List<SerialLine> lines = bursts(100, 4);
+		capture(lines, 16);
+		long size = Files.size(file);
+		try (FileChannel ch = FileChannel.open(file, StandardOpenOption.WRITE)) {
+			ch.truncate(size - 3);
+		}
+		try (CaptureReader reader = new CaptureReader(file)) {
+			for (int i = 0; i < 99; i++)
+				assertSameLine(lines.get(i), reader.next());
+			assertNull(reader.next());
+		}
+	}
+}
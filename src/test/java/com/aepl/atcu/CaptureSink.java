@@ -0,0 +1,218 @@
+package com.aepl.atcu;
+
+import java.io.IOException;
+import java.nio.ByteBuffer;
+import java.nio.channels.FileChannel;
+import java.nio.charset.StandardCharsets;
+import java.nio.file.Path;
+import java.nio.file.Paths;
+import java.nio.file.StandardOpenOption;
+import java.util.ArrayList;
+import java.util.HashMap;
+import java.util.List;
+import java.util.Map;
+
+import org.apache.logging.log4j.LogManager;
+import org.apache.logging.log4j.Logger;
+
+/**
+ * CaptureSink: optional binary capture of the serial stream (see
+ * {@link CaptureFormat}), read back with {@link CaptureReader}.
+ *
+ * Much smaller than serial-stream.log and needs no text parsing to replay or
+ * search. Drains its own ring cursor in batches like LogFileSink; every
+ * blockSize records it starts a new block and adds an index entry.
+ */
+public class CaptureSink implements Runnable {
+
+	private static final Logger LOG = LogManager.getLogger(CaptureSink.class);
+
+	public static final int DEFAULT_BLOCK_SIZE = 4096;
+	public static final int DEFAULT_BATCH_SIZE = 1024;
+
+	private final LineRingBuffer.Cursor<SerialLine> cursor;
+	private final Path file;
+	private final Path indexFile;
+	private final int blockSize;
+	private final List<SerialLine> batch = new ArrayList<>();
+	private final Map<String, Integer> portRefs = new HashMap<>();
+
+	private ByteBuffer buffer = ByteBuffer.allocate(64 * 1024);
+	private ByteBuffer indexBuffer = ByteBuffer.allocate(64 * CaptureFormat.INDEX_ENTRY_BYTES);
+	private FileChannel channel;
+	private FileChannel indexChannel;
+	private long fileOffset;
+	private int inBlock;
+	private long prevEpochNanos;
+	private long prevSequence;
+
+	// stats (written by the sink thread only)
+	private volatile long recordsWritten;
+	private volatile long blocksWritten;
+
+	public CaptureSink(LineRingBuffer.Cursor<SerialLine> cursor, Path file) {
+		this(cursor, file, DEFAULT_BLOCK_SIZE);
+	}
+
+	public CaptureSink(LineRingBuffer.Cursor<SerialLine> cursor, Path file, int blockSize) {
+		if (blockSize <= 0)
+			throw new IllegalArgumentException("blockSize must be > 0");
+		this.cursor = cursor;
+		this.file = file;
+		this.indexFile = indexFileFor(file);
+		this.blockSize = blockSize;
+	}
+
+	static Path indexFileFor(Path file) {
+		return Paths.get(file.toString() + CaptureFormat.INDEX_SUFFIX);
+	}
+
+	@Override
+	public void run() {
+		try {
+			open();
+			while (!Thread.currentThread().isInterrupted()) {
+				batch.add(cursor.take());
+				cursor.drainTo(batch, DEFAULT_BATCH_SIZE - 1);
+				for (SerialLine line : batch)
+					append(line);
+				batch.clear();
+				flush();
+			}
+		} catch (InterruptedException e) {
+			Thread.currentThread().interrupt();
+		} catch (IOException ioe) {
+			LOG.error("Capture write failed: {}", file, ioe);
+		} finally {
+			close();
+		}
+	}
+
+	/**
+	 * Start a new capture (an existing one is replaced: deltas and the index
+	 * only make sense for one continuous file).
+	 */
+	private void open() throws IOException {
+		channel = FileChannel.open(file, StandardOpenOption.CREATE, StandardOpenOption.WRITE,
+				StandardOpenOption.TRUNCATE_EXISTING);
+		indexChannel = FileChannel.open(indexFile, StandardOpenOption.CREATE, StandardOpenOption.WRITE,
+				StandardOpenOption.TRUNCATE_EXISTING);
+		buffer.put(CaptureFormat.CAPTURE_MAGIC);
+		indexBuffer.put(CaptureFormat.INDEX_MAGIC);
+	}
+
+	private void append(SerialLine line) throws IOException {
+		byte[] port = null;
+		byte[] payload = line.getPayload().getBytes(StandardCharsets.UTF_8);
+		boolean newBlock = inBlock == 0;
+		Integer ref = newBlock ? null : portRefs.get(line.getPortId());
+		if (ref == null)
+			port = line.getPortId().getBytes(StandardCharsets.UTF_8);
+		int worst = 1 + 3 * CaptureFormat.MAX_VARINT_BYTES + (1 + 2 * CaptureFormat.MAX_VARINT_BYTES)
+				+ (port == null ? 0 : port.length) + payload.length + 1;
+		ensureRoom(worst);
+
+		if (newBlock) {
+			portRefs.clear();
+			prevEpochNanos = 0;
+			prevSequence = 0;
+			addIndexEntry(line.getEpochNanos(), line.getSequence(), fileOffset + buffer.position());
+			buffer.put(CaptureFormat.TAG_BLOCK);
+			blocksWritten++;
+		}
+		if (ref == null) {
+			ref = portRefs.size();
+			portRefs.put(line.getPortId(), ref);
+			buffer.put(CaptureFormat.TAG_PORT);
+			CaptureFormat.putVarLong(buffer, ref);
+			CaptureFormat.putVarLong(buffer, port.length);
+			buffer.put(port);
+		}
+		buffer.put(CaptureFormat.TAG_LINE);
+		CaptureFormat.putVarLong(buffer, CaptureFormat.zigzag(line.getEpochNanos() - prevEpochNanos));
+		CaptureFormat.putVarLong(buffer, ref);
+		CaptureFormat.putVarLong(buffer, CaptureFormat.zigzag(line.getSequence() - prevSequence));
+		CaptureFormat.putVarLong(buffer, payload.length);
+		buffer.put(payload);
+		prevEpochNanos = line.getEpochNanos();
+		prevSequence = line.getSequence();
+		recordsWritten++;
+		if (++inBlock == blockSize)
+			inBlock = 0;
+	}
+
+	private void ensureRoom(int bytes) throws IOException {
+		if (buffer.remaining() >= bytes)
+			return;
+		flush();
+		if (buffer.remaining() < bytes)
+			buffer = ByteBuffer.allocate(Math.max(bytes, buffer.capacity() * 2));
+	}
+
+	private void addIndexEntry(long epochNanos, long sequence, long offset) {
+		if (indexBuffer.remaining() < CaptureFormat.INDEX_ENTRY_BYTES) {
+			ByteBuffer bigger = ByteBuffer.allocate(indexBuffer.capacity() * 2);
+			indexBuffer.flip();
+			bigger.put(indexBuffer);
+			indexBuffer = bigger;
+		}
+		indexBuffer.putLong(epochNanos).putLong(sequence).putLong(offset);
+	}
+
+	/**
+	 * Data first, then the index entries for it, so the index never points
+	 * past the end of the capture.
+	 */
+	private void flush() throws IOException {
+		if (buffer.position() > 0) {
+			buffer.flip();
+			while (buffer.hasRemaining())
+				fileOffset += channel.write(buffer);
+			buffer.clear();
+		}
+		if (indexBuffer.position() > 0) {
+			indexBuffer.flip();
+			while (indexBuffer.hasRemaining())
+				indexChannel.write(indexBuffer);
+			indexBuffer.clear();
+		}
+	}
+
+	private void close() {
+		// as in LogFileSink: the channels refuse an interrupted thread
+		boolean interrupted = Thread.interrupted();
+		try {
+			batch.clear();
+			cursor.drainTo(batch, Integer.MAX_VALUE);
+			if (channel != null) {
+				for (SerialLine line : batch)
+					append(line);
+				flush();
+			}
+		} catch (IOException e) {
+			LOG.error("Capture final flush failed: {}", file, e);
+		}
+		try {
+			if (channel != null)
+				channel.close();
+			if (indexChannel != null)
+				indexChannel.close();
+		} catch (IOException e) {
+			LOG.error("Failed to close capture: {}", file, e);
+		}
+		if (interrupted)
+			Thread.currentThread().interrupt();
+	}
+
+	public Path getFile() {
+		return file;
+	}
+
+	public long getRecordsWritten() {
+		return recordsWritten;
+	}
+
+	public long getBlocksWritten() {
+		return blocksWritten;
+	}
+}
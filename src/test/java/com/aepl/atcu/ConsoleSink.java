@@ -0,0 +1,147 @@
+package com.aepl.atcu;
+
+import java.util.concurrent.TimeUnit;
+
+import org.apache.logging.log4j.LogManager;
+import org.apache.logging.log4j.Logger;
+import org.apache.logging.log4j.util.Unbox;
+
+/**
+ * ConsoleSink: shows the serial stream on the console through the dedicated
+ * "serial-stream" logger (its own appender and layout in log4j2.xml, no
+ * additivity into the diagnostics).
+ *
+ * Lines come from its own ring cursor, which drops its oldest lines when the
+ * console cannot keep up. Output is sampled (every Nth line) and rate limited
+ * to maxLinesPerSecond with a one-second burst; whatever is skipped is reported
+ * at most once per second as "[CONSOLE] N lines suppressed". A slow terminal
+ * (Windows console, SSH) therefore never holds back the file sink or the
+ * parser.
+ */
+public class ConsoleSink implements Runnable {
+
+	/** Logger name of the serial stream's console appender. */
+	public static final String SERIAL_STREAM_LOGGER = "serial-stream";
+	public static final int DEFAULT_MAX_LINES_PER_SECOND = 200;
+
+	private static final long SUMMARY_INTERVAL_NANOS = TimeUnit.SECONDS.toNanos(1);
+	// how long to wait for a line before checking whether a summary is due
+	private static final long IDLE_POLL_MILLIS = 100;
+	private static final Logger OUT = LogManager.getLogger(SERIAL_STREAM_LOGGER);
+
+	private final LineRingBuffer.Cursor<SerialLine> cursor;
+	private final LogLineFormatter formatter = new LogLineFormatter();
+	// reused per line; the async logger copies it when the call is made
+	private final StringBuilder text = new StringBuilder(256);
+
+	// settings, may be changed while running
+	private volatile int maxLinesPerSecond = DEFAULT_MAX_LINES_PER_SECOND;
+	private volatile int sampleEvery = 1;
+
+	// sink thread only
+	private double tokens;
+	private long lastRefillNanos = System.nanoTime();
+	private long lastSummaryNanos = System.nanoTime();
+	private long sampleCounter;
+	private long suppressedSinceSummary;
+	private long cursorDroppedAtSummary;
+
+	// stats
+	private volatile long printed;
+	private volatile long suppressed;
+
+	public ConsoleSink(LineRingBuffer.Cursor<SerialLine> cursor) {
+		this.cursor = cursor;
+		this.tokens = maxLinesPerSecond;
+	}
+
+	@Override
+	public void run() {
+		try {
+			while (!Thread.currentThread().isInterrupted()) {
+				SerialLine line = cursor.poll(IDLE_POLL_MILLIS, TimeUnit.MILLISECONDS);
+				if (line != null) {
+					int every = sampleEvery;
+					if (every > 1 && (sampleCounter++ % every) != 0)
+						suppress();
+					else if (acquire())
+						print(line);
+				}
+				maybeSummarize(System.nanoTime());
+			}
+		} catch (InterruptedException e) {
+			Thread.currentThread().interrupt();
+		}
+	}
+
+	private void print(SerialLine line) {
+		text.setLength(0);
+		OUT.info(formatter.formatTo(line, text));
+		printed++;
+	}
+
+	/** Token bucket: take one line's worth, or count it as suppressed. */
+	private boolean acquire() {
+		int rate = maxLinesPerSecond;
+		if (rate <= 0)
+			return true;
+		long now = System.nanoTime();
+		tokens = Math.min(rate, tokens + (now - lastRefillNanos) * rate / 1e9);
+		lastRefillNanos = now;
+		if (tokens >= 1) {
+			tokens -= 1;
+			return true;
+		}
+		suppress();
+		return false;
+	}
+
+	private void suppress() {
+		suppressedSinceSummary++;
+		suppressed++;
+	}
+
+	private void maybeSummarize(long now) {
+		if (now - lastSummaryNanos < SUMMARY_INTERVAL_NANOS)
+			return;
+		long droppedNow = cursor.getDropped();
+		long skipped = suppressedSinceSummary + (droppedNow - cursorDroppedAtSummary);
+		if (skipped > 0)
+			OUT.info("[CONSOLE] {} lines suppressed", Unbox.box(skipped));
+		suppressedSinceSummary = 0;
+		cursorDroppedAtSummary = droppedNow;
+		lastSummaryNanos = now;
+	}
+
+	/** Lines per second before suppressing; 0 = unlimited. */
+	public void setMaxLinesPerSecond(int maxLinesPerSecond) {
+		this.maxLinesPerSecond = Math.max(0, maxLinesPerSecond);
+	}
+
+	public int getMaxLinesPerSecond() {
+		return maxLinesPerSecond;
+	}
+
+	/** Print one of every n serial lines (1 = all). */
+	public void setSampleEvery(int n) {
+		this.sampleEvery = Math.max(1, n);
+	}
+
+	public int getSampleEvery() {
+		return sampleEvery;
+	}
+
+	public long getPrinted() {
+		return printed;
+	}
+
+	/** Lines skipped by sampling or the rate limit. */
+	public long getSuppressed() {
+		return suppressed;
+	}
+
+	/** Lines skipped because the console fell behind. */
+	public long getDropped() {
+		return cursor.getDropped();
+	}
+}
@@ -0,0 +1,102 @@
+package com.aepl.atcu;
+
+/**
+ * FotaTrace: where one FOTA round spent its time.
+ *
+ * The orchestrator marks its own steps (round start, UI trigger, reboot seen,
+ * version observed, decision); the version's path through the serial
+ * pipeline comes from the {@link VersionReport}. Both use
+ * {@link System#nanoTime()}, so the hops line up:
+ *
+ * <pre>
+ * round start -&gt; UI trigger done          uiMs
+ * trigger done -&gt; reboot line event      rebootMs  (probe mode only)
+ * trigger done -&gt; version line event     deviceMs
+ * line event -&gt; framed                   frameUs
+ * framed -&gt; parser picks it up           parseQueueUs
+ * parser -&gt; state map updated            parseUs   (or reply matched)
+ * updated/matched -&gt; orchestrator awake  notifyUs
+ * awake -&gt; result decided                decideUs
+ * round start -&gt; decided                 totalMs
+ * </pre>
+ *
+ * Hops that did not happen (timeout, no trigger) are left empty in the CSV.
+ * One trace per round, used from the orchestrator thread only.
+ */
+public class FotaTrace {
+
+	/** Audit CSV columns written by {@link #toCsv()}. */
+	public static final String CSV_HEADER = "lineSeq,uiMs,rebootMs,deviceMs,frameUs,parseQueueUs,parseUs,notifyUs,decideUs,totalMs";
+
+	private final long startNanos = System.nanoTime();
+	private long triggeredNanos;
+	private long rebootNanos;
+	private VersionReport report;
+	private long observedNanos;
+	private long decidedNanos;
+
+	/** The UI accepted (or gave up on) the FOTA job. */
+	public void markTriggered() {
+		triggeredNanos = System.nanoTime();
+	}
+
+	/** The device announced its reboot on this line. */
+	public void markReboot(SerialLine line) {
+		rebootNanos = line.getCaptureNanos();
+	}
+
+	/** The orchestrator received this report (null: none arrived in time). */
+	public void markObserved(VersionReport report) {
+		this.report = report;
+		observedNanos = System.nanoTime();
+	}
+
+	/** The round's result is known. */
+	public void markDecided() {
+		decidedNanos = System.nanoTime();
+	}
+
+	public VersionReport getReport() {
+		return report;
+	}
+
+	/** Values for {@link #CSV_HEADER}, comma separated. */
+	public String toCsv() {
+		VersionReport r = report;
+		long event = r == null ? 0 : r.getEventNanos();
+		long framed = r == null ? 0 : r.getFramedNanos();
+		long parsed = r == null ? 0 : r.getParsedNanos();
+		// probe replies are never stored: the match is the last pipeline hop
+		long handled = r == null ? 0 : r.getStoredNanos() != 0 ? r.getStoredNanos() : parsed;
+		StringBuilder sb = new StringBuilder(64);
+		sb.append(r == null ? "" : r.getPortId() + "#" + r.getSequence());
+		hop(sb, startNanos, triggeredNanos, 1_000_000);
+		hop(sb, triggeredNanos, rebootNanos, 1_000_000);
+		hop(sb, triggeredNanos, event, 1_000_000);
+		hop(sb, event, framed, 1_000);
+		hop(sb, framed, parsed, 1_000);
+		hop(sb, parsed, r == null ? 0 : r.getStoredNanos(), 1_000);
+		hop(sb, handled, r == null ? 0 : observedNanos, 1_000);
+		hop(sb, r == null ? 0 : observedNanos, decidedNanos, 1_000);
+		hop(sb, startNanos, decidedNanos, 1_000_000);
+		return sb.toString();
+	}
+
+	/** ",(to - from) / unit", or just "," if either end is unknown. */
+	private static void hop(StringBuilder sb, long from, long to, long unit) {
+		sb.append(',');
+		if (from != 0 && to != 0)
+			sb.append((to - from) / unit);
+	}
+
+	@Override
+	public String toString() {
+		String[] names = CSV_HEADER.split(",");
+		String[] values = toCsv().split(",", -1);
+		StringBuilder sb = new StringBuilder(128);
+		for (int i = 0; i < names.length; i++)
+			if (!values[i].isEmpty())
+				sb.append(sb.length() == 0 ? "" : " ").append(names[i]).append('=').append(values[i]);
+		return sb.toString();
+	}
+}
@@ -0,0 +1,206 @@
+package com.aepl.atcu;
+
+import java.util.Arrays;
+import java.util.function.BiConsumer;
+
+/**
+ * HashTrie: immutable hash array mapped trie. put() copies only the path from
+ * the root to the changed entry (at most 7 small nodes) and shares everything
+ * else with the previous version, so every version can be kept as a snapshot
+ * for free. Keys with equal hashes share a collision node.
+ *
+ * Null keys and values are not allowed.
+ */
+final class HashTrie<K, V> {
+
+	private static final int BITS = 5;
+	private static final int MASK = (1 << BITS) - 1;
+
+	private static final HashTrie<?, ?> EMPTY = new HashTrie<>(new Bitmap(0, new Object[0]), 0);
+
+	private final Bitmap root;
+	private final int size;
+
+	private HashTrie(Bitmap root, int size) {
+		this.root = root;
+		this.size = size;
+	}
+
+	@SuppressWarnings("unchecked")
+	static <K, V> HashTrie<K, V> empty() {
+		return (HashTrie<K, V>) EMPTY;
+	}
+
+	int size() {
+		return size;
+	}
+
+	@SuppressWarnings("unchecked")
+	V get(K key) {
+		int hash = hash(key);
+		Object node = root;
+		for (int shift = 0;; shift += BITS) {
+			if (node instanceof Bitmap) {
+				Bitmap b = (Bitmap) node;
+				int bit = 1 << ((hash >>> shift) & MASK);
+				if ((b.bitmap & bit) == 0)
+					return null;
+				node = b.slots[Integer.bitCount(b.bitmap & (bit - 1))];
+			} else if (node instanceof Leaf) {
+				Leaf l = (Leaf) node;
+				return l.hash == hash && l.key.equals(key) ? (V) l.value : null;
+			} else {
+				Collision c = (Collision) node;
+				if (c.hash != hash)
+					return null;
+				int i = c.indexOf(key);
+				return i < 0 ? null : (V) c.leaves[i].value;
+			}
+		}
+	}
+
+	/** This trie with key mapped to value; this same instance if it already was. */
+	HashTrie<K, V> put(K key, V value) {
+		if (key == null || value == null)
+			throw new NullPointerException("HashTrie does not hold nulls");
+		Leaf leaf = new Leaf(hash(key), key, value);
+		boolean[] added = new boolean[1];
+		Bitmap newRoot = (Bitmap) put(root, 0, leaf, added);
+		return newRoot == root ? this : new HashTrie<>(newRoot, added[0] ? size + 1 : size);
+	}
+
+	/** Visit every entry (unordered). */
+	@SuppressWarnings("unchecked")
+	void forEach(BiConsumer<? super K, ? super V> action) {
+		forEach(root, (BiConsumer<Object, Object>) action);
+	}
+
+	private static void forEach(Object node, BiConsumer<Object, Object> action) {
+		if (node instanceof Leaf) {
+			Leaf l = (Leaf) node;
+			action.accept(l.key, l.value);
+		} else if (node instanceof Collision) {
+			for (Leaf l : ((Collision) node).leaves)
+				action.accept(l.key, l.value);
+		} else {
+			for (Object child : ((Bitmap) node).slots)
+				forEach(child, action);
+		}
+	}
+
+	private static Object put(Object node, int shift, Leaf leaf, boolean[] added) {
+		if (node instanceof Collision) {
+			Collision c = (Collision) node;
+			if (c.hash == leaf.hash)
+				return c.put(leaf, added);
+			added[0] = true;
+			return pair(c, c.hash, leaf, shift);
+		}
+		Bitmap b = (Bitmap) node;
+		int bit = 1 << ((leaf.hash >>> shift) & MASK);
+		int idx = Integer.bitCount(b.bitmap & (bit - 1));
+		if ((b.bitmap & bit) == 0) {
+			added[0] = true;
+			Object[] slots = new Object[b.slots.length + 1];
+			System.arraycopy(b.slots, 0, slots, 0, idx);
+			slots[idx] = leaf;
+			System.arraycopy(b.slots, idx, slots, idx + 1, b.slots.length - idx);
+			return new Bitmap(b.bitmap | bit, slots);
+		}
+		Object slot = b.slots[idx];
+		Object replacement;
+		if (slot instanceof Leaf) {
+			Leaf l = (Leaf) slot;
+			if (l.hash == leaf.hash && l.key.equals(leaf.key)) {
+				if (l.value.equals(leaf.value))
+					return b;
+				replacement = leaf;
+			} else if (l.hash == leaf.hash) {
+				added[0] = true;
+				replacement = new Collision(l.hash, new Leaf[] { l, leaf });
+			} else {
+				added[0] = true;
+				replacement = pair(l, l.hash, leaf, shift + BITS);
+			}
+		} else {
+			replacement = put(slot, shift + BITS, leaf, added);
+			if (replacement == slot)
+				return b;
+		}
+		Object[] slots = b.slots.clone();
+		slots[idx] = replacement;
+		return new Bitmap(b.bitmap, slots);
+	}
+
+	/** Smallest subtree holding existing (leaf or collision) and leaf, whose hashes differ. */
+	private static Bitmap pair(Object existing, int existingHash, Leaf leaf, int shift) {
+		int a = (existingHash >>> shift) & MASK;
+		int b = (leaf.hash >>> shift) & MASK;
+		if (a == b)
+			return new Bitmap(1 << a, new Object[] { pair(existing, existingHash, leaf, shift + BITS) });
+		Object[] slots = a < b ? new Object[] { existing, leaf } : new Object[] { leaf, existing };
+		return new Bitmap((1 << a) | (1 << b), slots);
+	}
+
+	private static int hash(Object key) {
+		int h = key.hashCode();
+		return h ^ (h >>> 16);
+	}
+
+	private static final class Leaf {
+		final int hash;
+		final Object key;
+		final Object value;
+
+		Leaf(int hash, Object key, Object value) {
+			this.hash = hash;
+			this.key = key;
+			this.value = value;
+		}
+	}
+
+	/** Up to 32 children, present ones packed in bit order. */
+	private static final class Bitmap {
+		final int bitmap;
+		final Object[] slots;
+
+		Bitmap(int bitmap, Object[] slots) {
+			this.bitmap = bitmap;
+			this.slots = slots;
+		}
+	}
+
+	/** Different keys with the same hash. */
+	private static final class Collision {
+		final int hash;
+		final Leaf[] leaves;
+
+		Collision(int hash, Leaf[] leaves) {
+			this.hash = hash;
+			this.leaves = leaves;
+		}
+
+		int indexOf(Object key) {
+			for (int i = 0; i < leaves.length; i++)
+				if (leaves[i].key.equals(key))
+					return i;
+			return -1;
+		}
+
+		Collision put(Leaf leaf, boolean[] added) {
+			int i = indexOf(leaf.key);
+			if (i >= 0 && leaves[i].value.equals(leaf.value))
+				return this;
+			Leaf[] copy;
+			if (i >= 0) {
+				copy = leaves.clone();
+				copy[i] = leaf;
+			} else {
+				added[0] = true;
+				copy = Arrays.copyOf(leaves, leaves.length + 1);
+				copy[leaves.length] = leaf;
+			}
+			return new Collision(hash, copy);
+		}
+	}
+}
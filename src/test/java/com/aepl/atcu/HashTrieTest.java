@@ -0,0 +1,124 @@
+package com.aepl.atcu;
+
+import java.util.ArrayList;
+import java.util.HashMap;
+import java.util.List;
+import java.util.Map;
+import java.util.Random;
+
+import junit.framework.TestCase;
+
+/**
+ * HashTrieTest: colliding and near-colliding hashes, and old versions staying
+ * unchanged, checked against a HashMap.
+ */
+public class HashTrieTest extends TestCase {
+
+	/** Key with a chosen hash code. */
+	private static final class Key {
+		final String name;
+		final int hash;
+
+		Key(String name, int hash) {
+			this.name = name;
+			this.hash = hash;
+		}
+
+		@Override
+		public int hashCode() {
+			return hash;
+		}
+
+		@Override
+		public boolean equals(Object o) {
+			return o instanceof Key && ((Key) o).name.equals(name);
+		}
+
+		@Override
+		public String toString() {
+			return name + "#" + Integer.toHexString(hash);
+		}
+	}
+
+	private static <K, V> void assertSameAs(Map<K, V> expected, HashTrie<K, V> trie) {
+		assertEquals(expected.size(), trie.size());
+		for (Map.Entry<K, V> e : expected.entrySet())
+			assertEquals(e.getKey().toString(), e.getValue(), trie.get(e.getKey()));
+		Map<K, V> visited = new HashMap<>();
+		trie.forEach((k, v) -> assertNull("visited twice: " + k, visited.put(k, v)));
+		assertEquals(expected, visited);
+	}
+
+	public void testEqualHashesShareCollisionNode() {
+		Key a = new Key("a", 42), b = new Key("b", 42), c = new Key("c", 42);
+		HashTrie<Key, String> t = HashTrie.<Key, String> empty().put(a, "1").put(b, "2").put(c, "3");
+		assertEquals(3, t.size());
+		assertEquals("1", t.get(a));
+		assertEquals("2", t.get(b));
+		assertEquals("3", t.get(c));
+		assertNull(t.get(new Key("d", 42)));
+		HashTrie<Key, String> replaced = t.put(b, "two");
+		assertEquals(3, replaced.size());
+		assertEquals("two", replaced.get(b));
+		assertEquals("2", t.get(b));
+		assertSame(replaced, replaced.put(b, "two"));
+		// "Aa" and "BB" have the same String hash code
+		HashTrie<String, String> s = HashTrie.<String, String> empty().put("Aa", "x").put("BB", "y");
+		assertEquals("x", s.get("Aa"));
+		assertEquals("y", s.get("BB"));
+	}
+
+	public void testCollisionNodeSplitByLaterKey() {
+		// after the h ^ (h >>> 16) spread these differ only in bit 30, so the
+		// collision node and c split at the last level
+		Key a = new Key("a", 0x0ABCDEF1), b = new Key("b", 0x0ABCDEF1), c = new Key("c", 0x4ABC9EF1);
+		// collision first, then the leaf that splits it; and the other way round
+		for (Key[] order : new Key[][] { { a, b, c }, { c, a, b } }) {
+			Map<Key, String> expected = new HashMap<>();
+			HashTrie<Key, String> t = HashTrie.empty();
+			for (Key k : order) {
+				t = t.put(k, k.name);
+				expected.put(k, k.name);
+				assertSameAs(expected, t);
+			}
+			assertNull(t.get(new Key("a", 0x4ABC9EF1)));
+			assertNull(t.get(new Key("z", 0x8ABC5EF1)));
+		}
+	}
+
+	public void testRandomOperationsAgainstHashMap() {
+		Random random = new Random(20240504L);
+		List<Key> keys = new ArrayList<>();
+		for (int i = 0; i < 2000; i++) {
+			// few distinct hashes, many sharing the same low bits
+			int hash = random.nextInt(4) == 0 ? random.nextInt() : (random.nextInt(64) << random.nextInt(27)) | 7;
+			keys.add(new Key("k" + i, hash));
+		}
+		Map<Key, String> expected = new HashMap<>();
+		HashTrie<Key, String> t = HashTrie.empty();
+		List<Map<Key, String>> oldMaps = new ArrayList<>();
+		List<HashTrie<Key, String>> oldTries = new ArrayList<>();
+		for (int i = 0; i < 20_000; i++) {
+			Key k = keys.get(random.nextInt(keys.size()));
+			String v = "v" + random.nextInt(3);
+			HashTrie<Key, String> next = t.put(k, v);
+			assertEquals(v.equals(expected.put(k, v)), next == t);
+			t = next;
+			if (i % 2000 == 0) {
+				oldMaps.add(new HashMap<>(expected));
+				oldTries.add(t);
+			}
+		}
+		assertSameAs(expected, t);
+		for (int i = 0; i < oldTries.size(); i++)
+			assertSameAs(oldMaps.get(i), oldTries.get(i));
+	}
+
+	public void testNullsRejected() {
+		try {
+			HashTrie.<String, String> empty().put("k", null);
+			fail();
+		} catch (NullPointerException expected) {
+		}
+	}
+}
@@ -0,0 +1,77 @@
+package com.aepl.atcu;
+
+import com.fazecast.jSerialComm.SerialPort;
+import com.fazecast.jSerialComm.SerialPortDataListener;
+import com.fazecast.jSerialComm.SerialPortEvent;
+
+/**
+ * JSerialCommSource: a real serial port (8N1, non-blocking) read through
+ * jSerialComm's data-available events.
+ */
+public class JSerialCommSource implements SerialSource {
+
+	private final SerialPort port;
+	// event thread only
+	private byte[] readBuffer = new byte[4096];
+
+	public JSerialCommSource(String portName, int baud) {
+		port = SerialPort.getCommPort(portName);
+		port.setBaudRate(baud);
+		port.setNumDataBits(8);
+		port.setNumStopBits(SerialPort.ONE_STOP_BIT);
+		port.setParity(SerialPort.NO_PARITY);
+		port.setComPortTimeouts(SerialPort.TIMEOUT_NONBLOCKING, 0, 0);
+	}
+
+	@Override
+	public String getId() {
+		return port.getSystemPortName();
+	}
+
+	@Override
+	public boolean open(Listener listener) {
+		if (!port.openPort())
+			return false;
+		port.addDataListener(new SerialPortDataListener() {
+			@Override
+			public int getListeningEvents() {
+				return SerialPort.LISTENING_EVENT_DATA_AVAILABLE;
+			}
+
+			@Override
+			public void serialEvent(SerialPortEvent event) {
+				if (event.getEventType() != SerialPort.LISTENING_EVENT_DATA_AVAILABLE)
+					return;
+				// wire time: taken once per event, before any framing work
+				long arrivalNanos = System.nanoTime();
+				long arrivalEpochNanos = TimestampEncoder.nowEpochNanos();
+				int available = port.bytesAvailable();
+				if (available <= 0)
+					return;
+				if (available > readBuffer.length)
+					readBuffer = new byte[Math.max(available, readBuffer.length * 2)];
+				int read = port.readBytes(readBuffer, available);
+				if (read > 0)
+					listener.onData(readBuffer, 0, read, arrivalEpochNanos, arrivalNanos);
+			}
+		});
+		return true;
+	}
+
+	@Override
+	public boolean isOpen() {
+		return port.isOpen();
+	}
+
+	@Override
+	public int write(byte[] buf, int len) {
+		return port.writeBytes(buf, len);
+	}
+
+	@Override
+	public void close() {
+		port.removeDataListener();
+		if (port.isOpen())
+			port.closePort();
+	}
+}
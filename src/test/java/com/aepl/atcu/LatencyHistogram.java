@@ -0,0 +1,96 @@
+package com.aepl.atcu;
+
+import java.util.concurrent.atomic.AtomicLong;
+import java.util.concurrent.atomic.AtomicLongArray;
+import java.util.concurrent.atomic.LongAdder;
+
+/**
+ * LatencyHistogram: lock-free log-linear histogram of nanosecond values.
+ *
+ * Values below 32 get a bucket each; above that every power of two is split
+ * into 16 linear sub-buckets, so any recorded value is reported within 1/16
+ * (6.25%) over its true value, from nanoseconds to centuries, in 960 counters.
+ * record() is one array increment plus a sum and a max update, safe from any
+ * thread; reads are approximate while records are in progress.
+ */
+public class LatencyHistogram {
+
+	private static final int SUB_BITS = 4;
+	private static final int SUB = 1 << SUB_BITS;
+	// exponents SUB_BITS..62 plus the linear region below 2 * SUB
+	private static final int BUCKETS = (63 - SUB_BITS) * SUB + SUB;
+
+	private final AtomicLongArray counts = new AtomicLongArray(BUCKETS);
+	private final LongAdder total = new LongAdder();
+	private final LongAdder sum = new LongAdder();
+	private final AtomicLong max = new AtomicLong();
+
+	/** Record one value; negative values count as 0. */
+	public void record(long nanos) {
+		long v = Math.max(0, nanos);
+		counts.incrementAndGet(index(v));
+		total.increment();
+		sum.add(v);
+		long m;
+		while (v > (m = max.get()) && !max.compareAndSet(m, v)) {
+		}
+	}
+
+	static int index(long v) {
+		if (v < 2 * SUB)
+			return (int) v;
+		int exp = 63 - Long.numberOfLeadingZeros(v);
+		return (exp - SUB_BITS) * SUB + (int) (v >>> (exp - SUB_BITS));
+	}
+
+	/** Largest value that falls into bucket index. */
+	static long upperBound(int index) {
+		if (index < 2 * SUB)
+			return index;
+		int shift = (index >>> SUB_BITS) - 1;
+		long lower = (long) (SUB + (index & (SUB - 1))) << shift;
+		return lower + (1L << shift) - 1;
+	}
+
+	public long getCount() {
+		return total.sum();
+	}
+
+	public long getMax() {
+		return max.get();
+	}
+
+	public double getMean() {
+		long n = total.sum();
+		return n == 0 ? 0 : (double) sum.sum() / n;
+	}
+
+	/**
+	 * Value at quantile q (0..1): the upper bound of the bucket holding the
+	 * q-th recorded value (capped at the max), 0 if empty.
+	 */
+	public long getQuantile(double q) {
+		long n = 0;
+		long[] snapshot = new long[BUCKETS];
+		for (int i = 0; i < BUCKETS; i++)
+			n += snapshot[i] = counts.get(i);
+		if (n == 0)
+			return 0;
+		long rank = Math.max(1, (long) Math.ceil(q * n));
+		long seen = 0;
+		for (int i = 0; i < BUCKETS; i++) {
+			seen += snapshot[i];
+			if (seen >= rank)
+				return Math.min(upperBound(i), max.get());
+		}
+		return max.get();
+	}
+
+	/** "n=.. mean=.. p50=.. p99=.. p999=.. max=.." in microseconds. */
+	@Override
+	public String toString() {
+		return String.format("n=%d mean=%.1fus p50=%.1fus p99=%.1fus p999=%.1fus max=%.1fus", getCount(),
+				getMean() / 1e3, getQuantile(0.5) / 1e3, getQuantile(0.99) / 1e3, getQuantile(0.999) / 1e3,
+				getMax() / 1e3);
+	}
+}
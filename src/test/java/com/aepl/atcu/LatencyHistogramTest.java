@@ -0,0 +1,66 @@
+package com.aepl.atcu;
+
+import java.util.Random;
+
+import junit.framework.TestCase;
+
+/**
+ * LatencyHistogramTest: bucket math and quantiles.
+ */
+public class LatencyHistogramTest extends TestCase {
+
+	private static void assertBucketHolds(long v) {
+		int i = LatencyHistogram.index(v);
+		long lower = i == 0 ? 0 : LatencyHistogram.upperBound(i - 1) + 1;
+		long upper = LatencyHistogram.upperBound(i);
+		assertTrue(v + " below bucket " + i, v >= lower);
+		assertTrue(v + " above bucket " + i, v <= upper);
+		// reported value at most 1/16 over the true one
+		if (v >= 32)
+			assertTrue(v + " bucket too wide: " + upper, upper - v <= v / 16);
+	}
+
+	public void testLinearRegionHasOneValuePerBucket() {
+		for (int v = 0; v < 32; v++) {
+			assertEquals(v, LatencyHistogram.index(v));
+			assertEquals(v, LatencyHistogram.upperBound(v));
+		}
+	}
+
+	public void testBucketsAreContiguousAndMonotonic() {
+		long previous = -1;
+		int last = LatencyHistogram.index(Long.MAX_VALUE);
+		for (int i = 0; i <= last; i++) {
+			assertEquals(previous + 1, i == 0 ? 0 : LatencyHistogram.upperBound(i - 1) + 1);
+			assertTrue(LatencyHistogram.upperBound(i) > previous);
+			assertEquals(i, LatencyHistogram.index(LatencyHistogram.upperBound(i)));
+			previous = LatencyHistogram.upperBound(i);
+		}
+		assertEquals(Long.MAX_VALUE, LatencyHistogram.upperBound(last));
+		assertEquals(959, last);
+	}
+
+	public void testEveryValueFallsInItsBucket() {
+		Random rnd = new Random(42);
+		for (int i = 0; i < 100_000; i++)
+			assertBucketHolds(rnd.nextLong() >>> (1 + rnd.nextInt(63)));
+		for (int shift = 0; shift < 63; shift++) {
+			assertBucketHolds(1L << shift);
+			assertBucketHolds((1L << shift) - 1);
+		}
+		assertBucketHolds(Long.MAX_VALUE);
+	}
+
+	public void testQuantilesWithinBucketError() {
+		LatencyHistogram h = new LatencyHistogram();
+		for (int i = 1; i <= 100_000; i++)
+			h.record(i * 1000L);
+		h.record(-5);
+		assertEquals(100_001, h.getCount());
+		assertEquals(100_000_000L, h.getMax());
+		long p50 = h.getQuantile(0.5);
+		assertTrue(p50 >= 50_000_000L && p50 <= 50_000_000L * 17 / 16);
+		assertEquals(h.getMax(), h.getQuantile(1.0));
+		assertEquals(0, new LatencyHistogram().getQuantile(0.99));
+	}
+}
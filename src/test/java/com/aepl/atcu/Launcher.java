@@ -4,6 +4,10 @@ import java.io.FileInputStream;
 import java.io.InputStream;
 import java.nio.file.*;
 import java.util.Properties;
+import java.util.concurrent.TimeUnit;
+
+import org.apache.logging.log4j.LogManager;
+import org.apache.logging.log4j.Logger;
 
 /**
  * Launcher: reads config.properties (from current dir or classpath) and starts
@@ -16,6 +20,8 @@ import java.util.Properties;
  */
 public class Launcher {
 
+	private static final Logger LOG = LogManager.getLogger(Launcher.class);
+
 	private static final String CONFIG_FILE = "config.properties";
 
 	public static void main(String[] args) {
@@ -27,14 +33,12 @@ public class Launcher {
 				: Launcher.class.getResourceAsStream("/" + CONFIG_FILE)) {
 			if (in != null) {
 				p.load(in);
-				System.out.println(
-						"Loaded config from: " + (Files.exists(cwdConfig) ? cwdConfig.toAbsolutePath() : "classpath"));
+				LOG.info("Loaded config from: {}", Files.exists(cwdConfig) ? cwdConfig.toAbsolutePath() : "classpath");
 			} else {
-				System.out.println(
-						"No config.properties found in working dir or classpath — using defaults or env vars.");
+				LOG.info("No config.properties found in working dir or classpath — using defaults or env vars.");
 			}
 		} catch (Exception e) {
-			System.err.println("Failed to load config.properties: " + e.getMessage());
+			LOG.error("Failed to load config.properties: {}", e.getMessage());
 		}
 
 		// 2) Read values with defaults or env var overrides
@@ -47,6 +51,13 @@ public class Launcher {
 		String user = get(p, "login.user", "admin");
 		String pass = get(p, "login.pass", "password");
 		String deviceId = get(p, "device.id", "ATCU1234");
+		String loginFamily = get(p, "login.family", "");
+		String captureFile = get(p, "capture.file", "");
+		String stateDir = get(p, "state.dir", "serial-state");
+		long metricsDump = Long.parseLong(get(p, "metrics.dump.seconds", "60"));
+		int consoleRate = Integer.parseInt(get(p, "console.max.lines.per.second",
+				String.valueOf(ConsoleSink.DEFAULT_MAX_LINES_PER_SECOND)));
+		int consoleSample = Integer.parseInt(get(p, "console.sample.every", "1"));
 
 		// optional timeouts (not used directly here but available)
 		String serialWait = get(p, "serial.wait.seconds", "120");
@@ -55,12 +66,25 @@ public class Launcher {
 		try {
 			// instantiate Orchestrator using these values
 			Orchestrator orch = new Orchestrator(serialPort, baud, chromeDriver, firmwareCsv, auditCsv);
+			orch.getSerialReader().setLoginPacketLayout(LoginPacketParser.Layout.fromProperties(p, loginFamily));
+			orch.getSerialReader().getConsole().setMaxLinesPerSecond(consoleRate);
+			orch.getSerialReader().getConsole().setSampleEvery(consoleSample);
+			if (!captureFile.isEmpty())
+				orch.getSerialReader().enableCapture(Paths.get(captureFile));
+			if (!stateDir.isEmpty())
+				orch.getSerialReader().enableStatePersistence(Paths.get(stateDir));
+			orch.getSerialReader().getMetrics().startDump(metricsDump, TimeUnit.SECONDS);
+			VersionProbe probe = VersionProbe.fromProperties(p);
+			if (probe != null)
+				LOG.info("Version probe: {}", probe);
+			orch.setVersionProbe(probe);
 
 			// start will perform login & orchestrate; pass login details and device id
 			orch.start(loginUrl, user, pass, deviceId);
 		} catch (Exception e) {
-			System.err.println("Fatal error starting orchestrator: " + e.getMessage());
-			e.printStackTrace();
+			LOG.fatal("Fatal error starting orchestrator: {}", e.getMessage(), e);
+			// async loggers: flush before exiting
+			LogManager.shutdown();
 			System.exit(2);
 		}
 	}
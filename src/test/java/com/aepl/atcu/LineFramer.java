@@ -0,0 +1,131 @@
+package com.aepl.atcu;
+
+/**
+ * LineFramer: byte-oriented line assembly for the serial ingest path.
+ *
+ * Bytes are appended into one reusable buffer; CR, LF and CRLF (also when the
+ * CR and LF arrive in different chunks) terminate a line, and the completed
+ * line is handed to the {@link LineHandler} as a slice of that buffer, so no
+ * String or array is created while framing. Lines longer than the configured
+ * maximum are truncated: the first maxLineLength bytes are emitted when the
+ * terminator arrives and the rest is discarded and counted.
+ *
+ * When an {@link AnsiStripper} is supplied, escape sequences are removed while
+ * the bytes are copied in; plain text (no ESC byte, no open sequence) never
+ * enters the state machine.
+ *
+ * Not thread-safe: feed from a single thread or synchronize externally.
+ */
+public class LineFramer {
+
+	public static final int DEFAULT_MAX_LINE_LENGTH = 8192;
+
+	/**
+	 * Receives completed lines. The slice is only valid for the duration of the
+	 * call; the buffer is reused for the next line.
+	 */
+	public interface LineHandler {
+		void onLine(byte[] buf, int off, int len);
+	}
+
+	private static final byte CR = '\r';
+	private static final byte LF = '\n';
+
+	private final byte[] line;
+	private final LineHandler handler;
+	private final AnsiStripper stripper;
+	private int length;
+	private boolean lastWasCr;
+	private boolean overflowing;
+
+	// overflow accounting
+	private long truncatedLines;
+	private long discardedBytes;
+
+	public LineFramer(LineHandler handler) {
+		this(DEFAULT_MAX_LINE_LENGTH, new AnsiStripper(), handler);
+	}
+
+	/**
+	 * @param stripper escape stripper, or null to pass escape sequences through
+	 */
+	public LineFramer(int maxLineLength, AnsiStripper stripper, LineHandler handler) {
+		if (maxLineLength <= 0)
+			throw new IllegalArgumentException("maxLineLength must be > 0");
+		if (handler == null)
+			throw new IllegalArgumentException("handler must not be null");
+		this.line = new byte[maxLineLength];
+		this.handler = handler;
+		this.stripper = stripper;
+	}
+
+	/**
+	 * Feed a chunk of raw bytes; every completed line is emitted before return.
+	 */
+	public void feed(byte[] src, int off, int len) {
+		int end = off + len;
+		for (int i = off; i < end; i++) {
+			byte b = src[i];
+			if (stripper != null && (b == AnsiStripper.ESC || stripper.inEscape()) && stripper.consume(b)) {
+				lastWasCr = false;
+				continue;
+			}
+			if (b == LF) {
+				if (lastWasCr) {
+					// second half of CRLF: line was already emitted on CR
+					lastWasCr = false;
+					continue;
+				}
+				emit();
+			} else if (b == CR) {
+				lastWasCr = true;
+				emit();
+			} else {
+				lastWasCr = false;
+				append(b);
+			}
+		}
+	}
+
+	private void append(byte b) {
+		if (length < line.length) {
+			line[length++] = b;
+		} else {
+			overflowing = true;
+			discardedBytes++;
+		}
+	}
+
+	private void emit() {
+		if (overflowing) {
+			truncatedLines++;
+			overflowing = false;
+		}
+		int len = length;
+		length = 0;
+		handler.onLine(line, 0, len);
+	}
+
+	/**
+	 * Drop any partially assembled line (e.g. after the port is reopened).
+	 */
+	public void reset() {
+		length = 0;
+		lastWasCr = false;
+		overflowing = false;
+		if (stripper != null)
+			stripper.reset();
+	}
+
+	public int getMaxLineLength() {
+		return line.length;
+	}
+
+	public long getTruncatedLines() {
+		return truncatedLines;
+	}
+
+	public long getDiscardedBytes() {
+		return discardedBytes;
+	}
+}
@@ -0,0 +1,72 @@
+package com.aepl.atcu;
+
+import java.nio.charset.StandardCharsets;
+import java.util.ArrayList;
+import java.util.Arrays;
+import java.util.List;
+
+import junit.framework.TestCase;
+
+/**
+ * LineFramerTest: CR, LF and CRLF terminators, whole and split across chunks,
+ * and truncation of lines longer than the buffer.
+ */
+public class LineFramerTest extends TestCase {
+
+	private final List<String> lines = new ArrayList<>();
+	private final LineFramer framer = new LineFramer(
+			(buf, off, len) -> lines.add(new String(buf, off, len, StandardCharsets.ISO_8859_1)));
+
+	private void feed(String... chunks) {
+		for (String chunk : chunks) {
+			byte[] b = chunk.getBytes(StandardCharsets.ISO_8859_1);
+			framer.feed(b, 0, b.length);
+		}
+	}
+
+	public void testEveryTerminatorInOneChunk() {
+		feed("a\rb\nc\r\nd\n\ne");
+		assertEquals(Arrays.asList("a", "b", "c", "d", ""), lines);
+	}
+
+	public void testTerminatorsSplitAcrossChunks() {
+		feed("VERS", "ION: 5.2", ".8\r", "\n", "LOG", "IN\n", "x\r", "y\r\n");
+		assertEquals(Arrays.asList("VERSION: 5.2.8", "LOGIN", "x", "y"), lines);
+	}
+
+	public void testCrAtEndOfChunkThenLfStartsNoEmptyLine() {
+		feed("first\r", "\nsecond\r", "\n");
+		assertEquals(Arrays.asList("first", "second"), lines);
+		// a second CR is a real (empty) line, not half of CRLF
+		feed("third\r", "\r\n");
+		assertEquals(Arrays.asList("first", "second", "third", ""), lines);
+	}
+
+	public void testPartialLineWaitsForTerminator() {
+		feed("no terminator yet");
+		assertTrue(lines.isEmpty());
+		feed("\n");
+		assertEquals(Arrays.asList("no terminator yet"), lines);
+	}
+
+	public void testOverlongLineIsTruncatedAndCounted() {
+		int max = framer.getMaxLineLength();
+		char[] big = new char[max + 100];
+		Arrays.fill(big, 'x');
+		String line = new String(big);
+		// overflow spread over two chunks, terminator in a third
+		feed(line.substring(0, max - 10), line.substring(max - 10), "\r\nnext\n");
+		assertEquals(2, lines.size());
+		assertEquals(line.substring(0, max), lines.get(0));
+		assertEquals("next", lines.get(1));
+		assertEquals(1, framer.getTruncatedLines());
+		assertEquals(100, framer.getDiscardedBytes());
+	}
+
+	public void testResetDropsPartialLine() {
+		feed("stale");
+		framer.reset();
+		feed("fresh\n");
+		assertEquals(Arrays.asList("fresh"), lines);
+	}
+}
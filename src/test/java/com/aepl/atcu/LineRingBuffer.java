@@ -0,0 +1,608 @@
+package com.aepl.atcu;
+
+import java.io.IOException;
+import java.nio.file.Path;
+import java.util.ArrayDeque;
+import java.util.Collection;
+import java.util.concurrent.ConcurrentLinkedQueue;
+import java.util.concurrent.CopyOnWriteArrayList;
+import java.util.concurrent.TimeUnit;
+import java.util.concurrent.atomic.AtomicLong;
+import java.util.concurrent.atomic.LongAdder;
+import java.util.concurrent.locks.LockSupport;
+import java.util.function.ToIntFunction;
+
+/**
+ * LineRingBuffer: preallocated single-producer / multi-consumer broadcast ring.
+ *
+ * The producer (the serial callback) publishes each element once into a fixed
+ * slot array; every consumer reads all elements through its own {@link Cursor},
+ * so adding a consumer costs no copy and no extra allocation per element.
+ *
+ * Each cursor is bounded both in elements (at most the ring size) and in
+ * bytes, and has its own {@link OverflowPolicy} for when it is full:
+ * <ul>
+ * <li>REJECT - the element is rejected for all consumers (counted on the
+ * ring), so nobody sees a line the others missed</li>
+ * <li>BLOCK - the producer waits until this consumer has room</li>
+ * <li>DROP_OLDEST - this consumer loses its oldest unread element</li>
+ * <li>DROP_NEWEST - this consumer gets no new elements until it has drained
+ * what it holds</li>
+ * <li>SPILL - new elements for this consumer go to an append-only disk segment
+ * and are replayed, in order, once it has drained what it holds</li>
+ * </ul>
+ * Only REJECT and BLOCK cursors can hold back the other consumers. DROP_NEWEST
+ * and SPILL cursors hold at most half the ring; when one overflows, its unread
+ * elements move out of the ring into the cursor, so the producer never waits
+ * for it and it only ever loses (or spills) new elements.
+ *
+ * Waiting consumers spin, yield or park depending on the {@link WaitStrategy}.
+ */
+public class LineRingBuffer<T> {
+
+	public enum WaitStrategy {
+		/** Lowest latency, burns a core per waiting consumer. */
+		BUSY_SPIN,
+		/** Spin with Thread.yield(); low latency, lets other threads run. */
+		YIELD,
+		/** Park until the producer signals; lowest CPU, a few µs wake-up cost. */
+		PARK
+	}
+
+	public enum OverflowPolicy {
+		/** A full cursor rejects new elements for the whole ring. */
+		REJECT,
+		/** A full cursor makes the producer wait. */
+		BLOCK,
+		/** A full cursor skips its oldest unread element; others are unaffected. */
+		DROP_OLDEST,
+		/** A full cursor skips new elements until it has drained its backlog. */
+		DROP_NEWEST,
+		/** A full cursor diverts new elements to disk and replays them later. */
+		SPILL
+	}
+
+	private static final long MAX_PARK_NANOS = TimeUnit.MILLISECONDS.toNanos(50);
+	private static final long PRODUCER_PARK_NANOS = TimeUnit.MICROSECONDS.toNanos(50);
+
+	private final Object[] slots;
+	private final int mask;
+	private final WaitStrategy waitStrategy;
+	private final ToIntFunction<? super T> sizer;
+	private final CopyOnWriteArrayList<Cursor<T>> cursors = new CopyOnWriteArrayList<>();
+	// added but not yet started: the producer starts them at its next publish
+	private final ConcurrentLinkedQueue<Cursor<T>> joining = new ConcurrentLinkedQueue<>();
+
+	// last published sequence; written by the producer only
+	private volatile long published = -1;
+	private final AtomicLong rejected = new AtomicLong();
+
+	private volatile Path spillDir;
+	private volatile SpillSegment.Codec<T> spillCodec;
+
+	/**
+	 * @param capacity rounded up to a power of two
+	 */
+	public LineRingBuffer(int capacity, WaitStrategy waitStrategy) {
+		this(capacity, waitStrategy, v -> 1);
+	}
+
+	/**
+	 * @param capacity rounded up to a power of two
+	 * @param sizer    approximate retained bytes of an element, for byte bounds
+	 */
+	public LineRingBuffer(int capacity, WaitStrategy waitStrategy, ToIntFunction<? super T> sizer) {
+		if (capacity <= 0)
+			throw new IllegalArgumentException("capacity must be > 0");
+		int size = Integer.highestOneBit(capacity);
+		if (size < capacity)
+			size <<= 1;
+		this.slots = new Object[size];
+		this.mask = size - 1;
+		this.waitStrategy = (waitStrategy == null) ? WaitStrategy.PARK : waitStrategy;
+		this.sizer = sizer;
+	}
+
+	/**
+	 * Where SPILL cursors write their segments and how elements are encoded.
+	 * Required before a SPILL cursor is added.
+	 */
+	public void setSpill(Path dir, SpillSegment.Codec<T> codec) {
+		this.spillDir = dir;
+		this.spillCodec = codec;
+	}
+
+	/**
+	 * Register a ring-sized REJECT consumer. It sees every element published
+	 * after this call (see {@link #addConsumer(String, int, long, OverflowPolicy)}).
+	 */
+	public Cursor<T> addConsumer(String name) {
+		return addConsumer(name, slots.length, Long.MAX_VALUE, OverflowPolicy.REJECT);
+	}
+
+	/**
+	 * Register a consumer that holds at most capacity unread elements (capped at
+	 * the ring size) and handles overflow according to policy.
+	 */
+	public Cursor<T> addConsumer(String name, int capacity, OverflowPolicy policy) {
+		return addConsumer(name, capacity, Long.MAX_VALUE, policy);
+	}
+
+	/**
+	 * Register a consumer that holds at most capacity unread elements (capped at
+	 * the ring size; at most half of it for DROP_NEWEST and SPILL) and at most
+	 * maxBytes unread bytes, and handles overflow according to policy.
+	 *
+	 * Safe while the producer runs: the cursor is started by the producer
+	 * itself, at the first publish that begins after this call, so its start
+	 * sequence and byte count agree with what it is delivered. Until then it
+	 * reads nothing.
+	 */
+	public Cursor<T> addConsumer(String name, int capacity, long maxBytes, OverflowPolicy policy) {
+		if (capacity <= 0 || maxBytes <= 0)
+			throw new IllegalArgumentException("capacity and maxBytes must be > 0");
+		OverflowPolicy p = (policy == null) ? OverflowPolicy.REJECT : policy;
+		if ((p == OverflowPolicy.DROP_NEWEST || p == OverflowPolicy.SPILL) && capacity > slots.length / 2)
+			throw new IllegalArgumentException(
+					p + " capacity " + capacity + " exceeds half the ring (" + slots.length / 2 + ")");
+		if (p == OverflowPolicy.SPILL && (spillDir == null || spillCodec == null))
+			throw new IllegalStateException("SPILL policy needs setSpill(dir, codec) first");
+		Cursor<T> c = new Cursor<>(this, name, Math.min(capacity, slots.length), maxBytes, p);
+		joining.add(c);
+		return c;
+	}
+
+	// producer only: start cursors added since the last publish at seq
+	private void join(long seq) {
+		Cursor<T> c;
+		while ((c = joining.poll()) != null) {
+			c.next.set(seq);
+			cursors.add(c);
+			// closed while joining: close() may have missed it in cursors
+			if (c.closed)
+				cursors.remove(c);
+		}
+	}
+
+	/**
+	 * Publish one element (single producer only). Returns false, without
+	 * delivering it to anyone, if a REJECT cursor is full.
+	 */
+	public boolean tryPublish(T value) {
+		long seq = published + 1;
+		if (!joining.isEmpty())
+			join(seq);
+		int size = sizer.applyAsInt(value);
+		for (Cursor<T> c : cursors) {
+			if (c.policy == OverflowPolicy.REJECT && c.isFull(seq, size)) {
+				rejected.incrementAndGet();
+				return false;
+			}
+		}
+		for (Cursor<T> c : cursors) {
+			switch (c.policy) {
+			case BLOCK:
+				c.awaitRoom(seq, size);
+				break;
+			case DROP_OLDEST:
+				c.dropOldestBefore(seq, size);
+				break;
+			case DROP_NEWEST:
+			case SPILL:
+				if (c.divert(seq, value, size))
+					continue; // not delivered to this cursor through the ring
+				break;
+			default:
+				break;
+			}
+			c.pendingBytes.addAndGet(size);
+		}
+		slots[(int) (seq & mask)] = value;
+		published = seq;
+		if (waitStrategy == WaitStrategy.PARK) {
+			for (Cursor<T> c : cursors) {
+				Thread w = c.waiter;
+				if (w != null)
+					LockSupport.unpark(w);
+			}
+		}
+		return true;
+	}
+
+	@SuppressWarnings("unchecked")
+	private T slotValue(long seq) {
+		return (T) slots[(int) (seq & mask)];
+	}
+
+	private void producerPause() {
+		switch (waitStrategy) {
+		case BUSY_SPIN:
+			break;
+		case YIELD:
+			Thread.yield();
+			break;
+		default:
+			LockSupport.parkNanos(this, PRODUCER_PARK_NANOS);
+			break;
+		}
+	}
+
+	public int getCapacity() {
+		return slots.length;
+	}
+
+	public WaitStrategy getWaitStrategy() {
+		return waitStrategy;
+	}
+
+	/** Sequence of the last published element (-1 if none). */
+	public long getPublishedSequence() {
+		return published;
+	}
+
+	/** Elements rejected because a REJECT consumer was full. */
+	public long getRejected() {
+		return rejected.get();
+	}
+
+	/** Largest lag over all consumers. */
+	public long getMaxLag() {
+		long max = 0;
+		for (Cursor<T> c : cursors)
+			max = Math.max(max, c.lag());
+		return max;
+	}
+
+	/**
+	 * One consumer's read position. Normally used by a single thread; concurrent
+	 * readers of the same cursor are safe, each element then goes to one of them.
+	 */
+	public static final class Cursor<T> {
+		// above any sequence: nothing to read, no lag
+		private static final long NOT_STARTED = Long.MAX_VALUE;
+
+		private final LineRingBuffer<T> ring;
+		private final String name;
+		private final int capacity;
+		private final long maxBytes;
+		private final OverflowPolicy policy;
+		// next sequence to read from the ring; NOT_STARTED until the producer
+		// starts the cursor
+		private final AtomicLong next = new AtomicLong(NOT_STARTED);
+		private final AtomicLong pendingBytes = new AtomicLong();
+		// bumped by the publisher and the reader (spill), summed only on read
+		private final LongAdder dropped = new LongAdder();
+		private final AtomicLong blockedNanos = new AtomicLong();
+		private volatile Thread waiter;
+		private volatile long maxLag;
+		private volatile boolean closed;
+
+		// DROP_NEWEST / SPILL overflow state, guarded by overflowLock: ring
+		// elements from overflowFrom on are not read from the ring; the unread
+		// ones before the overflow are moved into backlog, so the ring can wrap
+		// over them; once backlog (and the spill) is drained the reader resumes
+		// after lastDiverted
+		private final Object overflowLock = new Object();
+		private volatile long overflowFrom = -1;
+		private final ArrayDeque<T> backlog = new ArrayDeque<>();
+		private volatile int backlogSize;
+		private long lastDiverted;
+		private SpillSegment<T> spill;
+		private long spilled;
+		private long spillErrors;
+
+		Cursor(LineRingBuffer<T> ring, String name, int capacity, long maxBytes, OverflowPolicy policy) {
+			this.ring = ring;
+			this.name = name;
+			this.capacity = capacity;
+			this.maxBytes = maxBytes;
+			this.policy = policy;
+		}
+
+		public String getName() {
+			return name;
+		}
+
+		public int getCapacity() {
+			return capacity;
+		}
+
+		public long getMaxBytes() {
+			return maxBytes;
+		}
+
+		public OverflowPolicy getPolicy() {
+			return policy;
+		}
+
+		// --- producer side ---
+
+		boolean isFull(long seq, int size) {
+			return seq - next.get() >= capacity || pendingBytes.get() + size > maxBytes;
+		}
+
+		void awaitRoom(long seq, int size) {
+			if (!isFull(seq, size))
+				return;
+			long start = System.nanoTime();
+			// an element larger than maxBytes on its own is let through once empty
+			while (!closed && isFull(seq, size) && seq > next.get())
+				ring.producerPause();
+			blockedNanos.addAndGet(System.nanoTime() - start);
+		}
+
+		/**
+		 * Make room for sequence seq by skipping the oldest unread elements. Races
+		 * with readers are settled by the CAS on next.
+		 */
+		void dropOldestBefore(long seq, int size) {
+			long n;
+			while ((n = next.get()) < seq && isFull(seq, size)) {
+				T victim = ring.slotValue(n);
+				if (next.compareAndSet(n, n + 1)) {
+					pendingBytes.addAndGet(-ring.sizer.applyAsInt(victim));
+					dropped.increment();
+				}
+			}
+		}
+
+		/**
+		 * DROP_NEWEST / SPILL: decide whether seq bypasses the ring for this
+		 * cursor. Lock-free unless the cursor is full or already overflowing.
+		 */
+		boolean divert(long seq, T value, int size) {
+			if (overflowFrom < 0 && !isFull(seq, size))
+				return false;
+			synchronized (overflowLock) {
+				if (overflowFrom < 0) {
+					if (!isFull(seq, size))
+						return false;
+					overflowFrom = next.get();
+					moveBacklog(seq);
+					if (policy == OverflowPolicy.SPILL)
+						openSpill();
+				}
+				lastDiverted = seq;
+				if (spill == null) {
+					// DROP_NEWEST, or no spill segment could be opened
+					dropped.increment();
+					return true;
+				}
+				try {
+					spill.append(value);
+					spilled++;
+				} catch (IOException e) {
+					spillErrors++;
+					dropped.increment();
+				}
+				return true;
+			}
+		}
+
+		private void openSpill() {
+			try {
+				spill = new SpillSegment<>(ring.spillDir, name, ring.spillCodec);
+			} catch (IOException e) {
+				spillErrors++;
+			}
+		}
+
+		/**
+		 * Overflow starts at seq: take the unread elements [next, seq) out of the
+		 * ring (at most capacity, so none is overwritten yet). Races with a
+		 * reader are settled by the CAS on next; once overflowFrom is set the
+		 * reader takes anything above next from here, in order.
+		 */
+		private void moveBacklog(long seq) {
+			long n;
+			while ((n = next.get()) < seq) {
+				T v = ring.slotValue(n);
+				if (next.compareAndSet(n, n + 1)) {
+					backlog.addLast(v);
+					backlogSize++;
+				}
+			}
+		}
+
+		// --- consumer side ---
+
+		/** Next element, or null if none is available. */
+		public T poll() {
+			while (true) {
+				long n = next.get();
+				long of = overflowFrom;
+				if (of >= 0 && n >= of) {
+					T v = pollOverflow();
+					if (v != null)
+						return v;
+					continue; // rejoined the ring
+				}
+				long avail = ring.published;
+				if (n > avail)
+					return null;
+				long lag = avail - n + 1;
+				if (lag > maxLag)
+					maxLag = lag;
+				T value = ring.slotValue(n);
+				if (next.compareAndSet(n, n + 1)) {
+					pendingBytes.addAndGet(-ring.sizer.applyAsInt(value));
+					return value;
+				}
+			}
+		}
+
+		/**
+		 * Overflowing: the moved backlog first, then spilled elements, then
+		 * rejoin the ring after the last diverted sequence.
+		 */
+		private T pollOverflow() {
+			synchronized (overflowLock) {
+				if (overflowFrom < 0)
+					return null;
+				T b = backlog.pollFirst();
+				if (b != null) {
+					backlogSize--;
+					pendingBytes.addAndGet(-ring.sizer.applyAsInt(b));
+					return b;
+				}
+				if (spill != null) {
+					try {
+						T v = spill.readNext();
+						if (v == null) {
+							spill.flush();
+							v = spill.readNext();
+						}
+						if (v != null)
+							return v;
+					} catch (IOException e) {
+						spillErrors++;
+						dropped.add(spill.pending());
+					}
+					spill.close();
+					spill = null;
+				}
+				next.set(lastDiverted + 1);
+				overflowFrom = -1;
+				return null;
+			}
+		}
+
+		/** Next element, waiting according to the ring's wait strategy. */
+		public T take() throws InterruptedException {
+			T v;
+			while ((v = poll()) == null)
+				await(Long.MAX_VALUE);
+			return v;
+		}
+
+		/** Next element, or null if none arrives within the timeout. */
+		public T poll(long timeout, TimeUnit unit) throws InterruptedException {
+			T v = poll();
+			if (v != null)
+				return v;
+			long deadline = System.nanoTime() + unit.toNanos(timeout);
+			while (true) {
+				long remaining = deadline - System.nanoTime();
+				if (remaining <= 0)
+					return null;
+				await(remaining);
+				if ((v = poll()) != null)
+					return v;
+			}
+		}
+
+		/**
+		 * Move up to max available elements into the collection without waiting.
+		 * Returns the number moved.
+		 */
+		public int drainTo(Collection<? super T> sink, int max) {
+			int count = 0;
+			T v;
+			while (count < max && (v = poll()) != null) {
+				sink.add(v);
+				count++;
+			}
+			return count;
+		}
+
+		/**
+		 * Discard everything published so far, including anything spilled; the
+		 * next read returns the next element published after this call.
+		 */
+		public void skipToEnd() {
+			long target = ring.published + 1;
+			synchronized (overflowLock) {
+				clearBacklog();
+				if (spill != null) {
+					spill.close();
+					spill = null;
+				}
+			}
+			// consume rather than jump, so the byte accounting stays right
+			while (next.get() < target && poll() != null) {
+			}
+		}
+
+		// under overflowLock
+		private void clearBacklog() {
+			T b;
+			while ((b = backlog.pollFirst()) != null)
+				pendingBytes.addAndGet(-ring.sizer.applyAsInt(b));
+			backlogSize = 0;
+		}
+
+		private void await(long maxNanos) throws InterruptedException {
+			if (Thread.interrupted())
+				throw new InterruptedException();
+			switch (ring.waitStrategy) {
+			case BUSY_SPIN:
+				break;
+			case YIELD:
+				Thread.yield();
+				break;
+			default:
+				waiter = Thread.currentThread();
+				// re-check after publishing ourselves as waiter (pairs with tryPublish)
+				if (next.get() > ring.published)
+					LockSupport.parkNanos(this, Math.min(maxNanos, MAX_PARK_NANOS));
+				waiter = null;
+				break;
+			}
+		}
+
+		// --- metrics ---
+
+		/** Elements published but not yet read by this consumer. */
+		public long lag() {
+			return Math.max(0, ring.published - next.get() + 1) + backlogSize;
+		}
+
+		/** Highest lag seen by this consumer when reading. */
+		public long getMaxLag() {
+			return maxLag;
+		}
+
+		/** Bytes (as measured by the ring's sizer) held in the ring for this consumer. */
+		public long getPendingBytes() {
+			return pendingBytes.get();
+		}
+
+		/** Elements this consumer lost (DROP_OLDEST, DROP_NEWEST, spill errors). */
+		public long getDropped() {
+			return dropped.sum();
+		}
+
+		/** Elements written to this consumer's spill segments. */
+		public long getSpilled() {
+			synchronized (overflowLock) {
+				return spilled;
+			}
+		}
+
+		/** Spill segment I/O failures. */
+		public long getSpillErrors() {
+			synchronized (overflowLock) {
+				return spillErrors;
+			}
+		}
+
+		/** Time the producer spent waiting for this (BLOCK) consumer. */
+		public long getBlockedNanos() {
+			return blockedNanos.get();
+		}
+
+		/** Stop consuming; the cursor no longer holds back the producer. */
+		public void close() {
+			closed = true;
+			ring.joining.remove(this);
+			ring.cursors.remove(this);
+			synchronized (overflowLock) {
+				clearBacklog();
+				if (spill != null) {
+					spill.close();
+					spill = null;
+				}
+			}
+		}
+	}
+}
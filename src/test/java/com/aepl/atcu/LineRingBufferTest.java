@@ -0,0 +1,283 @@
+package com.aepl.atcu;
+
+import java.io.DataInput;
+import java.io.DataOutput;
+import java.io.IOException;
+import java.nio.file.Files;
+import java.nio.file.Path;
+import java.util.ArrayList;
+import java.util.List;
+import java.util.concurrent.TimeUnit;
+import java.util.stream.Stream;
+
+import junit.framework.TestCase;
+
+/**
+ * LineRingBufferTest: broadcast to every cursor, every overflow policy with
+ * the reader stalled for longer than the ring is long, and consumers added
+ * while the producer runs.
+ */
+public class LineRingBufferTest extends TestCase {
+
+	private static final SpillSegment.Codec<Integer> INT_CODEC = new SpillSegment.Codec<Integer>() {
+		@Override
+		public void write(DataOutput out, Integer value) throws IOException {
+			out.writeInt(value);
+		}
+
+		@Override
+		public Integer read(DataInput in) throws IOException {
+			return in.readInt();
+		}
+	};
+
+	private Path spillDir;
+
+	@Override
+	protected void setUp() throws IOException {
+		spillDir = Files.createTempDirectory("ring-test");
+	}
+
+	@Override
+	protected void tearDown() throws IOException {
+		try (Stream<Path> files = Files.list(spillDir)) {
+			for (Object f : files.toArray())
+				Files.deleteIfExists((Path) f);
+		}
+		Files.deleteIfExists(spillDir);
+	}
+
+	private static LineRingBuffer<Integer> ring(int capacity) {
+		return new LineRingBuffer<>(capacity, LineRingBuffer.WaitStrategy.PARK);
+	}
+
+	private static List<Integer> drain(LineRingBuffer.Cursor<Integer> c) {
+		List<Integer> out = new ArrayList<>();
+		Integer v;
+		while ((v = c.poll()) != null)
+			out.add(v);
+		return out;
+	}
+
+	private static List<Integer> range(int from, int to) {
+		List<Integer> out = new ArrayList<>();
+		for (int i = from; i < to; i++)
+			out.add(i);
+		return out;
+	}
+
+	/** Publish from another thread; fails if the producer is still stuck after 5 s. */
+	private static void publishAll(LineRingBuffer<Integer> ring, int from, int to) throws InterruptedException {
+		Thread producer = new Thread(() -> {
+			for (int i = from; i < to; i++)
+				ring.tryPublish(i);
+		}, "test-producer");
+		producer.start();
+		producer.join(5000);
+		assertFalse("producer blocked", producer.isAlive());
+	}
+
+	public void testEveryCursorSeesEveryElement() {
+		LineRingBuffer<Integer> ring = ring(16);
+		LineRingBuffer.Cursor<Integer> a = ring.addConsumer("a");
+		LineRingBuffer.Cursor<Integer> b = ring.addConsumer("b");
+		for (int i = 0; i < 10; i++)
+			assertTrue(ring.tryPublish(i));
+		assertEquals(range(0, 10), drain(a));
+		assertEquals(10, b.lag());
+		assertEquals(range(0, 10), drain(b));
+		assertEquals(0, b.lag());
+	}
+
+	public void testFullRingRejectsForEveryConsumer() {
+		LineRingBuffer<Integer> ring = ring(16);
+		LineRingBuffer.Cursor<Integer> fast = ring.addConsumer("fast");
+		LineRingBuffer.Cursor<Integer> slow = ring.addConsumer("slow");
+		for (int i = 0; i < 20; i++) {
+			boolean accepted = ring.tryPublish(i);
+			assertEquals(i < 16, accepted);
+			drain(fast);
+		}
+		assertEquals(4, ring.getRejected());
+		assertEquals(range(0, 16), drain(slow));
+		slow.close();
+		assertTrue(ring.tryPublish(99));
+		assertEquals(99, (int) fast.poll());
+	}
+
+	public void testRejectDropsElementForEveryConsumer() {
+		LineRingBuffer<Integer> ring = ring(16);
+		LineRingBuffer.Cursor<Integer> strict = ring.addConsumer("strict", 4, LineRingBuffer.OverflowPolicy.REJECT);
+		LineRingBuffer.Cursor<Integer> other = ring.addConsumer("other", 16, LineRingBuffer.OverflowPolicy.REJECT);
+		for (int i = 0; i < 4; i++)
+			assertTrue(ring.tryPublish(i));
+		assertFalse(ring.tryPublish(4));
+		assertEquals(1, ring.getRejected());
+		assertEquals(range(0, 4), drain(strict));
+		assertEquals(range(0, 4), drain(other));
+		assertTrue(ring.tryPublish(5));
+		assertEquals(Integer.valueOf(5), strict.poll());
+	}
+
+	public void testBlockPacesProducerAndLosesNothing() throws InterruptedException {
+		LineRingBuffer<Integer> ring = ring(8);
+		LineRingBuffer.Cursor<Integer> c = ring.addConsumer("block", 2, LineRingBuffer.OverflowPolicy.BLOCK);
+		Thread producer = new Thread(() -> {
+			for (int i = 0; i < 100; i++)
+				ring.tryPublish(i);
+		});
+		producer.start();
+		List<Integer> got = new ArrayList<>();
+		while (got.size() < 100) {
+			Integer v = c.poll(5, TimeUnit.SECONDS);
+			assertNotNull(v);
+			got.add(v);
+		}
+		producer.join(5000);
+		assertEquals(range(0, 100), got);
+		assertEquals(0, c.getDropped());
+		assertEquals(0, c.getPendingBytes());
+	}
+
+	public void testDropOldestKeepsNewest() throws InterruptedException {
+		LineRingBuffer<Integer> ring = ring(16);
+		LineRingBuffer.Cursor<Integer> c = ring.addConsumer("oldest", 4, LineRingBuffer.OverflowPolicy.DROP_OLDEST);
+		publishAll(ring, 0, 100);
+		assertEquals(range(96, 100), drain(c));
+		assertEquals(96, c.getDropped());
+		assertEquals(0, c.getPendingBytes());
+	}
+
+	public void testDropOldestHonoursByteBound() {
+		LineRingBuffer<Integer> ring = new LineRingBuffer<>(16, LineRingBuffer.WaitStrategy.PARK, v -> 10);
+		LineRingBuffer.Cursor<Integer> c = ring.addConsumer("bytes", 16, 30, LineRingBuffer.OverflowPolicy.DROP_OLDEST);
+		for (int i = 0; i < 10; i++)
+			ring.tryPublish(i);
+		assertEquals(30, c.getPendingBytes());
+		assertEquals(range(7, 10), drain(c));
+	}
+
+	public void testDropNewestKeepsBacklogPastRingWrap() throws InterruptedException {
+		LineRingBuffer<Integer> ring = ring(16);
+		LineRingBuffer.Cursor<Integer> c = ring.addConsumer("newest", 4, LineRingBuffer.OverflowPolicy.DROP_NEWEST);
+		// the ring wraps many times while the reader is stalled
+		publishAll(ring, 0, 100);
+		assertEquals(100, c.lag());
+		assertEquals(range(0, 4), drain(c));
+		// only the new elements were dropped, each once
+		assertEquals(96, c.getDropped());
+		publishAll(ring, 100, 103);
+		assertEquals(range(100, 103), drain(c));
+		assertEquals(0, c.getPendingBytes());
+	}
+
+	public void testSpillNeverBlocksProducerAndReplaysInOrder() throws InterruptedException {
+		LineRingBuffer<Integer> ring = ring(16);
+		ring.setSpill(spillDir, INT_CODEC);
+		LineRingBuffer.Cursor<Integer> c = ring.addConsumer("spill", 8, LineRingBuffer.OverflowPolicy.SPILL);
+		LineRingBuffer.Cursor<Integer> fast = ring.addConsumer("fast", 16,
+				LineRingBuffer.OverflowPolicy.DROP_OLDEST);
+		publishAll(ring, 0, 1000);
+		assertEquals(0, c.getBlockedNanos());
+		assertEquals(992, c.getSpilled());
+		assertEquals(range(984, 1000), drain(fast));
+		// interleave new publishes with the replay
+		List<Integer> got = new ArrayList<>();
+		for (int i = 0; i < 500; i++)
+			got.add(c.poll());
+		publishAll(ring, 1000, 1010);
+		got.addAll(drain(c));
+		assertEquals(range(0, 1010), got);
+		assertEquals(0, c.getDropped());
+		assertEquals(0, c.getPendingBytes());
+	}
+
+	public void testSpillWithConcurrentReaderLosesAndReordersNothing() throws InterruptedException {
+		LineRingBuffer<Integer> ring = ring(64);
+		ring.setSpill(spillDir, INT_CODEC);
+		LineRingBuffer.Cursor<Integer> c = ring.addConsumer("spill", 32, LineRingBuffer.OverflowPolicy.SPILL);
+		int n = 200_000;
+		Thread producer = new Thread(() -> {
+			for (int i = 0; i < n; i++)
+				ring.tryPublish(i);
+		});
+		producer.start();
+		// let it overflow before reading; after that both sides race
+		while (c.getSpilled() == 0)
+			Thread.sleep(1);
+		for (int i = 0; i < n; i++) {
+			Integer v = c.poll(5, TimeUnit.SECONDS);
+			assertEquals(Integer.valueOf(i), v);
+		}
+		producer.join(5000);
+		assertTrue("reader never fell behind", c.getSpilled() > 0);
+		assertEquals(0, c.getDropped());
+		assertEquals(0, c.getPendingBytes());
+	}
+
+	public void testSpillAndDropNewestLimitedToHalfTheRing() {
+		LineRingBuffer<Integer> ring = ring(16);
+		ring.setSpill(spillDir, INT_CODEC);
+		try {
+			ring.addConsumer("spill", 9, LineRingBuffer.OverflowPolicy.SPILL);
+			fail();
+		} catch (IllegalArgumentException expected) {
+		}
+		try {
+			ring.addConsumer("newest", 16, LineRingBuffer.OverflowPolicy.DROP_NEWEST);
+			fail();
+		} catch (IllegalArgumentException expected) {
+		}
+		assertEquals(8, ring.addConsumer("ok", 8, LineRingBuffer.OverflowPolicy.SPILL).getCapacity());
+	}
+
+	public void testConsumerAddedWhilePublishingSeesOnlyLaterElements() throws InterruptedException {
+		LineRingBuffer<Integer> ring = ring(1024);
+		assertNull(ring.addConsumer("idle", 16, LineRingBuffer.OverflowPolicy.DROP_OLDEST).poll());
+		int n = 200_000;
+		Thread producer = new Thread(() -> {
+			for (int i = 0; i < n; i++)
+				ring.tryPublish(i);
+		});
+		producer.start();
+		List<LineRingBuffer.Cursor<Integer>> late = new ArrayList<>();
+		List<Long> addedAfter = new ArrayList<>();
+		while (producer.isAlive() && late.size() < 50) {
+			addedAfter.add(ring.getPublishedSequence());
+			late.add(ring.addConsumer("late", 1024, LineRingBuffer.OverflowPolicy.DROP_OLDEST));
+		}
+		producer.join(5000);
+		ring.tryPublish(n);
+		for (int k = 0; k < late.size(); k++) {
+			LineRingBuffer.Cursor<Integer> c = late.get(k);
+			List<Integer> got = drain(c);
+			assertFalse(got.isEmpty());
+			assertTrue(got.get(0) > addedAfter.get(k));
+			for (int i = 1; i < got.size(); i++)
+				assertEquals(got.get(i - 1) + 1, (int) got.get(i));
+			assertEquals(n, (int) got.get(got.size() - 1));
+			// every counted element was delivered, nothing else
+			assertEquals(0, c.getPendingBytes());
+		}
+	}
+
+	public void testCursorClosedBeforeJoiningNeverHoldsBackProducer() {
+		LineRingBuffer<Integer> ring = ring(16);
+		ring.addConsumer("never-read").close();
+		for (int i = 0; i < 40; i++)
+			assertTrue(ring.tryPublish(i));
+		assertEquals(0, ring.getRejected());
+	}
+
+	public void testSkipToEndDiscardsBacklogAndSpill() throws InterruptedException {
+		LineRingBuffer<Integer> ring = ring(16);
+		ring.setSpill(spillDir, INT_CODEC);
+		LineRingBuffer.Cursor<Integer> c = ring.addConsumer("spill", 8, LineRingBuffer.OverflowPolicy.SPILL);
+		publishAll(ring, 0, 50);
+		c.skipToEnd();
+		assertNull(c.poll());
+		assertEquals(0, c.getPendingBytes());
+		publishAll(ring, 50, 52);
+		assertEquals(range(50, 52), drain(c));
+	}
+}
@@ -0,0 +1,195 @@
+package com.aepl.atcu;
+
+import java.io.IOException;
+import java.nio.ByteBuffer;
+import java.nio.charset.StandardCharsets;
+import java.nio.file.Path;
+import java.util.ArrayList;
+import java.util.List;
+import java.util.concurrent.TimeUnit;
+
+import org.apache.logging.log4j.LogManager;
+import org.apache.logging.log4j.Logger;
+
+/**
+ * LogFileSink: group-commit writer for serial-stream.log.
+ *
+ * Drains up to batchSize lines at a time from its own ring cursor, encodes
+ * them into one direct buffer and hands that to its {@link LogOutput} (a plain
+ * file channel or a {@link RollingMappedLog}) when the buffer reaches
+ * flushBytes or the oldest buffered line is flushInterval old.
+ * fsync is optional (see {@link FsyncPolicy}). Console output is a separate
+ * sink with its own cursor, so a slow terminal never delays the file.
+ */
+public class LogFileSink implements Runnable {
+
+	private static final Logger LOG = LogManager.getLogger(LogFileSink.class);
+
+	public enum FsyncPolicy {
+		/** Leave durability to the OS (default). */
+		NONE,
+		/** force() after every write. */
+		EVERY_WRITE,
+		/** force() at most once per fsync interval. */
+		INTERVAL
+	}
+
+	public static final int DEFAULT_BATCH_SIZE = 1024;
+	public static final int DEFAULT_FLUSH_BYTES = 64 * 1024;
+	public static final long DEFAULT_FLUSH_INTERVAL_NANOS = TimeUnit.MILLISECONDS.toNanos(5);
+	public static final long DEFAULT_FSYNC_INTERVAL_NANOS = TimeUnit.SECONDS.toNanos(1);
+
+	private static final byte[] NEWLINE = System.lineSeparator().getBytes(StandardCharsets.UTF_8);
+
+	private final LineRingBuffer.Cursor<SerialLine> cursor;
+	private final LogOutput output;
+	private final int batchSize;
+	private final long flushIntervalNanos;
+	private final FsyncPolicy fsyncPolicy;
+	private final long fsyncIntervalNanos;
+
+	private final ByteBuffer buffer;
+	private final LogLineFormatter formatter = new LogLineFormatter();
+	private final List<SerialLine> batch = new ArrayList<>();
+	private long firstBufferedNanos;
+	private long lastFsyncNanos;
+
+	// stats (written by the sink thread only)
+	private volatile long linesWritten;
+	private volatile long bytesWritten;
+	private volatile long writes;
+
+	public LogFileSink(LineRingBuffer.Cursor<SerialLine> cursor, Path file) {
+		this(cursor, new LogOutput.ChannelOutput(file));
+	}
+
+	public LogFileSink(LineRingBuffer.Cursor<SerialLine> cursor, LogOutput output) {
+		this(cursor, output, DEFAULT_BATCH_SIZE, DEFAULT_FLUSH_BYTES, DEFAULT_FLUSH_INTERVAL_NANOS, FsyncPolicy.NONE,
+				DEFAULT_FSYNC_INTERVAL_NANOS);
+	}
+
+	public LogFileSink(LineRingBuffer.Cursor<SerialLine> cursor, LogOutput output, int batchSize, int flushBytes,
+			long flushIntervalNanos, FsyncPolicy fsyncPolicy, long fsyncIntervalNanos) {
+		this.cursor = cursor;
+		this.output = output;
+		this.batchSize = batchSize;
+		this.buffer = ByteBuffer.allocateDirect(flushBytes);
+		this.flushIntervalNanos = flushIntervalNanos;
+		this.fsyncPolicy = (fsyncPolicy == null) ? FsyncPolicy.NONE : fsyncPolicy;
+		this.fsyncIntervalNanos = fsyncIntervalNanos;
+	}
+
+	@Override
+	public void run() {
+		try {
+			while (!Thread.currentThread().isInterrupted()) {
+				if (buffer.position() == 0) {
+					SerialLine first = cursor.take();
+					batch.add(first);
+				} else {
+					long wait = flushIntervalNanos - (System.nanoTime() - firstBufferedNanos);
+					SerialLine first = (wait > 0) ? cursor.poll(wait, TimeUnit.NANOSECONDS) : null;
+					if (first == null) {
+						flush();
+						continue;
+					}
+					batch.add(first);
+				}
+				cursor.drainTo(batch, batchSize - 1);
+				for (SerialLine line : batch)
+					append(line);
+				batch.clear();
+				if (System.nanoTime() - firstBufferedNanos >= flushIntervalNanos)
+					flush();
+			}
+		} catch (InterruptedException e) {
+			Thread.currentThread().interrupt();
+		} catch (IOException ioe) {
+			LOG.error("Serial log write failed", ioe);
+		} finally {
+			close();
+		}
+	}
+
+	private void append(SerialLine line) throws IOException {
+		if (buffer.position() == 0)
+			firstBufferedNanos = System.nanoTime();
+		ByteBuffer bytes = formatter.encode(line);
+		if (buffer.remaining() < bytes.remaining() + NEWLINE.length)
+			flush();
+		while (bytes.remaining() > buffer.remaining()) {
+			// longer than the whole buffer: write it out in pieces
+			int limit = bytes.limit();
+			bytes.limit(bytes.position() + buffer.remaining());
+			buffer.put(bytes);
+			bytes.limit(limit);
+			flush();
+			firstBufferedNanos = System.nanoTime();
+		}
+		buffer.put(bytes);
+		if (buffer.remaining() < NEWLINE.length)
+			flush();
+		buffer.put(NEWLINE);
+		linesWritten++;
+		if (buffer.remaining() == 0)
+			flush();
+	}
+
+	/**
+	 * Hand the buffered bytes to the output in one write and apply the fsync
+	 * policy.
+	 */
+	private void flush() throws IOException {
+		if (buffer.position() == 0)
+			return;
+		buffer.flip();
+		bytesWritten += buffer.remaining();
+		output.write(buffer);
+		buffer.clear();
+		writes++;
+		long now = System.nanoTime();
+		if (fsyncPolicy == FsyncPolicy.EVERY_WRITE
+				|| (fsyncPolicy == FsyncPolicy.INTERVAL && now - lastFsyncNanos >= fsyncIntervalNanos)) {
+			output.force();
+			lastFsyncNanos = now;
+		}
+	}
+
+	private void close() {
+		// stop() interrupts this thread; an interrupted thread cannot use a
+		// FileChannel (ClosedByInterruptException), so finish with the flag clear
+		boolean interrupted = Thread.interrupted();
+		try {
+			// whatever is still queued goes out with the final write
+			batch.clear();
+			cursor.drainTo(batch, Integer.MAX_VALUE);
+			for (SerialLine line : batch)
+				append(line);
+			flush();
+			if (fsyncPolicy != FsyncPolicy.NONE)
+				output.force();
+		} catch (IOException e) {
+			LOG.error("Serial log final flush failed", e);
+		}
+		try {
+			output.close();
+		} catch (IOException e) {
+			LOG.error("Failed to close serial log", e);
+		}
+		if (interrupted)
+			Thread.currentThread().interrupt();
+	}
+
+	public long getLinesWritten() {
+		return linesWritten;
+	}
+
+	public long getBytesWritten() {
+		return bytesWritten;
+	}
+
+	/** Output write batches so far (lines per write = lines / writes). */
+	public long getWrites() {
+		return writes;
+	}
+}
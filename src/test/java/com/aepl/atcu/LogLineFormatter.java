@@ -0,0 +1,214 @@
+package com.aepl.atcu;
+
+import java.nio.ByteBuffer;
+
+/**
+ * LogLineFormatter: renders a SerialLine as the aligned serial-stream.log /
+ * console text: timestamp (27), level (6), [tag] (12), message.
+ *
+ * Level ("ABC:" at the start of the payload) and tag ("[...]" after it) are
+ * found with one character scan that gives the same split as the LOG_PARSE
+ * regex the sinks used before, and the padded columns are written straight
+ * into a reusable StringBuilder or UTF-8 byte buffer, so formatting a line
+ * allocates nothing. Text is only produced here, by the sink that prints it.
+ * A message containing a line terminator, which LOG_PARSE did not match, is
+ * written unformatted after the timestamp, as it was then.
+ *
+ * Holds a TimestampEncoder and scratch buffers, so use one instance per sink
+ * thread.
+ */
+public class LogLineFormatter {
+
+	private static final int LEVEL_WIDTH = 6;
+	private static final int TAG_WIDTH = 12;
+	// timestamp, three separators, level and tag columns
+	private static final int COLUMNS_LENGTH = TimestampEncoder.LENGTH + 3 + LEVEL_WIDTH + TAG_WIDTH;
+
+	private final TimestampEncoder timestampEncoder = new TimestampEncoder();
+	private byte[] scratch = new byte[512];
+	private ByteBuffer scratchView = ByteBuffer.wrap(scratch);
+	private final StringBuilder text = new StringBuilder(256);
+
+	// results of scan(), payload offsets
+	private int levelStart, levelEnd, tagStart, tagEnd, messageStart;
+
+	/** The formatted line as a new String. */
+	public String format(SerialLine line) {
+		text.setLength(0);
+		return formatTo(line, text).toString();
+	}
+
+	/** Append the formatted line (no line separator) to sb and return it. */
+	public StringBuilder formatTo(SerialLine line, StringBuilder sb) {
+		String p = line.getPayload();
+		char[] ts = timestampEncoder.encode(line.getEpochNanos());
+		sb.append(ts).append(' ');
+		if (!scan(p))
+			return sb.append(p);
+		int n = appendLimited(sb, p, levelStart, levelEnd, LEVEL_WIDTH);
+		pad(sb, LEVEL_WIDTH - n);
+		sb.append(' ');
+		n = 0;
+		if (tagEnd > tagStart) {
+			sb.append('[');
+			n = 1 + appendLimited(sb, p, tagStart, tagEnd, TAG_WIDTH - 1);
+			if (n < TAG_WIDTH) {
+				sb.append(']');
+				n++;
+			}
+		}
+		pad(sb, TAG_WIDTH - n);
+		sb.append(' ');
+		return sb.append(p, messageStart, p.length());
+	}
+
+	/**
+	 * Encode the formatted line (no line separator) as UTF-8, unmappable
+	 * characters as '?' like a replacing CharsetEncoder. Returns a reusable
+	 * buffer positioned over the bytes, valid until the next call.
+	 */
+	public ByteBuffer encode(SerialLine line) {
+		String p = line.getPayload();
+		boolean columns = scan(p);
+		ensureScratch(COLUMNS_LENGTH + 3 * (TAG_WIDTH + p.length()));
+		byte[] b = scratch;
+		int pos = timestampEncoder.encode(line.getEpochNanos(), b, 0);
+		b[pos++] = ' ';
+		if (!columns)
+			return view(putUtf8(p, 0, p.length(), pos));
+		// level is [A-Z]+: one byte per char
+		int n = Math.min(levelEnd - levelStart, LEVEL_WIDTH);
+		for (int i = 0; i < n; i++)
+			b[pos++] = (byte) p.charAt(levelStart + i);
+		pos = padBytes(b, pos, LEVEL_WIDTH - n);
+		b[pos++] = ' ';
+		n = 0;
+		if (tagEnd > tagStart) {
+			b[pos++] = '[';
+			int chars = Math.min(tagEnd - tagStart, TAG_WIDTH - 1);
+			pos = putUtf8(p, tagStart, tagStart + chars, pos);
+			n = 1 + chars;
+			if (n < TAG_WIDTH) {
+				b[pos++] = ']';
+				n++;
+			}
+		}
+		pos = padBytes(b, pos, TAG_WIDTH - n);
+		b[pos++] = ' ';
+		pos = putUtf8(p, messageStart, p.length(), pos);
+		return view(pos);
+	}
+
+	/**
+	 * Split the payload the way LOG_PARSE split "timestamp payload": optional
+	 * leading whitespace, an optional "LEVEL:" ([A-Z]+ directly followed by
+	 * ':') plus whitespace, an optional non-empty "[tag]" plus whitespace, then
+	 * the message. Returns false if the message has a line terminator, which
+	 * the regex's final (.*) could not match.
+	 */
+	private boolean scan(String p) {
+		int len = p.length();
+		int i = skipSpace(p, 0);
+		int j = i;
+		while (j < len && p.charAt(j) >= 'A' && p.charAt(j) <= 'Z')
+			j++;
+		if (j > i && j < len && p.charAt(j) == ':') {
+			levelStart = i;
+			levelEnd = j;
+			i = skipSpace(p, j + 1);
+		} else {
+			levelStart = levelEnd = i;
+		}
+		tagStart = tagEnd = i;
+		if (i < len && p.charAt(i) == '[') {
+			int close = p.indexOf(']', i + 1);
+			if (close > i + 1) {
+				tagStart = i + 1;
+				tagEnd = close;
+				i = skipSpace(p, close + 1);
+			}
+		}
+		messageStart = i;
+		for (; i < len; i++) {
+			char c = p.charAt(i);
+			if (c == '\n' || c == '\r' || c == '\u0085' || c == '\u2028' || c == '\u2029')
+				return false;
+		}
+		return true;
+	}
+
+	/** Skip what \s matches: [ \t\n\x0B\f\r]. */
+	private static int skipSpace(String p, int i) {
+		int len = p.length();
+		while (i < len) {
+			char c = p.charAt(i);
+			if (c != ' ' && c != '\t' && c != '\n' && c != '\u000B' && c != '\f' && c != '\r')
+				break;
+			i++;
+		}
+		return i;
+	}
+
+	private static int appendLimited(StringBuilder sb, String p, int start, int end, int max) {
+		int n = Math.min(end - start, max);
+		sb.append(p, start, start + n);
+		return n;
+	}
+
+	private static void pad(StringBuilder sb, int n) {
+		for (int i = 0; i < n; i++)
+			sb.append(' ');
+	}
+
+	private static int padBytes(byte[] b, int pos, int n) {
+		for (int i = 0; i < n; i++)
+			b[pos++] = ' ';
+		return pos;
+	}
+
+	/**
+	 * UTF-8 encode s[start, end) into scratch at pos; a surrogate without its
+	 * pair inside the range becomes '?'.
+	 */
+	private int putUtf8(CharSequence s, int start, int end, int pos) {
+		byte[] b = scratch;
+		for (int i = start; i < end; i++) {
+			char c = s.charAt(i);
+			if (c < 0x80) {
+				b[pos++] = (byte) c;
+			} else if (c < 0x800) {
+				b[pos++] = (byte) (0xC0 | (c >> 6));
+				b[pos++] = (byte) (0x80 | (c & 0x3F));
+			} else if (Character.isSurrogate(c)) {
+				char d;
+				if (Character.isHighSurrogate(c) && i + 1 < end && Character.isLowSurrogate(d = s.charAt(i + 1))) {
+					int cp = Character.toCodePoint(c, d);
+					b[pos++] = (byte) (0xF0 | (cp >> 18));
+					b[pos++] = (byte) (0x80 | ((cp >> 12) & 0x3F));
+					b[pos++] = (byte) (0x80 | ((cp >> 6) & 0x3F));
+					b[pos++] = (byte) (0x80 | (cp & 0x3F));
+					i++;
+				} else {
+					b[pos++] = '?';
+				}
+			} else {
+				b[pos++] = (byte) (0xE0 | (c >> 12));
+				b[pos++] = (byte) (0x80 | ((c >> 6) & 0x3F));
+				b[pos++] = (byte) (0x80 | (c & 0x3F));
+			}
+		}
+		return pos;
+	}
+
+	private void ensureScratch(int bytes) {
+		if (scratch.length >= bytes)
+			return;
+		scratch = new byte[Math.max(bytes, scratch.length * 2)];
+		scratchView = ByteBuffer.wrap(scratch);
+	}
+
+	private ByteBuffer view(int length) {
+		scratchView.limit(length).position(0);
+		return scratchView;
+	}
+}
@@ -0,0 +1,98 @@
+package com.aepl.atcu;
+
+import java.nio.ByteBuffer;
+import java.nio.charset.StandardCharsets;
+import java.util.Arrays;
+import java.util.Random;
+import java.util.regex.Matcher;
+import java.util.regex.Pattern;
+
+import junit.framework.TestCase;
+
+/**
+ * LogLineFormatterTest: the scanned columns against the LOG_PARSE / padRight
+ * formatting the sinks used before, as text and as UTF-8 bytes. The private
+ * formatLogLine and padRight below are that old code, kept here as the oracle.
+ */
+public class LogLineFormatterTest extends TestCase {
+
+	private static final Pattern LOG_PARSE = Pattern
+			.compile("^(\\S+)\\s*(?:([A-Z]+):\\s*)?(?:\\s*\\[([^\\]]+)\\]\\s*)?(.*)$");
+
+	private static final String[] PIECES = { " ", "  ", "\t", "\u000B", "INFO:", "E:", "ABC", "abc:", ":", "[", "]",
+			"[]", "[tag]", "[a-very-long-tag]", "[ta\u00E9g]", "msg", "x", "\u00E9", "\u20AC", "\uD83D\uDE00", "\uD83D",
+			"\uDE00", "\n", "\r" };
+
+	private static String formatLogLine(String raw) {
+		Matcher m = LOG_PARSE.matcher(raw);
+		if (!m.matches())
+			return raw;
+		String ts = safeOrEmpty(m.group(1));
+		String level = safeOrEmpty(m.group(2));
+		String tag = safeOrEmpty(m.group(3));
+		String msg = safeOrEmpty(m.group(4));
+		String tagOut = tag.isEmpty() ? "" : "[" + tag + "]";
+		return String.format("%s %s %s %s", padRight(ts, 27), padRight(level, 6), padRight(tagOut, 12), msg);
+	}
+
+	private static String safeOrEmpty(String s) {
+		return (s == null) ? "" : s;
+	}
+
+	private static String padRight(String s, int width) {
+		if (s.length() >= width)
+			return s.substring(0, width);
+		StringBuilder sb = new StringBuilder(s);
+		while (sb.length() < width)
+			sb.append(' ');
+		return sb.toString();
+	}
+
+	private static void assertSameAsRegex(LogLineFormatter formatter, TimestampEncoder ts, long epochNanos,
+			String payload) {
+		SerialLine line = new SerialLine(epochNanos, 0, "COM1", 1, payload);
+		String expected = formatLogLine(ts.format(epochNanos) + " " + payload);
+		assertEquals(expected, formatter.format(line));
+		StringBuilder sb = new StringBuilder("> ");
+		assertEquals("> " + expected, formatter.formatTo(line, sb).toString());
+		ByteBuffer bytes = formatter.encode(line);
+		byte[] actual = Arrays.copyOfRange(bytes.array(), bytes.position(), bytes.limit());
+		assertTrue(expected, Arrays.equals(expected.getBytes(StandardCharsets.UTF_8), actual));
+	}
+
+	public void testTypicalLines() {
+		LogLineFormatter formatter = new LogLineFormatter();
+		TimestampEncoder ts = new TimestampEncoder();
+		long now = TimestampEncoder.nowEpochNanos();
+		String[] payloads = { "INFO: [GPS] fix acquired", "ERROR:[MODEM]  no carrier", "plain text", "",
+				"  WARN:   [x]   padded", "DEBUG: [averyveryverylongtag] truncated", "[tag] no level",
+				"Info: not a level", "INFO: [] empty tag", "INFO: [unclosed tag", "INFO: caf\u00E9 \uD83D\uDE00",
+				"INFO: line\rbreak" };
+		for (String p : payloads)
+			assertSameAsRegex(formatter, ts, now, p);
+	}
+
+	public void testRandomPayloadsMatchRegex() {
+		LogLineFormatter formatter = new LogLineFormatter();
+		TimestampEncoder ts = new TimestampEncoder();
+		Random random = new Random(20240503L);
+		long epochNanos = TimestampEncoder.nowEpochNanos();
+		StringBuilder sb = new StringBuilder();
+		for (int i = 0; i < 100_000; i++) {
+			sb.setLength(0);
+			int pieces = random.nextInt(10);
+			for (int k = 0; k < pieces; k++)
+				sb.append(PIECES[random.nextInt(PIECES.length)]);
+			epochNanos += random.nextInt(50_000_000);
+			assertSameAsRegex(formatter, ts, epochNanos, sb.toString());
+		}
+	}
+
+	public void testLongPayloadGrowsScratch() {
+		LogLineFormatter formatter = new LogLineFormatter();
+		StringBuilder sb = new StringBuilder("INFO: [big] ");
+		for (int i = 0; i < 2000; i++)
+			sb.append('\u20AC');
+		assertSameAsRegex(formatter, new TimestampEncoder(), 0, sb.toString());
+	}
+}
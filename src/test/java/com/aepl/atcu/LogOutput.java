@@ -0,0 +1,53 @@
+package com.aepl.atcu;
+
+import java.io.Closeable;
+import java.io.IOException;
+import java.nio.ByteBuffer;
+import java.nio.channels.FileChannel;
+import java.nio.file.Path;
+import java.nio.file.StandardOpenOption;
+
+/**
+ * LogOutput: where LogFileSink puts its encoded batches.
+ */
+public interface LogOutput extends Closeable {
+
+	/** Write all remaining bytes of src. */
+	void write(ByteBuffer src) throws IOException;
+
+	/** Make everything written so far durable. */
+	void force() throws IOException;
+
+	/**
+	 * Plain append to one file through a FileChannel, opened on first write.
+	 */
+	class ChannelOutput implements LogOutput {
+		private final Path file;
+		private FileChannel channel;
+
+		public ChannelOutput(Path file) {
+			this.file = file;
+		}
+
+		@Override
+		public void write(ByteBuffer src) throws IOException {
+			if (channel == null)
+				channel = FileChannel.open(file, StandardOpenOption.CREATE, StandardOpenOption.WRITE,
+						StandardOpenOption.APPEND);
+			while (src.hasRemaining())
+				channel.write(src);
+		}
+
+		@Override
+		public void force() throws IOException {
+			if (channel != null)
+				channel.force(false);
+		}
+
+		@Override
+		public void close() throws IOException {
+			if (channel != null)
+				channel.close();
+		}
+	}
+}
@@ -0,0 +1,149 @@
+package com.aepl.atcu;
+
+import java.util.Properties;
+
+/**
+ * LoginPacketParser: reads the version and device id out of a 55AA login packet
+ * (e.g. "55AA,01,0A,864394040123456,1,2,ATCU1234,5.2.8,00,1F|CRC") by walking
+ * the comma offsets in place.
+ *
+ * Only the part before the first '|' is considered. Fields are trimmed like
+ * String.trim() and only the fields that are returned are turned into Strings.
+ * Which field holds what is described by a {@link Layout}; the default layout
+ * takes the first version-shaped field as the version and field 6 as the device
+ * id, which is what the previous split(",") based code did.
+ *
+ * Not thread-safe: one instance per consuming thread.
+ */
+public class LoginPacketParser {
+
+	/**
+	 * Field positions for one firmware family. A negative version field means
+	 * "first field that is a version (d+.d+(.d+)*)".
+	 */
+	public static final class Layout {
+		public static final Layout DEFAULT = new Layout("default", -1, 6);
+
+		final String family;
+		final int versionField;
+		final int deviceIdField;
+
+		public Layout(String family, int versionField, int deviceIdField) {
+			this.family = family;
+			this.versionField = versionField;
+			this.deviceIdField = deviceIdField;
+		}
+
+		/**
+		 * Read login.family.&lt;family&gt;.version.field and
+		 * login.family.&lt;family&gt;.deviceid.field; missing keys keep the default
+		 * positions.
+		 */
+		public static Layout fromProperties(Properties p, String family) {
+			if (family == null || family.trim().isEmpty())
+				return DEFAULT;
+			String prefix = "login.family." + family.trim() + ".";
+			int version = intProperty(p, prefix + "version.field", DEFAULT.versionField);
+			int deviceId = intProperty(p, prefix + "deviceid.field", DEFAULT.deviceIdField);
+			return new Layout(family.trim(), version, deviceId);
+		}
+
+		private static int intProperty(Properties p, String key, int def) {
+			String v = p.getProperty(key);
+			if (v == null || v.trim().isEmpty())
+				return def;
+			return Integer.parseInt(v.trim());
+		}
+
+		public String getFamily() {
+			return family;
+		}
+
+		@Override
+		public String toString() {
+			return family + "(version=" + (versionField < 0 ? "scan" : String.valueOf(versionField)) + ", deviceId="
+					+ deviceIdField + ")";
+		}
+	}
+
+	private volatile Layout layout;
+	private String version;
+	private String deviceId;
+
+	public LoginPacketParser() {
+		this(Layout.DEFAULT);
+	}
+
+	public LoginPacketParser(Layout layout) {
+		this.layout = layout;
+	}
+
+	public void setLayout(Layout layout) {
+		this.layout = (layout == null) ? Layout.DEFAULT : layout;
+	}
+
+	public Layout getLayout() {
+		return layout;
+	}
+
+	/**
+	 * Parse one packet line. Returns true if a version was found; see
+	 * {@link #version()} and {@link #deviceId()} (null if absent or itself
+	 * version-shaped).
+	 */
+	public boolean parse(String line) {
+		Layout l = layout;
+		version = null;
+		deviceId = null;
+		int end = line.indexOf('|');
+		if (end < 0)
+			end = line.length();
+
+		int field = 0;
+		int start = 0;
+		boolean needVersion = true;
+		boolean needDeviceId = l.deviceIdField >= 0;
+		while (start <= end && (needVersion || needDeviceId)) {
+			int comma = line.indexOf(',', start);
+			int fieldEnd = (comma < 0 || comma > end) ? end : comma;
+
+			// trim in place
+			int s = start, e = fieldEnd;
+			while (s < e && line.charAt(s) <= ' ')
+				s++;
+			while (e > s && line.charAt(e - 1) <= ' ')
+				e--;
+
+			if (needVersion && (l.versionField < 0 || l.versionField == field) && isVersion(line, s, e)) {
+				version = line.substring(s, e);
+				needVersion = false;
+			} else if (needVersion && l.versionField == field) {
+				needVersion = false; // fixed position, not a version: give up
+			}
+			if (needDeviceId && field == l.deviceIdField) {
+				if (s < e && !isVersion(line, s, e))
+					deviceId = line.substring(s, e);
+				needDeviceId = false;
+			}
+
+			if (fieldEnd == end)
+				break;
+			start = fieldEnd + 1;
+			field++;
+		}
+		return version != null;
+	}
+
+	public String version() {
+		return version;
+	}
+
+	public String deviceId() {
+		return deviceId;
+	}
+
+	private static boolean isVersion(String s, int start, int end) {
+		return start < end && MessageTokenizer.isDigit(s.charAt(start))
+				&& MessageTokenizer.versionEnd(s, start, end) == end;
+	}
+}
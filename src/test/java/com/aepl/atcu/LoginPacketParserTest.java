@@ -0,0 +1,87 @@
+package com.aepl.atcu;
+
+import java.util.Properties;
+import java.util.Random;
+import java.util.regex.Pattern;
+
+import junit.framework.TestCase;
+
+/**
+ * LoginPacketParserTest: the default layout against the split(",") parsing
+ * handleMessage did before, and configured field positions.
+ */
+public class LoginPacketParserTest extends TestCase {
+
+	private static final Pattern VERSION_SIMPLE = Pattern.compile("\\d+\\.\\d+(?:\\.\\d+)*");
+
+	private static final String[] PIECES = { "55AA", ",", ",", ",", " ", "\t", "1", "0A", "5.2.8", "2.3", "1.2.3.4",
+			".", "1.", "|", "ATCU1234", "x", "" };
+
+	/** { version, deviceId } as the old code found them. */
+	private static String[] splitParse(String line) {
+		String payload = line;
+		int pipeIdx = payload.indexOf('|');
+		if (pipeIdx != -1)
+			payload = payload.substring(0, pipeIdx);
+		String[] parts = payload.split(",");
+		String foundVersion = null;
+		for (String p : parts) {
+			String t = p.trim();
+			if (VERSION_SIMPLE.matcher(t).matches()) {
+				foundVersion = t;
+				break;
+			}
+		}
+		String deviceId = null;
+		if (parts.length > 6) {
+			String candidate = parts[6].trim();
+			if (!candidate.isEmpty() && !VERSION_SIMPLE.matcher(candidate).matches())
+				deviceId = candidate;
+		}
+		return new String[] { foundVersion, deviceId };
+	}
+
+	private static void assertSameAsSplit(LoginPacketParser parser, String line) {
+		String[] expected = splitParse(line);
+		assertEquals(line, expected[0] != null, parser.parse(line));
+		assertEquals(line, expected[0], parser.version());
+		// the old code only used the device id together with a version
+		if (expected[0] != null)
+			assertEquals(line, expected[1], parser.deviceId());
+	}
+
+	public void testTypicalPackets() {
+		LoginPacketParser parser = new LoginPacketParser();
+		String[] lines = { "55AA,01,0A,864394040123456,1,2,ATCU1234,5.2.8,00,1F|CRC",
+				"55AA,01,0A,864394040123456,1,2, ATCU1234 ,5.2.8|", "55AA,01,0A,864394040123456,1,2,,5.2.8",
+				"55AA,01,0A,864394040123456,1,2,5.2.7,5.2.8", "55AA,5.2.8", "55AA,01,02|5.2.8", "55AA,1.2.x" };
+		for (String line : lines)
+			assertSameAsSplit(parser, line);
+	}
+
+	public void testRandomPacketsMatchSplit() {
+		LoginPacketParser parser = new LoginPacketParser();
+		Random random = new Random(20240502L);
+		StringBuilder sb = new StringBuilder();
+		for (int i = 0; i < 200_000; i++) {
+			sb.setLength(0);
+			int pieces = random.nextInt(24);
+			for (int k = 0; k < pieces; k++)
+				sb.append(PIECES[random.nextInt(PIECES.length)]);
+			assertSameAsSplit(parser, sb.toString());
+		}
+	}
+
+	public void testConfiguredLayout() {
+		Properties p = new Properties();
+		p.setProperty("login.family.v2.version.field", "4");
+		p.setProperty("login.family.v2.deviceid.field", "2");
+		LoginPacketParser parser = new LoginPacketParser(LoginPacketParser.Layout.fromProperties(p, " v2 "));
+		assertTrue(parser.parse("55AA,1.0.0,DEV9,x,5.2.8,6.0.0|"));
+		assertEquals("5.2.8", parser.version());
+		assertEquals("DEV9", parser.deviceId());
+		// a fixed position that is not a version is not replaced by a later field
+		assertFalse(parser.parse("55AA,1.0.0,DEV9,x,y,6.0.0"));
+		assertSame(LoginPacketParser.Layout.DEFAULT, LoginPacketParser.Layout.fromProperties(p, ""));
+	}
+}
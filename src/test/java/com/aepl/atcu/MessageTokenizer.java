@@ -0,0 +1,278 @@
+package com.aepl.atcu;
+
+/**
+ * MessageTokenizer: single linear pass over a device line that finds everything
+ * handleMessage needs.
+ *
+ * One scan records, as offsets into the line: the SOFTWARE / VERSION / STATE
+ * labelled values, the first version-shaped token (d+.d+(.d+)*), whether a 55AA
+ * login packet marker is present, and the ignStatus=1 / "VEHICLE ... :" action
+ * markers. The results are kept in this (reusable) object and Strings are only
+ * created for the values the caller actually asks for.
+ *
+ * Results are identical to the regexes previously used in SerialReader:
+ * (?i)LABEL[:=\s]+([^\s,;:\n]+) for the labels (leftmost match, ASCII case
+ * insensitive, value trimmed), \d+\.\d+(?:\.\d+)* with find() for versions, and
+ * .*VEHICLE\s+.*:.* with matches() for the vehicle marker.
+ *
+ * Not thread-safe: one instance per consuming thread.
+ */
+public class MessageTokenizer {
+
+	private static final char[] SOFTWARE = "SOFTWARE".toCharArray();
+	private static final char[] VERSION = "VERSION".toCharArray();
+	private static final char[] STATE = "STATE".toCharArray();
+	private static final char[] VEHICLE = "VEHICLE".toCharArray();
+	private static final char[] LOGIN_MARKER = "55AA".toCharArray();
+	private static final char[] IGN_STATUS = "ignStatus=1".toCharArray();
+
+	private String line;
+
+	private int softwareStart, softwareEnd;
+	private int versionStart, versionEnd;
+	private int stateStart, stateEnd;
+	private int firstVersionStart, firstVersionEnd;
+	private boolean loginPacket;
+	private boolean ignitionOn;
+	private int vehicleAt;
+	private int lastColon;
+	private boolean lineSeparator;
+
+	/**
+	 * Scan one line, replacing the results of the previous call.
+	 */
+	public void scan(String s) {
+		line = s;
+		softwareStart = versionStart = stateStart = firstVersionStart = -1;
+		softwareEnd = versionEnd = stateEnd = firstVersionEnd = -1;
+		loginPacket = false;
+		ignitionOn = false;
+		vehicleAt = -1;
+		lastColon = -1;
+		lineSeparator = false;
+
+		int n = s.length();
+		loginPacket = startsWith(s, 0, LOGIN_MARKER, false);
+		for (int i = 0; i < n; i++) {
+			char c = s.charAt(i);
+			switch (c) {
+			case 'S':
+			case 's':
+				if (softwareStart < 0 && startsWith(s, i, SOFTWARE, true))
+					labelValue(s, i + SOFTWARE.length, 0);
+				if (stateStart < 0 && startsWith(s, i, STATE, true))
+					labelValue(s, i + STATE.length, 2);
+				break;
+			case 'V':
+			case 'v':
+				if (versionStart < 0 && startsWith(s, i, VERSION, true))
+					labelValue(s, i + VERSION.length, 1);
+				if (c == 'V' && vehicleAt < 0 && startsWith(s, i, VEHICLE, false)
+						&& i + VEHICLE.length < n && isSpace(s.charAt(i + VEHICLE.length)))
+					vehicleAt = i;
+				break;
+			case '5':
+				if (!loginPacket && i + LOGIN_MARKER.length < n && s.charAt(i + LOGIN_MARKER.length) == ','
+						&& startsWith(s, i, LOGIN_MARKER, false))
+					loginPacket = true;
+				break;
+			case 'i':
+				if (!ignitionOn && startsWith(s, i, IGN_STATUS, false))
+					ignitionOn = true;
+				break;
+			case ':':
+				lastColon = i;
+				break;
+			case '\n':
+			case '\r':
+			case '\u0085':
+			case '\u2028':
+			case '\u2029':
+				lineSeparator = true;
+				break;
+			default:
+				break;
+			}
+			if (firstVersionStart < 0 && c >= '0' && c <= '9' && (i == 0 || !isDigit(s.charAt(i - 1))))
+				findVersionAt(s, i, n);
+		}
+	}
+
+	// --- results ---
+
+	public String software() {
+		return softwareStart < 0 ? null : line.substring(softwareStart, softwareEnd);
+	}
+
+	public String version() {
+		return versionStart < 0 ? null : line.substring(versionStart, versionEnd);
+	}
+
+	public String state() {
+		return stateStart < 0 ? null : line.substring(stateStart, stateEnd);
+	}
+
+	public boolean hasSoftware() {
+		return softwareStart >= 0;
+	}
+
+	public boolean hasVersion() {
+		return versionStart >= 0;
+	}
+
+	public boolean hasState() {
+		return stateStart >= 0;
+	}
+
+	/** True if the SOFTWARE value itself contains a version-shaped token. */
+	public boolean softwareLooksLikeVersion() {
+		if (softwareStart < 0)
+			return false;
+		for (int i = softwareStart; i < softwareEnd; i++) {
+			if (isDigit(line.charAt(i)) && versionEnd(line, i, softwareEnd) > 0)
+				return true;
+		}
+		return false;
+	}
+
+	/** First version-shaped token anywhere in the line, or null. */
+	public String firstVersion() {
+		return firstVersionStart < 0 ? null : line.substring(firstVersionStart, firstVersionEnd);
+	}
+
+	/** Line starts with 55AA or contains "55AA,". */
+	public boolean isLoginPacket() {
+		return loginPacket;
+	}
+
+	public boolean isIgnitionOn() {
+		return ignitionOn;
+	}
+
+	/**
+	 * Equivalent of line.matches(".*VEHICLE\\s+.*:.*"). Lines containing a line
+	 * separator other than inside the whitespace run are not decided here; see
+	 * {@link #needsRegexFallback()}.
+	 */
+	public boolean isVehicleLine() {
+		return vehicleAt >= 0 && lastColon >= vehicleAt + VEHICLE.length + 1;
+	}
+
+	/**
+	 * True if the line contains a character that '.' does not match; callers
+	 * should then decide {@link #isVehicleLine()} with the regex.
+	 */
+	public boolean needsRegexFallback() {
+		return lineSeparator;
+	}
+
+	// --- scanning helpers ---
+
+	/**
+	 * Match [:=\s]+([^\s,;:\n]+) at pos, including the regex's backtracking into
+	 * the separator run when only '=' can start the value.
+	 */
+	private void labelValue(String s, int pos, int which) {
+		int n = s.length();
+		int sepEnd = pos;
+		while (sepEnd < n && isSeparator(s.charAt(sepEnd)))
+			sepEnd++;
+		if (sepEnd == pos)
+			return; // needs at least one separator
+		int start = -1;
+		if (sepEnd < n && isValueChar(s.charAt(sepEnd))) {
+			start = sepEnd;
+		} else {
+			// backtrack: the last '=' after the first separator char can start the value
+			for (int k = sepEnd - 1; k > pos; k--) {
+				if (s.charAt(k) == '=') {
+					start = k;
+					break;
+				}
+			}
+		}
+		if (start < 0)
+			return; // no value at this occurrence; a later one may still match
+		int end = start;
+		while (end < n && isValueChar(s.charAt(end)))
+			end++;
+		// the value was trim()med: drop control characters at either end
+		while (start < end && s.charAt(start) <= ' ')
+			start++;
+		while (end > start && s.charAt(end - 1) <= ' ')
+			end--;
+		switch (which) {
+		case 0:
+			softwareStart = start;
+			softwareEnd = end;
+			break;
+		case 1:
+			versionStart = start;
+			versionEnd = end;
+			break;
+		default:
+			stateStart = start;
+			stateEnd = end;
+			break;
+		}
+	}
+
+	private void findVersionAt(String s, int runStart, int n) {
+		int end = versionEnd(s, runStart, n);
+		if (end > 0) {
+			firstVersionStart = runStart;
+			firstVersionEnd = end;
+		}
+	}
+
+	/**
+	 * End of \d+\.\d+(?:\.\d+)* starting at from (a digit), or -1 if none within
+	 * limit.
+	 */
+	static int versionEnd(CharSequence s, int from, int limit) {
+		int i = from;
+		while (i < limit && isDigit(s.charAt(i)))
+			i++;
+		if (i + 1 >= limit || s.charAt(i) != '.' || !isDigit(s.charAt(i + 1)))
+			return -1;
+		i++;
+		while (i < limit && isDigit(s.charAt(i)))
+			i++;
+		while (i + 1 < limit && s.charAt(i) == '.' && isDigit(s.charAt(i + 1))) {
+			i++;
+			while (i < limit && isDigit(s.charAt(i)))
+				i++;
+		}
+		return i;
+	}
+
+	private static boolean startsWith(String s, int pos, char[] word, boolean ignoreCase) {
+		if (pos + word.length > s.length())
+			return false;
+		for (int k = 0; k < word.length; k++) {
+			char c = s.charAt(pos + k);
+			if (ignoreCase && c >= 'a' && c <= 'z')
+				c -= 'a' - 'A';
+			if (c != word[k])
+				return false;
+		}
+		return true;
+	}
+
+	static boolean isDigit(char c) {
+		return c >= '0' && c <= '9';
+	}
+
+	/** \s without UNICODE_CHARACTER_CLASS: [ \t\n\x0B\f\r] */
+	static boolean isSpace(char c) {
+		return c == ' ' || c == '\t' || c == '\n' || c == '\u000B' || c == '\f' || c == '\r';
+	}
+
+	private static boolean isSeparator(char c) {
+		return c == ':' || c == '=' || isSpace(c);
+	}
+
+	private static boolean isValueChar(char c) {
+		return !(isSpace(c) || c == ',' || c == ';' || c == ':');
+	}
+}
@@ -0,0 +1,85 @@
+package com.aepl.atcu;
+
+import java.util.Random;
+import java.util.regex.Matcher;
+import java.util.regex.Pattern;
+
+import junit.framework.TestCase;
+
+/**
+ * MessageTokenizerTest: the single scan against the regexes handleMessage used
+ * before, on typical lines and on random lines built from the tokens the
+ * patterns care about.
+ */
+public class MessageTokenizerTest extends TestCase {
+
+	private static final Pattern SOFTWARE_PATTERN = Pattern.compile("(?i)SOFTWARE[:=\\s]+([^\\s,;:\\n]+)");
+	private static final Pattern VERSION_PATTERN = Pattern.compile("(?i)VERSION[:=\\s]+([^\\s,;:\\n]+)");
+	private static final Pattern STATE_PATTERN = Pattern.compile("(?i)STATE[:=\\s]+([^\\s,;:\\n]+)");
+	private static final Pattern VERSION_SIMPLE = Pattern.compile("\\d+\\.\\d+(?:\\.\\d+)*");
+
+	private static final String[] PIECES = { "SOFTWARE", "software", "Version", "VERSION", "state", "STATE",
+			"VEHICLE", "vehicle", ":", "=", "==", " ", "  ", "\t", ",", ";", "\n", "\r", "\u2028", "1", "42", "2.3",
+			"5.2.8", ".", "..", "55AA", "55AA,", "5", "ignStatus=1", "ignStatus=0", "a", "x", "\u0001", "[", "]",
+			"\u00E9" };
+
+	private static String extractToken(Pattern pattern, String input) {
+		Matcher m = pattern.matcher(input);
+		if (m.find()) {
+			String g = m.group(1);
+			return (g != null) ? g.trim() : null;
+		}
+		return null;
+	}
+
+	private static String firstVersion(String input) {
+		Matcher m = VERSION_SIMPLE.matcher(input);
+		return m.find() ? m.group() : null;
+	}
+
+	private static void assertSameAsRegex(MessageTokenizer tok, String line) {
+		tok.scan(line);
+		String msg = escape(line);
+		String software = extractToken(SOFTWARE_PATTERN, line);
+		assertEquals(msg, software, tok.software());
+		assertEquals(msg, extractToken(VERSION_PATTERN, line), tok.version());
+		assertEquals(msg, extractToken(STATE_PATTERN, line), tok.state());
+		assertEquals(msg, software != null && VERSION_SIMPLE.matcher(software).find(),
+				tok.softwareLooksLikeVersion());
+		assertEquals(msg, firstVersion(line), tok.firstVersion());
+		assertEquals(msg, line.startsWith("55AA") || line.contains("55AA,"), tok.isLoginPacket());
+		assertEquals(msg, line.contains("ignStatus=1"), tok.isIgnitionOn());
+		if (!tok.needsRegexFallback())
+			assertEquals(msg, line.matches(".*VEHICLE\\s+.*:.*"), tok.isVehicleLine());
+	}
+
+	private static String escape(String s) {
+		StringBuilder sb = new StringBuilder();
+		for (char c : s.toCharArray())
+			sb.append(c >= ' ' && c < 0x7F ? String.valueOf(c) : String.format("\\u%04x", (int) c));
+		return sb.toString();
+	}
+
+	public void testTypicalLines() {
+		MessageTokenizer tok = new MessageTokenizer();
+		String[] lines = { "STATE: IDLE SOFTWARE: APP VERSION: 5.2.8", "software=GPS,version=1.0.3;state=RUN",
+				"SOFTWARE: 5.2.9", "55AA,01,0A,864394040123456,1,2,ATCU1234,5.2.8,00,1F|CRC",
+				"boot 1.2.3 done, ignStatus=1", "VEHICLE  SPEED: 40", "VEHICLE:SPEED 40", "VERSION :=  =x",
+				"state:::", "" };
+		for (String line : lines)
+			assertSameAsRegex(tok, line);
+	}
+
+	public void testRandomLinesMatchRegexes() {
+		MessageTokenizer tok = new MessageTokenizer();
+		Random random = new Random(20240501L);
+		StringBuilder sb = new StringBuilder();
+		for (int i = 0; i < 200_000; i++) {
+			sb.setLength(0);
+			int pieces = random.nextInt(12);
+			for (int k = 0; k < pieces; k++)
+				sb.append(PIECES[random.nextInt(PIECES.length)]);
+			assertSameAsRegex(tok, sb.toString());
+		}
+	}
+}
@@ -0,0 +1,120 @@
+package com.aepl.atcu;
+
+import java.util.HashMap;
+import java.util.Map;
+import java.util.TreeMap;
+import java.util.concurrent.ConcurrentSkipListMap;
+import java.util.concurrent.Executors;
+import java.util.concurrent.ScheduledExecutorService;
+import java.util.concurrent.TimeUnit;
+import java.util.concurrent.atomic.LongAdder;
+import java.util.function.LongSupplier;
+
+import org.apache.logging.log4j.LogManager;
+import org.apache.logging.log4j.Logger;
+
+/**
+ * Metrics: named counters, gauges and latency histograms of one pipeline.
+ *
+ * Counters are LongAdders (striped, so hot-path increments from different
+ * threads do not contend), gauges are read on demand from the component that
+ * owns the value, histograms are {@link LatencyHistogram}s. Look up the
+ * instrument once and keep it; names are dotted ("lines.framed"). Everything
+ * can be read from code at any time, and {@link #startDump(long, TimeUnit)}
+ * logs all of it periodically to the "metrics" logger, with per-second rates
+ * for counters.
+ */
+public class Metrics {
+
+	public static final String METRICS_LOGGER = "metrics";
+
+	private static final Logger LOG = LogManager.getLogger(METRICS_LOGGER);
+
+	private final Map<String, LongAdder> counters = new ConcurrentSkipListMap<>();
+	private final Map<String, LongSupplier> gauges = new ConcurrentSkipListMap<>();
+	private final Map<String, LatencyHistogram> histograms = new ConcurrentSkipListMap<>();
+
+	// guarded by this: dump() runs on the dump thread and on demand
+	private final Map<String, Long> lastCounts = new HashMap<>();
+	private long lastDumpNanos;
+	private ScheduledExecutorService dumper;
+
+	/** The counter called name, created on first use. */
+	public LongAdder counter(String name) {
+		return counters.computeIfAbsent(name, k -> new LongAdder());
+	}
+
+	/** Register (or replace) a gauge. */
+	public void gauge(String name, LongSupplier value) {
+		gauges.put(name, value);
+	}
+
+	/** The histogram called name, created on first use. */
+	public LatencyHistogram histogram(String name) {
+		return histograms.computeIfAbsent(name, k -> new LatencyHistogram());
+	}
+
+	/** Current counter value (0 if unknown). */
+	public long getCount(String name) {
+		LongAdder c = counters.get(name);
+		return c == null ? 0 : c.sum();
+	}
+
+	/** Current gauge value (0 if unknown). */
+	public long getGauge(String name) {
+		LongSupplier g = gauges.get(name);
+		return g == null ? 0 : g.getAsLong();
+	}
+
+	/** The histogram, or null if nothing registered it. */
+	public LatencyHistogram getHistogram(String name) {
+		return histograms.get(name);
+	}
+
+	/** All counters and gauges by name, sorted. */
+	public Map<String, Long> getValues() {
+		Map<String, Long> out = new TreeMap<>();
+		counters.forEach((name, c) -> out.put(name, c.sum()));
+		gauges.forEach((name, g) -> out.put(name, g.getAsLong()));
+		return out;
+	}
+
+	/** Log everything every period until {@link #stopDump()}. */
+	public synchronized void startDump(long period, TimeUnit unit) {
+		if (dumper != null || period <= 0)
+			return;
+		dumper = Executors.newSingleThreadScheduledExecutor(r -> {
+			Thread t = new Thread(r, "metrics-dump");
+			t.setDaemon(true);
+			return t;
+		});
+		lastDumpNanos = System.nanoTime();
+		dumper.scheduleAtFixedRate(this::dump, period, period, unit);
+	}
+
+	public synchronized void stopDump() {
+		if (dumper != null) {
+			dumper.shutdownNow();
+			dumper = null;
+		}
+	}
+
+	/** Log all metrics now: counters with their rate since the last dump. */
+	public synchronized void dump() {
+		long now = System.nanoTime();
+		double seconds = Math.max(1e-9, (now - lastDumpNanos) / 1e9);
+		lastDumpNanos = now;
+		StringBuilder sb = new StringBuilder(256);
+		counters.forEach((name, c) -> {
+			long v = c.sum();
+			Long before = lastCounts.put(name, v);
+			sb.append(' ').append(name).append('=').append(v);
+			sb.append(String.format(" (%.1f/s)", (v - (before == null ? 0 : before)) / seconds));
+		});
+		LOG.info("[METRICS] counters:{}", sb);
+		sb.setLength(0);
+		gauges.forEach((name, g) -> sb.append(' ').append(name).append('=').append(g.getAsLong()));
+		LOG.info("[METRICS] gauges:{}", sb);
+		histograms.forEach((name, h) -> LOG.info("[METRICS] {}: {}", name, h));
+	}
+}
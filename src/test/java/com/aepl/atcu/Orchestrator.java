@@ -1,5 +1,7 @@
 package com.aepl.atcu;
 
+import org.apache.logging.log4j.LogManager;
+import org.apache.logging.log4j.Logger;
 import org.openqa.selenium.By;
 import org.openqa.selenium.WebDriver;
 import org.openqa.selenium.chrome.ChromeDriver;
@@ -18,21 +20,28 @@ import java.util.regex.*;
  * Orchestrator: uses SerialReader + Selenium to perform iterative FOTA until
  * device reaches latest version.
  *
- * Assumptions: - SerialReader has the getProcessorQueue() method returning
- * BlockingQueue<String> - CSV firmware list contains:
- * firmware_id,firmware_version,firmware_file_path
+ * Assumptions: - SerialReader.subscribe(...) gives the orchestrator its own
+ * cursor over every serial line (independent of the reader's parser) - CSV
+ * firmware list contains: firmware_id,firmware_version,firmware_file_path
  */
 public class Orchestrator {
 
+	private static final Logger LOG = LogManager.getLogger(Orchestrator.class);
+
 	private final SerialReader serialReader;
-	private final BlockingQueue<String> serialQueue;
+	private LineRingBuffer.Cursor<SerialLine> serialQueue;
 	private final WebDriver driver;
 	private final WebDriverWait wait;
 	private final Path auditCsv;
 	private final List<Firmware> firmwareList;
+	// active version queries; null = wait for the device to report
+	private VersionProbe versionProbe;
 
-	// simple version pattern (reuse from your reader if you want)
-	private static final Pattern VERSION_SIMPLE = Pattern.compile("\\d+\\.\\d+(?:\\.\\d+)*");
+	// lines kept for the orchestrator while it is not waiting; oldest dropped
+	private static final int SERIAL_SUBSCRIPTION_CAPACITY = 4096;
+	private static final String AUDIT_COLUMNS = "timestamp,deviceId,firmwareId,firmwareVersion,firmwarePath,beforeVersion,afterVersion,result,jobId";
+	// per-hop latencies of each round (FotaTrace) follow the original columns
+	private static final String AUDIT_HEADER = AUDIT_COLUMNS + "," + FotaTrace.CSV_HEADER;
 
 	public Orchestrator(String serialPort, int baud, String chromeDriverPath, String firmwareCsvPath,
 			String auditCsvPath) throws Exception {
@@ -45,12 +54,40 @@ public class Orchestrator {
 		this.firmwareList = readFirmwareCsv(firmwareCsvPath);
 		// ensure audit file exists with header
 		if (Files.notExists(auditCsv)) {
-			Files.write(auditCsv, Collections.singletonList(
-					"timestamp,deviceId,firmwareId,firmwareVersion,firmwarePath,beforeVersion,afterVersion,result,jobId"),
-					StandardOpenOption.CREATE);
+			Files.write(auditCsv, Collections.singletonList(AUDIT_HEADER), StandardOpenOption.CREATE);
+		} else {
+			upgradeAuditHeader();
 		}
 	}
 
+	/**
+	 * An audit file from before the trace columns keeps its rows (their trace
+	 * cells are simply empty) and gets the current header.
+	 */
+	private void upgradeAuditHeader() throws IOException {
+		List<String> lines = Files.readAllLines(auditCsv, StandardCharsets.UTF_8);
+		if (lines.isEmpty() || !lines.get(0).equals(AUDIT_COLUMNS))
+			return;
+		lines.set(0, AUDIT_HEADER);
+		Path tmp = auditCsv.resolveSibling(auditCsv.getFileName() + ".tmp");
+		Files.write(tmp, lines, StandardCharsets.UTF_8);
+		Files.move(tmp, auditCsv, StandardCopyOption.REPLACE_EXISTING, StandardCopyOption.ATOMIC_MOVE);
+		LOG.info("Audit file {}: added trace columns to the header", auditCsv);
+	}
+
+	public SerialReader getSerialReader() {
+		return serialReader;
+	}
+
+	/**
+	 * Query the device for its version (before the first FOTA if no login
+	 * packet was seen, and after each reboot) instead of only listening; null
+	 * turns probing off.
+	 */
+	public void setVersionProbe(VersionProbe versionProbe) {
+		this.versionProbe = versionProbe;
+	}
+
 	private List<Firmware> readFirmwareCsv(String csvPath) throws IOException {
 		List<Firmware> list = new ArrayList<>();
 		List<String> lines = Files.readAllLines(Paths.get(csvPath), StandardCharsets.UTF_8);
@@ -83,7 +120,14 @@ public class Orchestrator {
 	public void start(String loginUrl, String user, String pass, String deviceId) throws Exception {
 		// start serial reader
 		serialReader.start();
-		BlockingQueue<String> q = serialReader.getProcessorQueue();
+		// only the probe watches raw lines (for the reboot); the plain wait is
+		// notified by the parser
+		LineRingBuffer.Cursor<SerialLine> q = null;
+		if (versionProbe != null) {
+			q = serialReader.subscribe("orchestrator", SERIAL_SUBSCRIPTION_CAPACITY,
+					LineRingBuffer.OverflowPolicy.DROP_OLDEST);
+			this.serialQueue = q;
+		}
 
 		// start selenium session + login (adapt selectors)
 		driver.get(loginUrl);
@@ -93,14 +137,31 @@ public class Orchestrator {
 		driver.findElement(By.id("loginButton")).click();
 		wait.until(d -> d.getCurrentUrl().contains("dashboard"));
 
+		// version the previous round ended on (probed or reported); the login
+		// packet in the stateMap can be older than that
+		String confirmedVersion = null;
 		// iterate firmware list
 		for (Firmware fw : firmwareList) {
+			FotaTrace trace = new FotaTrace();
 			// read current known version from stateMap if available
-			String beforeVersion = serialReader.getVersionFor("LOGIN", deviceId);
+			String beforeVersion = confirmedVersion != null ? confirmedVersion : lastKnownVersion(deviceId);
+			if (beforeVersion == null && versionProbe != null)
+				beforeVersion = versionProbe.probeAndWait(serialReader.getCommands(), false, 10, TimeUnit.SECONDS);
+			// only lines after the trigger can report the new version
+			if (q != null)
+				q.skipToEnd();
+			// registered before the trigger so a quick report is not missed; the
+			// wait below bounds it
+			CompletableFuture<VersionReport> change = versionProbe != null ? null
+					: awaitReportAfter(beforeVersion, System.nanoTime());
 			// trigger FOTA via web UI
 			String jobId = triggerFotaViaUi(deviceId, fw);
+			trace.markTriggered();
 			// wait for device to report version change or ack
-			String afterVersion = waitForVersionFromQueue(q, 120, TimeUnit.SECONDS);
+			VersionReport report = versionProbe != null ? probeVersionAfterReboot(q, trace, 120, TimeUnit.SECONDS)
+					: awaitVersion(change, 120, TimeUnit.SECONDS);
+			trace.markObserved(report);
+			String afterVersion = report == null ? null : report.getVersion();
 			// decide outcome
 			String result;
 			if (afterVersion == null) {
@@ -111,12 +172,16 @@ public class Orchestrator {
 			} else {
 				result = "REPORTED_HIGHER:" + afterVersion;
 			}
+			trace.markDecided();
+			LOG.info("[TRACE] firmware={} result={} {}", fw.id, result, trace);
 			// write audit line
-			writeAudit(deviceId, fw, beforeVersion, afterVersion, result, jobId);
+			writeAudit(deviceId, fw, beforeVersion, afterVersion, result, jobId, trace);
+			// after a timeout fall back to what the stateMap (or a probe) says
+			confirmedVersion = afterVersion;
 			// if device afterVersion >= latest available -> break
 			String latest = firmwareList.get(firmwareList.size() - 1).version;
 			if (afterVersion != null && !isVersionLess(afterVersion, latest)) {
-				System.out.println("Device reached latest version " + afterVersion + ". Stopping.");
+				LOG.info("Device reached latest version {}. Stopping.", afterVersion);
 				break;
 			}
 			// else continue to next firmware in list
@@ -125,26 +190,80 @@ public class Orchestrator {
 		shutdown();
 	}
 
-	private String waitForVersionFromQueue(BlockingQueue<String> q, long timeout, TimeUnit unit)
+	/**
+	 * Version reported from a line captured after sinceNanos: a version other
+	 * than beforeVersion from any line (login packet with or without device id,
+	 * labelled line, bare version token), or any login packet, which the device
+	 * sends after rebooting even when it comes back on the version it had.
+	 * Versions the reader stored earlier, or restored from the state store, do
+	 * not count.
+	 */
+	private CompletableFuture<VersionReport> awaitReportAfter(String beforeVersion, long sinceNanos) {
+		CompletableFuture<VersionReport> changed = serialReader.awaitVersionReport(null, null, sinceNanos,
+				v -> !v.equals(beforeVersion), 10, TimeUnit.MINUTES);
+		CompletableFuture<VersionReport> relogin = serialReader.awaitVersionReport("LOGIN", null, sinceNanos, null,
+				10, TimeUnit.MINUTES);
+		CompletableFuture<VersionReport> first = changed.applyToEither(relogin, r -> r);
+		first.whenComplete((r, e) -> {
+			changed.cancel(false);
+			relogin.cancel(false);
+		});
+		return first;
+	}
+
+	/**
+	 * Wait for the report (see {@link #awaitReportAfter(String, long)}); null on
+	 * timeout, so the round is recorded as TIMEOUT.
+	 */
+	private VersionReport awaitVersion(CompletableFuture<VersionReport> change, long timeout, TimeUnit unit)
 			throws InterruptedException {
+		try {
+			VersionReport report = change.get(timeout, unit);
+			LOG.info("[ORC] Device reported version {}", report);
+			return report;
+		} catch (TimeoutException e) {
+			change.cancel(false);
+			LOG.info("[ORC] No version report within {} s", unit.toSeconds(timeout));
+			return null;
+		} catch (ExecutionException e) {
+			LOG.info("[ORC] {}", e.getCause().getMessage());
+			return null;
+		}
+	}
+
+	/**
+	 * Version the reader holds for the device: from a login packet with this
+	 * device id, else one without a device id, else a bare version token.
+	 */
+	private String lastKnownVersion(String deviceId) {
+		String v = serialReader.getVersionFor("LOGIN", deviceId);
+		if (v == null)
+			v = serialReader.getVersionFor("LOGIN", "LOGIN_SOFTWARE");
+		if (v == null)
+			v = serialReader.getVersionFor("UNKNOWN", "SOFTWARE");
+		return v;
+	}
+
+	/**
+	 * Wait for the device to start rebooting, then query its version on the
+	 * probe's backoff schedule; null if either does not happen in time.
+	 */
+	private VersionReport probeVersionAfterReboot(LineRingBuffer.Cursor<SerialLine> q, FotaTrace trace,
+			long timeout, TimeUnit unit) throws InterruptedException {
 		long deadline = System.currentTimeMillis() + unit.toMillis(timeout);
 		while (System.currentTimeMillis() < deadline) {
-			String tsLine = q.poll(2, TimeUnit.SECONDS);
-			if (tsLine == null)
+			SerialLine line = q.poll(Math.min(2000, Math.max(1, deadline - System.currentTimeMillis())),
+					TimeUnit.MILLISECONDS);
+			if (line == null)
 				continue;
-			// strip leading timestamp like your reader does
-			String withoutTs = tsLine.replaceFirst("^\\d{4}-\\d{2}-\\d{2}T\\d{2}:\\d{2}:\\d{2}\\.\\d{7}\\s+", "");
-			// attempt to extract version token
-			Matcher m = VERSION_SIMPLE.matcher(withoutTs);
-			if (m.find()) {
-				String ver = m.group();
-				System.out.println("[ORC] Found version on serial: " + ver + " (line=" + withoutTs + ")");
-				// capture extra acknowledgement lines if needed (e.g., "ACK" token)
-				return ver;
-			} else {
-				// optionally search for ack or job id in the line; also log
-				System.out.println("[ORC] Serial line: " + withoutTs);
+			if (versionProbe.isRebootLine(line.getPayload())) {
+				LOG.info("[ORC] Reboot detected (line={}), probing version", line.getPayload());
+				trace.markReboot(line);
+				long remaining = deadline - System.currentTimeMillis();
+				return versionProbe.probeReportAndWait(serialReader.getCommands(), true, Math.max(0, remaining),
+						TimeUnit.MILLISECONDS);
 			}
+			LOG.debug("[ORC] Serial line: {}", line.getPayload());
 		}
 		return null;
 	}
@@ -184,22 +303,23 @@ public class Orchestrator {
 		// wait for job id element to appear
 		try {
 			String jobId = wait.until(ExpectedConditions.visibilityOfElementLocated(By.id("jobId"))).getText();
-			System.out.println("[ORC] Submitted FOTA jobId=" + jobId + " for firmware=" + fw.id);
+			LOG.info("[ORC] Submitted FOTA jobId={} for firmware={}", jobId, fw.id);
 			return jobId;
 		} catch (Exception e) {
-			System.out.println("[ORC] No jobId returned; continuing without it.");
+			LOG.info("[ORC] No jobId returned; continuing without it.");
 			return null;
 		}
 	}
 
-	private void writeAudit(String deviceId, Firmware fw, String before, String after, String result, String jobId) {
+	private void writeAudit(String deviceId, Firmware fw, String before, String after, String result, String jobId,
+			FotaTrace trace) {
 		String ts = DateTimeFormatter.ISO_INSTANT.format(Instant.now());
 		String line = String.join(",", ts, deviceId, fw.id, fw.version, fw.path, safe(before), safe(after),
-				safe(result), safe(jobId));
+				safe(result), safe(jobId), trace.toCsv());
 		try {
 			Files.write(auditCsv, Collections.singletonList(line), StandardOpenOption.APPEND);
 		} catch (IOException e) {
-			System.err.println("Failed to write audit: " + e.getMessage());
+			LOG.error("Failed to write audit: {}", e.getMessage());
 		}
 	}
 
@@ -208,6 +328,8 @@ public class Orchestrator {
 	}
 
 	public void shutdown() {
+		if (serialQueue != null)
+			serialQueue.close();
 		try {
 			if (serialReader != null)
 				serialReader.stop();
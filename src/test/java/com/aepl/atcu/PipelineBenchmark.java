@@ -0,0 +1,175 @@
+package com.aepl.atcu;
+
+import java.io.BufferedWriter;
+import java.io.IOException;
+import java.nio.charset.StandardCharsets;
+import java.nio.file.Files;
+import java.nio.file.Path;
+import java.nio.file.Paths;
+import java.util.concurrent.TimeUnit;
+import java.util.regex.Matcher;
+import java.util.regex.Pattern;
+
+/**
+ * PipelineBenchmark: quick throughput check for the ingest hot path, runnable
+ * without a device.
+ *
+ * Compares the regex-based line classification that handleMessage used before
+ * (three label find() scans, VERSION_SIMPLE, 55AA, VEHICLE matches) with the
+ * single-pass MessageTokenizer on a mix of typical device lines.
+ *
+ * The replay mode runs the whole SerialReader pipeline (framing, ring, log
+ * sink, parser) from a ReplaySource and reports lines per second from
+ * handleIncomingChunk to handleMessage. Without a FILE it generates a
+ * serial-stream.log of LINES sample lines (default 1,000,000).
+ *
+ * Usage: java -cp <jar> com.aepl.atcu.PipelineBenchmark [ITERATIONS]
+ *
+ * java -cp <jar> com.aepl.atcu.PipelineBenchmark replay [FILE|LINES] [SPEED]
+ */
+public class PipelineBenchmark {
+
+	private static final Pattern SOFTWARE_PATTERN = Pattern.compile("(?i)SOFTWARE[:=\\s]+([^\\s,;:\\n]+)");
+	private static final Pattern VERSION_PATTERN = Pattern.compile("(?i)VERSION[:=\\s]+([^\\s,;:\\n]+)");
+	private static final Pattern STATE_PATTERN = Pattern.compile("(?i)STATE[:=\\s]+([^\\s,;:\\n]+)");
+	private static final Pattern VERSION_SIMPLE = Pattern.compile("\\d+\\.\\d+(?:\\.\\d+)*");
+
+	private static final String[] SAMPLE_LINES = {
+			"I: [GSM] +CREG: 0,1",
+			"D: [GPS] fix=1 sats=9 lat=18.5204 lon=73.8567 hdop=0.9",
+			"SOFTWARE: ATCU_APP VERSION: 5.2.8 STATE: RUNNING",
+			"55AA,01,0A,864394040123456,1,2,ATCU1234,5.2.8,00,1F|CRC",
+			"I: [CAN] frame id=0x18FEF100 dlc=8 data=00 11 22 33 44 55 66 77",
+			"W: [PWR] ignStatus=1 battery=12.6V",
+			"VEHICLE INFO: speed=42 rpm=1800",
+			"E: [MQTT] publish failed rc=-3, retrying in 5 s",
+			"boot: bootloader 1.0.3 starting application",
+			"I: [FOTA] download progress 37%" };
+
+	public static void main(String[] args) throws Exception {
+		if (args.length > 0 && args[0].equals("replay")) {
+			replay(args);
+			return;
+		}
+		int iterations = args.length > 0 ? Integer.parseInt(args[0]) : 2_000_000;
+
+		// warm up both paths
+		runRegex(iterations / 4);
+		runTokenizer(iterations / 4);
+
+		long t0 = System.nanoTime();
+		long regexHits = runRegex(iterations);
+		long t1 = System.nanoTime();
+		long tokenizerHits = runTokenizer(iterations);
+		long t2 = System.nanoTime();
+
+		report("regex", iterations, t1 - t0, regexHits);
+		report("tokenizer", iterations, t2 - t1, tokenizerHits);
+		System.out.printf("speedup: %.2fx%n", (double) (t1 - t0) / (t2 - t1));
+	}
+
+	private static long runRegex(int iterations) {
+		long hits = 0;
+		for (int i = 0; i < iterations; i++) {
+			String line = SAMPLE_LINES[i % SAMPLE_LINES.length];
+			String software = extractToken(SOFTWARE_PATTERN, line);
+			String version = extractToken(VERSION_PATTERN, line);
+			String state = extractToken(STATE_PATTERN, line);
+			if (software != null && version != null && state != null) {
+				hits++;
+				continue;
+			}
+			if (line.startsWith("55AA") || line.contains("55AA,"))
+				hits++;
+			Matcher m = VERSION_SIMPLE.matcher(line);
+			if (m.find())
+				hits += m.group().length();
+			if (line.contains("ignStatus=1") || line.matches(".*VEHICLE\\s+.*:.*"))
+				hits++;
+		}
+		return hits;
+	}
+
+	private static long runTokenizer(int iterations) {
+		MessageTokenizer tok = new MessageTokenizer();
+		long hits = 0;
+		for (int i = 0; i < iterations; i++) {
+			String line = SAMPLE_LINES[i % SAMPLE_LINES.length];
+			tok.scan(line);
+			if (tok.hasSoftware() && tok.hasVersion() && tok.hasState()) {
+				tok.software();
+				tok.version();
+				tok.state();
+				hits++;
+				continue;
+			}
+			if (tok.isLoginPacket())
+				hits++;
+			String v = tok.firstVersion();
+			if (v != null)
+				hits += v.length();
+			if (tok.isIgnitionOn() || tok.isVehicleLine())
+				hits++;
+		}
+		return hits;
+	}
+
+	private static void replay(String[] args) throws IOException, InterruptedException {
+		String what = args.length > 1 ? args[1] : "1000000";
+		double speed = args.length > 2 ? Double.parseDouble(args[2]) : ReplaySource.AS_FAST_AS_POSSIBLE;
+		Path file;
+		boolean generated = what.matches("\\d+");
+		if (generated) {
+			file = generateLog(Integer.parseInt(what));
+		} else {
+			file = Paths.get(what);
+		}
+
+		ReplaySource source = new ReplaySource(file, speed);
+		SerialReader reader = new SerialReader(source);
+		reader.setTerminalInput(false);
+		long t0 = System.nanoTime();
+		reader.start();
+		source.awaitFinished(1, TimeUnit.HOURS);
+		long t1 = System.nanoTime();
+		// the parser finishes (or has dropped) everything published
+		long published = reader.getLineRing().getPublishedSequence() + 1;
+		while (reader.getLinesProcessed() + reader.getLinesDroppedByParser() < published)
+			Thread.sleep(1);
+		long t2 = System.nanoTime();
+		reader.stop();
+
+		System.out.printf("replayed  %,12d lines  %,12d bytes  %,12.0f lines/s into the ring%n",
+				source.getLinesReplayed(), source.getBytesReplayed(), source.getLinesReplayed() * 1e9 / (t1 - t0));
+		System.out.printf("parsed    %,12d lines  (%,d dropped)  %,12.0f lines/s end to end%n",
+				reader.getLinesProcessed(), reader.getLinesDroppedByParser(), reader.getLinesProcessed() * 1e9 / (t2 - t0));
+		if (generated)
+			Files.deleteIfExists(file);
+	}
+
+	/** A serial-stream.log of sample lines, four per serial event, 1 ms apart. */
+	private static Path generateLog(int lines) throws IOException {
+		Path file = Files.createTempFile("pipeline-replay-", ".log");
+		LogLineFormatter formatter = new LogLineFormatter();
+		long t = TimestampEncoder.nowEpochNanos();
+		try (BufferedWriter w = Files.newBufferedWriter(file, StandardCharsets.UTF_8)) {
+			for (int i = 0; i < lines; i++) {
+				if (i % 4 == 0)
+					t += TimeUnit.MILLISECONDS.toNanos(1);
+				w.write(formatter.format(new SerialLine(t, 0L, "bench", i, SAMPLE_LINES[i % SAMPLE_LINES.length])));
+				w.newLine();
+			}
+		}
+		return file;
+	}
+
+	private static String extractToken(Pattern pattern, String input) {
+		Matcher m = pattern.matcher(input);
+		return m.find() ? m.group(1) : null;
+	}
+
+	private static void report(String name, int iterations, long nanos, long hits) {
+		System.out.printf("%-10s %,12d lines  %8.1f ns/line  %,12.0f lines/s  (check=%d)%n", name, iterations,
+				(double) nanos / iterations, iterations * 1e9 / nanos, hits);
+	}
+}
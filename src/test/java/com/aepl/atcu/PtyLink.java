@@ -0,0 +1,170 @@
+package com.aepl.atcu;
+
+import java.io.BufferedReader;
+import java.io.Closeable;
+import java.io.IOException;
+import java.io.InputStream;
+import java.io.InputStreamReader;
+import java.io.OutputStream;
+import java.nio.charset.StandardCharsets;
+import java.nio.file.Files;
+import java.nio.file.Path;
+import java.util.concurrent.TimeUnit;
+
+import org.apache.logging.log4j.LogManager;
+import org.apache.logging.log4j.Logger;
+
+/**
+ * PtyLink: a pseudo-terminal that looks like a serial port to SerialReader
+ * (jSerialComm opens the link path like /dev/ttyUSB0), with the device end
+ * in this process.
+ *
+ * Java cannot allocate a pty itself, so a small python3 helper opens one in
+ * raw mode, symlinks the slave to the link path and copies between the pty
+ * master and its stdin/stdout. Output nobody is reading is dropped once the
+ * pty buffer is full, as on a real unconnected UART. Linux/macOS with python3
+ * on the PATH.
+ */
+public class PtyLink implements SimulatedAtcu.Output, Closeable {
+
+	private static final Logger LOG = LogManager.getLogger(PtyLink.class);
+
+	private static final String HELPER = String.join("\n",
+			"import os, pty, select, sys, tty",
+			"m, s = pty.openpty()",
+			"tty.setraw(s)",
+			"link = sys.argv[1]",
+			"try: os.unlink(link)",
+			"except FileNotFoundError: pass",
+			"os.symlink(os.ttyname(s), link)",
+			"sys.stderr.write(os.ttyname(s) + '\\n'); sys.stderr.flush()",
+			"os.set_blocking(m, False)",
+			"inp, out = sys.stdin.fileno(), sys.stdout.fileno()",
+			"try:",
+			"  while True:",
+			"    r, _, _ = select.select([m, inp], [], [])",
+			"    if inp in r:",
+			"      d = os.read(inp, 65536)",
+			"      if not d: break",
+			"      try: os.write(m, d)",
+			"      except BlockingIOError: pass",
+			"    if m in r:",
+			"      try: d = os.read(m, 65536)",
+			"      except (BlockingIOError, OSError): d = b''",
+			"      if d: os.write(out, d)",
+			"finally:",
+			"  try: os.unlink(link)",
+			"  except OSError: pass",
+			"");
+
+	private final Path link;
+	private final Process process;
+	private final OutputStream toDevice;
+	private final String slaveName;
+	private volatile SimulatedAtcu device;
+	private volatile boolean closed;
+
+	/** Create the pty and its link; fails if python3 is missing or the link cannot be made. */
+	public PtyLink(Path link) throws IOException {
+		this.link = link;
+		process = new ProcessBuilder("python3", "-c", HELPER, link.toString()).start();
+		toDevice = process.getOutputStream();
+		BufferedReader err = new BufferedReader(
+				new InputStreamReader(process.getErrorStream(), StandardCharsets.UTF_8));
+		String name = err.readLine();
+		if (name == null || !name.startsWith("/")) {
+			process.destroy();
+			throw new IOException("pty helper failed for " + link + (name == null ? "" : ": " + name));
+		}
+		slaveName = name;
+		Thread reader = new Thread(this::readHost, "pty-" + link.getFileName());
+		reader.setDaemon(true);
+		reader.start();
+		Thread errors = new Thread(() -> drainErrors(err), "pty-err-" + link.getFileName());
+		errors.setDaemon(true);
+		errors.start();
+	}
+
+	/** The device that receives what the host writes to the port. */
+	public void attach(SimulatedAtcu device) {
+		this.device = device;
+	}
+
+	/** What the host writes to the port: handed to the device. */
+	private void readHost() {
+		byte[] buf = new byte[4096];
+		try (InputStream in = process.getInputStream()) {
+			int n;
+			while ((n = in.read(buf)) > 0) {
+				SimulatedAtcu d = device;
+				if (d != null)
+					d.onInput(buf, 0, n);
+			}
+		} catch (IOException e) {
+			if (!closed)
+				LOG.warn("pty {} read failed: {}", link, e.getMessage());
+		}
+	}
+
+	private void drainErrors(BufferedReader err) {
+		try {
+			String line;
+			while ((line = err.readLine()) != null)
+				LOG.warn("pty helper {}: {}", link, line);
+		} catch (IOException ignored) {
+		}
+	}
+
+	/** Device output: appears on the port. */
+	@Override
+	public synchronized void write(byte[] buf, int off, int len) {
+		if (closed)
+			return;
+		try {
+			toDevice.write(buf, off, len);
+			toDevice.flush();
+		} catch (IOException e) {
+			LOG.warn("pty {} write failed: {}", link, e.getMessage());
+			closed = true;
+		}
+	}
+
+	@Override
+	public void disconnect() {
+		LOG.info("pty {} disconnected", link);
+		close();
+	}
+
+	public Path getLink() {
+		return link;
+	}
+
+	/** The real /dev/pts/N behind the link. */
+	public String getSlaveName() {
+		return slaveName;
+	}
+
+	@Override
+	public void close() {
+		synchronized (this) {
+			if (closed && !process.isAlive())
+				return;
+			closed = true;
+			try {
+				toDevice.close();
+			} catch (IOException ignored) {
+			}
+		}
+		try {
+			if (!process.waitFor(1, TimeUnit.SECONDS))
+				process.destroy();
+		} catch (InterruptedException e) {
+			process.destroy();
+			Thread.currentThread().interrupt();
+		}
+		try {
+			Files.deleteIfExists(link);
+		} catch (IOException ignored) {
+		}
+	}
+}
@@ -0,0 +1,274 @@
+package com.aepl.atcu;
+
+import java.io.BufferedReader;
+import java.io.IOException;
+import java.io.InputStream;
+import java.io.InputStreamReader;
+import java.nio.charset.StandardCharsets;
+import java.nio.file.Files;
+import java.nio.file.Path;
+import java.time.LocalDateTime;
+import java.time.ZoneId;
+import java.time.ZonedDateTime;
+import java.time.format.DateTimeFormatter;
+import java.time.format.DateTimeParseException;
+import java.util.Arrays;
+import java.util.concurrent.CountDownLatch;
+import java.util.concurrent.TimeUnit;
+import java.util.concurrent.locks.LockSupport;
+import java.util.zip.GZIPInputStream;
+
+import org.apache.logging.log4j.LogManager;
+import org.apache.logging.log4j.Logger;
+
+/**
+ * ReplaySource: plays a recording back into SerialReader as if it came from
+ * the port.
+ *
+ * Reads a CaptureSink file (detected by its magic) or a serial-stream.log
+ * segment, plain or .gz. Log lines are turned back into payloads from their
+ * columns ("LEVEL: [tag] message", which formats to the same log line); lines
+ * without a timestamp column are replayed as-is. Consecutive lines with the
+ * same timestamp came from one serial event and are delivered as one chunk
+ * stamped with that time, so a replayed log reproduces the original.
+ *
+ * Speed: 1 = real time, N = N times faster, {@link #AS_FAST_AS_POSSIBLE} = no
+ * pacing. Commands written to a replay source are discarded.
+ */
+public class ReplaySource implements SerialSource {
+
+	private static final Logger LOG = LogManager.getLogger(ReplaySource.class);
+
+	public static final double AS_FAST_AS_POSSIBLE = 0;
+
+	private static final int CHUNK_BYTES = 4096;
+	private static final byte[] CRLF = { '\r', '\n' };
+	// timestamp (27), level (6), tag (12), three separators
+	private static final int MESSAGE_COLUMN = 27 + 1 + 6 + 1 + 12 + 1;
+
+	private final Path file;
+	private final String id;
+	private final double speed;
+	private final CountDownLatch finished = new CountDownLatch(1);
+	private volatile Thread thread;
+	private volatile boolean open;
+
+	// stats
+	private volatile long linesReplayed;
+	private volatile long bytesReplayed;
+
+	public ReplaySource(Path file, double speed) {
+		this(file, "replay", speed);
+	}
+
+	public ReplaySource(Path file, String id, double speed) {
+		if (speed < 0 || Double.isNaN(speed))
+			throw new IllegalArgumentException("speed must be >= 0: " + speed);
+		this.file = file;
+		this.id = id;
+		this.speed = speed;
+	}
+
+	@Override
+	public String getId() {
+		return id;
+	}
+
+	@Override
+	public boolean open(Listener listener) {
+		Recording recording;
+		try {
+			recording = openRecording(file);
+		} catch (IOException e) {
+			LOG.error("Cannot open replay file {}: {}", file, e.getMessage());
+			return false;
+		}
+		open = true;
+		Thread t = new Thread(() -> play(recording, listener), "serial-replay");
+		t.setDaemon(true);
+		thread = t;
+		t.start();
+		return true;
+	}
+
+	private void play(Recording recording, Listener listener) {
+		byte[] chunk = new byte[CHUNK_BYTES];
+		int len = 0;
+		long chunkEpochNanos = 0;
+		long firstEpochNanos = Long.MIN_VALUE;
+		long startNanos = System.nanoTime();
+		try {
+			SerialLine line;
+			while (open && (line = recording.next()) != null) {
+				long ts = line.getEpochNanos();
+				byte[] payload = line.getPayload().getBytes(StandardCharsets.UTF_8);
+				// a new serial event: deliver the lines collected so far
+				if (len > 0 && (ts != chunkEpochNanos || len + payload.length + CRLF.length > chunk.length)) {
+					deliver(listener, chunk, len, chunkEpochNanos);
+					len = 0;
+				}
+				if (len == 0) {
+					if (firstEpochNanos == Long.MIN_VALUE)
+						firstEpochNanos = ts;
+					pace(startNanos, ts - firstEpochNanos);
+					chunkEpochNanos = ts;
+				}
+				if (payload.length + CRLF.length > chunk.length)
+					chunk = Arrays.copyOf(chunk, payload.length + CRLF.length);
+				System.arraycopy(payload, 0, chunk, len, payload.length);
+				len += payload.length;
+				chunk[len++] = '\r';
+				chunk[len++] = '\n';
+				linesReplayed++;
+			}
+			if (len > 0 && open)
+				deliver(listener, chunk, len, chunkEpochNanos);
+			LOG.info("Replay of {} finished: {} lines", file, linesReplayed);
+		} catch (IOException e) {
+			LOG.error("Replay of {} failed: {}", file, e.getMessage());
+		} finally {
+			try {
+				recording.close();
+			} catch (IOException ignored) {
+			}
+			finished.countDown();
+		}
+	}
+
+	private void deliver(Listener listener, byte[] chunk, int len, long epochNanos) {
+		listener.onData(chunk, 0, len, epochNanos, System.nanoTime());
+		bytesReplayed += len;
+	}
+
+	/** Wait until recorded offset (scaled by speed) has passed since start. */
+	private void pace(long startNanos, long recordedOffsetNanos) {
+		if (speed == AS_FAST_AS_POSSIBLE || recordedOffsetNanos <= 0)
+			return;
+		long due = startNanos + (long) (recordedOffsetNanos / speed);
+		long wait;
+		while (open && (wait = due - System.nanoTime()) > 0)
+			LockSupport.parkNanos(wait);
+	}
+
+	@Override
+	public boolean isOpen() {
+		return open;
+	}
+
+	@Override
+	public int write(byte[] buf, int len) {
+		LOG.debug("Replay source {} ignores {} written bytes", id, len);
+		return len;
+	}
+
+	@Override
+	public void close() {
+		open = false;
+		Thread t = thread;
+		if (t != null)
+			LockSupport.unpark(t);
+	}
+
+	/** Wait for the end of the recording; true if it was reached in time. */
+	public boolean awaitFinished(long timeout, TimeUnit unit) throws InterruptedException {
+		return finished.await(timeout, unit);
+	}
+
+	public boolean isFinished() {
+		return finished.getCount() == 0;
+	}
+
+	public long getLinesReplayed() {
+		return linesReplayed;
+	}
+
+	public long getBytesReplayed() {
+		return bytesReplayed;
+	}
+
+	// Recordings
+
+	private interface Recording {
+		/** Next recorded line (epoch time and payload), null at the end. */
+		SerialLine next() throws IOException;
+
+		void close() throws IOException;
+	}
+
+	private static Recording openRecording(Path file) throws IOException {
+		byte[] head = new byte[CaptureFormat.CAPTURE_MAGIC.length];
+		int n;
+		try (InputStream in = Files.newInputStream(file)) {
+			n = in.read(head);
+		}
+		if (n == head.length && Arrays.equals(head, CaptureFormat.CAPTURE_MAGIC)) {
+			CaptureReader reader = new CaptureReader(file);
+			return new Recording() {
+				@Override
+				public SerialLine next() throws IOException {
+					return reader.next();
+				}
+
+				@Override
+				public void close() throws IOException {
+					reader.close();
+				}
+			};
+		}
+		InputStream in = Files.newInputStream(file);
+		if (file.getFileName().toString().endsWith(".gz"))
+			in = new GZIPInputStream(in, 64 * 1024);
+		return new TextLogRecording(new BufferedReader(new InputStreamReader(in, StandardCharsets.UTF_8)));
+	}
+
+	/**
+	 * serial-stream.log lines: "timestamp level [tag] message" in fixed columns
+	 * (see LogLineFormatter).
+	 */
+	private static final class TextLogRecording implements Recording {
+		private static final DateTimeFormatter TIMESTAMP = DateTimeFormatter.ISO_LOCAL_DATE_TIME;
+
+		private final BufferedReader reader;
+		private final ZoneId zone = ZoneId.systemDefault();
+		private long lastEpochNanos = TimestampEncoder.nowEpochNanos();
+		private long sequence;
+
+		TextLogRecording(BufferedReader reader) {
+			this.reader = reader;
+		}
+
+		@Override
+		public SerialLine next() throws IOException {
+			String text;
+			do {
+				text = reader.readLine();
+				if (text == null)
+					return null;
+			} while (text.trim().isEmpty());
+			String payload = text;
+			if (text.length() >= MESSAGE_COLUMN - 1 && text.charAt(27) == ' ') {
+				try {
+					ZonedDateTime t = LocalDateTime.parse(text.substring(0, 27), TIMESTAMP).atZone(zone);
+					lastEpochNanos = t.toEpochSecond() * 1_000_000_000L + t.getNano();
+					String level = text.substring(28, 34).trim();
+					String tag = text.substring(35, 47).trim();
+					String message = text.length() > MESSAGE_COLUMN ? text.substring(MESSAGE_COLUMN) : "";
+					StringBuilder sb = new StringBuilder(text.length());
+					if (!level.isEmpty())
+						sb.append(level).append(": ");
+					if (!tag.isEmpty())
+						sb.append(tag).append(' ');
+					payload = sb.append(message).toString().trim();
+				} catch (DateTimeParseException notALogLine) {
+					// no timestamp column: replay the text as it is
+				}
+			}
+			return new SerialLine(lastEpochNanos, 0L, null, sequence++, payload);
+		}
+
+		@Override
+		public void close() throws IOException {
+			reader.close();
+		}
+	}
+}
@@ -0,0 +1,113 @@
+package com.aepl.atcu;
+
+import java.io.IOException;
+import java.io.OutputStream;
+import java.io.OutputStreamWriter;
+import java.io.Writer;
+import java.nio.charset.StandardCharsets;
+import java.nio.file.Files;
+import java.nio.file.Path;
+import java.util.ArrayList;
+import java.util.Arrays;
+import java.util.Collections;
+import java.util.List;
+import java.util.concurrent.TimeUnit;
+import java.util.zip.GZIPOutputStream;
+
+import junit.framework.TestCase;
+
+/**
+ * ReplaySourceTest: a serial-stream.log written with LogLineFormatter, plain
+ * and gzipped, replays the original payloads in chunks stamped with the
+ * recorded times.
+ */
+public class ReplaySourceTest extends TestCase {
+
+	private Path dir;
+
+	@Override
+	protected void setUp() throws IOException {
+		dir = Files.createTempDirectory("replay-test");
+	}
+
+	@Override
+	protected void tearDown() throws IOException {
+		for (String name : new String[] { "serial-stream.log", "serial-stream.log.gz" })
+			Files.deleteIfExists(dir.resolve(name));
+		Files.deleteIfExists(dir);
+	}
+
+	/** One delivered chunk: its text and the time it was stamped with. */
+	private static final class Chunk {
+		final String text;
+		final long epochNanos;
+
+		Chunk(String text, long epochNanos) {
+			this.text = text;
+			this.epochNanos = epochNanos;
+		}
+
+		@Override
+		public boolean equals(Object o) {
+			return o instanceof Chunk && ((Chunk) o).text.equals(text) && ((Chunk) o).epochNanos == epochNanos;
+		}
+
+		@Override
+		public int hashCode() {
+			return text.hashCode();
+		}
+
+		@Override
+		public String toString() {
+			return epochNanos + " " + text;
+		}
+	}
+
+	/** Three serial events; the second carries a line without a timestamp column. */
+	private List<Chunk> writeLog(OutputStream out) throws IOException {
+		// the log keeps 7 fraction digits
+		long t0 = TimestampEncoder.nowEpochNanos() / 100 * 100;
+		long t1 = t0 + 1_234_567_800L;
+		long t2 = t1 + 300;
+		LogLineFormatter formatter = new LogLineFormatter();
+		try (Writer w = new OutputStreamWriter(out, StandardCharsets.UTF_8)) {
+			w.write(formatter.format(new SerialLine(t0, 0, "COM1", 0, "INFO: [GPS] fix acquired")) + "\r\n");
+			w.write(formatter.format(new SerialLine(t0, 0, "COM1", 1, "DEBUG: [NET] attach ok")) + "\r\n");
+			w.write(formatter.format(new SerialLine(t1, 0, "COM1", 2, "ERROR: [MODEM] no carrier")) + "\r\n");
+			w.write("boot banner\r\n\r\n");
+			w.write(formatter.format(new SerialLine(t2, 0, "COM1", 3, "[FOTA] caf\u00E9 done")) + "\r\n");
+		}
+		return Arrays.asList(new Chunk("INFO: [GPS] fix acquired\r\nDEBUG: [NET] attach ok\r\n", t0),
+				new Chunk("ERROR: [MODEM] no carrier\r\nboot banner\r\n", t1),
+				new Chunk("[FOTA] caf\u00E9 done\r\n", t2));
+	}
+
+	private static List<Chunk> replay(Path file) throws InterruptedException {
+		List<Chunk> chunks = Collections.synchronizedList(new ArrayList<>());
+		ReplaySource source = new ReplaySource(file, ReplaySource.AS_FAST_AS_POSSIBLE);
+		assertTrue(source.open((buf, off, len, epochNanos, nanos) -> chunks
+				.add(new Chunk(new String(buf, off, len, StandardCharsets.UTF_8), epochNanos))));
+		assertTrue(source.awaitFinished(5, TimeUnit.SECONDS));
+		assertEquals(5, source.getLinesReplayed());
+		source.close();
+		return chunks;
+	}
+
+	public void testPlainLogRoundTrip() throws Exception {
+		Path file = dir.resolve("serial-stream.log");
+		List<Chunk> expected = writeLog(Files.newOutputStream(file));
+		assertEquals(expected, replay(file));
+	}
+
+	public void testGzippedLogRoundTrip() throws Exception {
+		Path file = dir.resolve("serial-stream.log.gz");
+		List<Chunk> expected = writeLog(new GZIPOutputStream(Files.newOutputStream(file)));
+		assertEquals(expected, replay(file));
+	}
+
+	public void testMissingFileDoesNotOpen() {
+		ReplaySource source = new ReplaySource(dir.resolve("missing.log"), 1);
+		assertFalse(source.open((buf, off, len, epochNanos, nanos) -> fail()));
+		assertFalse(source.isOpen());
+	}
+}
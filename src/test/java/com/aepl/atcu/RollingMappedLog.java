@@ -0,0 +1,306 @@
+package com.aepl.atcu;
+
+import java.io.IOException;
+import java.io.InputStream;
+import java.io.OutputStream;
+import java.lang.reflect.Field;
+import java.lang.reflect.Method;
+import java.nio.ByteBuffer;
+import java.nio.MappedByteBuffer;
+import java.nio.channels.Channels;
+import java.nio.channels.FileChannel;
+import java.nio.file.DirectoryStream;
+import java.nio.file.Files;
+import java.nio.file.Path;
+import java.nio.file.StandardCopyOption;
+import java.nio.file.StandardOpenOption;
+import java.text.SimpleDateFormat;
+import java.util.ArrayList;
+import java.util.Collections;
+import java.util.Date;
+import java.util.List;
+import java.util.concurrent.ExecutorService;
+import java.util.concurrent.Executors;
+import java.util.concurrent.TimeUnit;
+import java.util.zip.GZIPOutputStream;
+
+import org.apache.logging.log4j.LogManager;
+import org.apache.logging.log4j.Logger;
+
+/**
+ * RollingMappedLog: serial-stream log split into preallocated, memory-mapped
+ * segments.
+ *
+ * Each segment is created at its full size and mapped once, so appends are
+ * plain stores into the mapping with no write() call per batch. A segment is
+ * rolled when the next batch does not fit or when it is older than maxAge; a
+ * batch is never split across segments unless it is larger than a segment.
+ * Closed segments are trimmed to their written length, gzipped on a background
+ * thread (optional) and the oldest closed segments are deleted while the total
+ * exceeds retentionBytes.
+ *
+ * Segment names are {@code <prefix>-yyyyMMdd-HHmmss-NNNN.log} and are never
+ * renamed while mapped (Windows refuses that). A segment left behind by a crash
+ * keeps its zero padding after the last line.
+ *
+ * write/force/close are called from the sink thread only.
+ */
+public class RollingMappedLog implements LogOutput {
+
+	private static final Logger LOG = LogManager.getLogger(RollingMappedLog.class);
+
+	public static final long DEFAULT_SEGMENT_BYTES = 64L * 1024 * 1024;
+	public static final long DEFAULT_MAX_AGE_NANOS = TimeUnit.HOURS.toNanos(1);
+	public static final long DEFAULT_RETENTION_BYTES = 2L * 1024 * 1024 * 1024;
+
+	private static final String LOG_SUFFIX = ".log";
+	private static final String GZ_SUFFIX = ".log.gz";
+
+	private final Path dir;
+	private final String prefix;
+	private final long segmentBytes;
+	private final long maxAgeNanos;
+	private final long retentionBytes;
+	private final boolean compress;
+	private final ExecutorService housekeeper;
+	// held while a segment is created and published, and while the housekeeper
+	// lists the directory, so it never sees a new segment that is not yet current
+	private final Object segmentLock = new Object();
+
+	private FileChannel channel;
+	private MappedByteBuffer mapped;
+	private volatile Path current;
+	private long openedNanos;
+	private int counter;
+
+	// stats
+	private volatile long segmentsRolled;
+	private volatile long segmentsCompressed;
+	private volatile long segmentsDeleted;
+
+	public RollingMappedLog(Path dir, String prefix) {
+		this(dir, prefix, DEFAULT_SEGMENT_BYTES, DEFAULT_MAX_AGE_NANOS, DEFAULT_RETENTION_BYTES, true);
+	}
+
+	/**
+	 * @param maxAgeNanos    roll a segment after this long; 0 = size only
+	 * @param retentionBytes bytes of closed segments to keep; 0 = keep all
+	 */
+	public RollingMappedLog(Path dir, String prefix, long segmentBytes, long maxAgeNanos, long retentionBytes,
+			boolean compress) {
+		if (segmentBytes <= 0 || segmentBytes > Integer.MAX_VALUE)
+			throw new IllegalArgumentException("segmentBytes must be in (0, 2 GiB): " + segmentBytes);
+		this.dir = dir;
+		this.prefix = prefix;
+		this.segmentBytes = segmentBytes;
+		this.maxAgeNanos = maxAgeNanos;
+		this.retentionBytes = retentionBytes;
+		this.compress = compress;
+		this.housekeeper = Executors.newSingleThreadExecutor(r -> {
+			Thread t = new Thread(r, "log-housekeeper");
+			t.setDaemon(true);
+			return t;
+		});
+	}
+
+	@Override
+	public void write(ByteBuffer src) throws IOException {
+		if (mapped != null && maxAgeNanos > 0 && System.nanoTime() - openedNanos >= maxAgeNanos)
+			roll();
+		if (mapped != null && mapped.remaining() < src.remaining() && mapped.position() > 0)
+			roll();
+		while (src.hasRemaining()) {
+			if (mapped == null)
+				open();
+			if (!mapped.hasRemaining()) {
+				roll();
+				continue;
+			}
+			int n = Math.min(src.remaining(), mapped.remaining());
+			int limit = src.limit();
+			src.limit(src.position() + n);
+			mapped.put(src);
+			src.limit(limit);
+		}
+	}
+
+	@Override
+	public void force() throws IOException {
+		if (mapped != null)
+			mapped.force();
+	}
+
+	@Override
+	public void close() throws IOException {
+		closeSegment();
+		housekeeper.shutdown();
+		try {
+			housekeeper.awaitTermination(30, TimeUnit.SECONDS);
+		} catch (InterruptedException e) {
+			Thread.currentThread().interrupt();
+		}
+	}
+
+	private void open() throws IOException {
+		Files.createDirectories(dir);
+		String stamp = new SimpleDateFormat("yyyyMMdd-HHmmss").format(new Date());
+		synchronized (segmentLock) {
+			Path file;
+			do {
+				file = dir.resolve(String.format("%s-%s-%04d%s", prefix, stamp, counter++ % 10000, LOG_SUFFIX));
+			} while (Files.exists(file));
+			channel = FileChannel.open(file, StandardOpenOption.CREATE_NEW, StandardOpenOption.READ,
+					StandardOpenOption.WRITE);
+			mapped = channel.map(FileChannel.MapMode.READ_WRITE, 0, segmentBytes);
+			current = file;
+		}
+		openedNanos = System.nanoTime();
+	}
+
+	private void roll() throws IOException {
+		closeSegment();
+		segmentsRolled++;
+		open();
+	}
+
+	/**
+	 * Flush and unmap the active segment, then trim it to its written length
+	 * and hand it to the housekeeper.
+	 */
+	private void closeSegment() throws IOException {
+		if (mapped == null)
+			return;
+		final Path file = current;
+		final long length = mapped.position();
+		mapped.force();
+		boolean unmapped = unmap(mapped);
+		mapped = null;
+		current = null;
+		if (unmapped) {
+			channel.truncate(length);
+		}
+		channel.close();
+		channel = null;
+		housekeeper.execute(() -> housekeep(file, length));
+	}
+
+	private void housekeep(Path file, long length) {
+		if (compress) {
+			try {
+				gzip(file, length);
+				segmentsCompressed++;
+			} catch (IOException e) {
+				LOG.warn("Failed to compress {}: {}", file, e.getMessage());
+			}
+		}
+		if (retentionBytes > 0)
+			enforceRetention();
+	}
+
+	/**
+	 * Copy the first length bytes of file into file.gz and delete file. The
+	 * length bound also drops any padding a failed trim left behind.
+	 */
+	private void gzip(Path file, long length) throws IOException {
+		String name = file.getFileName().toString();
+		Path gz = file.resolveSibling(name.substring(0, name.length() - LOG_SUFFIX.length()) + GZ_SUFFIX);
+		Path tmp = gz.resolveSibling(gz.getFileName() + ".tmp");
+		try (FileChannel in = FileChannel.open(file, StandardOpenOption.READ);
+				InputStream is = Channels.newInputStream(in);
+				OutputStream os = new GZIPOutputStream(Files.newOutputStream(tmp), 64 * 1024)) {
+			byte[] chunk = new byte[64 * 1024];
+			long left = length;
+			while (left > 0) {
+				int r = is.read(chunk, 0, (int) Math.min(chunk.length, left));
+				if (r < 0)
+					break;
+				os.write(chunk, 0, r);
+				left -= r;
+			}
+		}
+		Files.move(tmp, gz, StandardCopyOption.REPLACE_EXISTING);
+		Files.delete(file);
+	}
+
+	private void enforceRetention() {
+		List<Path> closed = new ArrayList<>();
+		synchronized (segmentLock) {
+			try (DirectoryStream<Path> ds = Files.newDirectoryStream(dir, prefix + "-*")) {
+				for (Path p : ds) {
+					String name = p.getFileName().toString();
+					if ((name.endsWith(LOG_SUFFIX) || name.endsWith(GZ_SUFFIX)) && !p.equals(current))
+						closed.add(p);
+				}
+			} catch (IOException e) {
+				LOG.warn("Failed to list {}: {}", dir, e.getMessage());
+				return;
+			}
+		}
+		// names sort by creation time
+		Collections.sort(closed);
+		long total = 0;
+		long[] sizes = new long[closed.size()];
+		for (int i = 0; i < sizes.length; i++) {
+			try {
+				sizes[i] = Files.size(closed.get(i));
+			} catch (IOException ignored) {
+			}
+			total += sizes[i];
+		}
+		for (int i = 0; i < sizes.length && total > retentionBytes; i++) {
+			try {
+				Files.deleteIfExists(closed.get(i));
+				total -= sizes[i];
+				segmentsDeleted++;
+			} catch (IOException e) {
+				LOG.warn("Failed to delete old segment {}: {}", closed.get(i), e.getMessage());
+			}
+		}
+	}
+
+	/**
+	 * Release a mapping now instead of at GC, so the file can be truncated and
+	 * deleted. Uses Unsafe.invokeCleaner on Java 9+ and the buffer's cleaner on
+	 * Java 8; returns false if neither is available.
+	 */
+	private static boolean unmap(MappedByteBuffer buffer) {
+		try {
+			Class<?> unsafeClass = Class.forName("sun.misc.Unsafe");
+			Method invokeCleaner = unsafeClass.getMethod("invokeCleaner", ByteBuffer.class);
+			Field f = unsafeClass.getDeclaredField("theUnsafe");
+			f.setAccessible(true);
+			invokeCleaner.invoke(f.get(null), buffer);
+			return true;
+		} catch (NoSuchMethodException e) {
+			// Java 8
+		} catch (ReflectiveOperationException | RuntimeException e) {
+			return false;
+		}
+		try {
+			Method cleanerMethod = buffer.getClass().getMethod("cleaner");
+			cleanerMethod.setAccessible(true);
+			Object cleaner = cleanerMethod.invoke(buffer);
+			cleaner.getClass().getMethod("clean").invoke(cleaner);
+			return true;
+		} catch (ReflectiveOperationException | RuntimeException e) {
+			return false;
+		}
+	}
+
+	/** Active segment, or null before the first write. */
+	public Path getCurrentSegment() {
+		return current;
+	}
+
+	public long getSegmentsRolled() {
+		return segmentsRolled;
+	}
+
+	public long getSegmentsCompressed() {
+		return segmentsCompressed;
+	}
+
+	public long getSegmentsDeleted() {
+		return segmentsDeleted;
+	}
+}
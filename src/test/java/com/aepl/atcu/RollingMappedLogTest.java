@@ -0,0 +1,57 @@
+package com.aepl.atcu;
+
+import java.io.IOException;
+import java.nio.ByteBuffer;
+import java.nio.charset.StandardCharsets;
+import java.nio.file.Files;
+import java.nio.file.Path;
+import java.util.stream.Stream;
+
+import junit.framework.TestCase;
+
+/**
+ * RollingMappedLogTest: rolling, trimming and retention while the housekeeper
+ * runs concurrently with the writer.
+ */
+public class RollingMappedLogTest extends TestCase {
+
+	private Path dir;
+
+	@Override
+	protected void setUp() throws IOException {
+		dir = Files.createTempDirectory("rolling-log-test");
+	}
+
+	@Override
+	protected void tearDown() throws IOException {
+		try (Stream<Path> files = Files.list(dir)) {
+			for (Object f : files.toArray())
+				Files.deleteIfExists((Path) f);
+		}
+		Files.deleteIfExists(dir);
+	}
+
+	private static ByteBuffer line(int i) {
+		return ByteBuffer.wrap(String.format("line %04d\n", i).getBytes(StandardCharsets.US_ASCII));
+	}
+
+	public void testRetentionNeverDeletesActiveSegment() throws IOException {
+		// every batch rolls and every roll triggers retention down to nothing
+		RollingMappedLog log = new RollingMappedLog(dir, "t", 10, 0, 1, false);
+		for (int i = 0; i < 2000; i++) {
+			log.write(line(i));
+			assertTrue("active segment deleted at " + i, Files.exists(log.getCurrentSegment()));
+		}
+		log.close();
+		assertEquals(1999, log.getSegmentsRolled());
+	}
+
+	public void testClosedSegmentIsTrimmedToWrittenLength() throws IOException {
+		RollingMappedLog log = new RollingMappedLog(dir, "t", 1024, 0, 0, false);
+		log.write(line(1));
+		log.write(line(2));
+		Path segment = log.getCurrentSegment();
+		log.close();
+		assertEquals("line 0001\nline 0002\n", new String(Files.readAllBytes(segment), StandardCharsets.US_ASCII));
+	}
+}
@@ -0,0 +1,284 @@
+package com.aepl.atcu;
+
+import java.io.IOException;
+import java.nio.charset.StandardCharsets;
+import java.util.ArrayList;
+import java.util.Arrays;
+import java.util.Iterator;
+import java.util.List;
+import java.util.concurrent.BlockingQueue;
+import java.util.concurrent.CompletableFuture;
+import java.util.concurrent.ConcurrentLinkedQueue;
+import java.util.concurrent.Executors;
+import java.util.concurrent.LinkedBlockingQueue;
+import java.util.concurrent.RejectedExecutionException;
+import java.util.concurrent.ScheduledExecutorService;
+import java.util.concurrent.ScheduledFuture;
+import java.util.concurrent.TimeUnit;
+import java.util.concurrent.TimeoutException;
+import java.util.function.Predicate;
+import java.util.regex.Pattern;
+
+import org.apache.logging.log4j.LogManager;
+import org.apache.logging.log4j.Logger;
+
+/**
+ * SerialCommandChannel: sends commands to the device and matches replies.
+ *
+ * {@link #send(String, Predicate, long, TimeUnit)} queues a command and
+ * returns a future completed with the first serial line, received after the
+ * command went out, that the matcher accepts. Any number of commands can be
+ * in flight; each line completes at most one of them, the oldest that
+ * matches. Unmatched commands fail with a TimeoutException.
+ *
+ * One writer thread ("serial-writer") drains the queue and writes all
+ * commands waiting at that moment with a single source write. A responder
+ * thread ("serial-responder") reads the lines from its own ring cursor.
+ */
+public class SerialCommandChannel {
+
+	private static final Logger LOG = LogManager.getLogger(SerialCommandChannel.class);
+
+	private static final int MAX_BATCH = 64;
+
+	/** A command and the reply it waits for. */
+	private static final class Request {
+		final String command;
+		final byte[] bytes;
+		final Predicate<String> matcher;
+		final CompletableFuture<SerialLine> future = new CompletableFuture<>();
+		// set by the writer just before the write; lines captured earlier do not match
+		volatile long writtenNanos = Long.MAX_VALUE;
+		volatile ScheduledFuture<?> timeout;
+
+		Request(String command, Predicate<String> matcher) {
+			this.command = command;
+			this.bytes = (command + "\r\n").getBytes(StandardCharsets.UTF_8);
+			this.matcher = matcher;
+		}
+	}
+
+	private static final Request STOP = new Request("", null);
+
+	private final SerialSource source;
+	private final LineRingBuffer.Cursor<SerialLine> replies;
+	private final BlockingQueue<Request> outbox = new LinkedBlockingQueue<>();
+	// written, waiting for a reply; oldest first
+	private final ConcurrentLinkedQueue<Request> inFlight = new ConcurrentLinkedQueue<>();
+	private final ScheduledExecutorService timer = Executors.newSingleThreadScheduledExecutor(r -> {
+		Thread t = new Thread(r, "serial-command-timer");
+		t.setDaemon(true);
+		return t;
+	});
+	private volatile Thread writer;
+	private volatile Thread responder;
+	private volatile boolean closed;
+
+	// stats
+	private volatile long commandsWritten;
+	private volatile long writes;
+
+	/**
+	 * @param replies a cursor of its own over the serial lines (best effort,
+	 *                e.g. DROP_OLDEST)
+	 */
+	public SerialCommandChannel(SerialSource source, LineRingBuffer.Cursor<SerialLine> replies) {
+		this.source = source;
+		this.replies = replies;
+	}
+
+	public synchronized void start() {
+		if (writer != null)
+			return;
+		writer = new Thread(this::writeLoop, "serial-writer");
+		writer.setDaemon(true);
+		writer.start();
+		responder = new Thread(this::respondLoop, "serial-responder");
+		responder.setDaemon(true);
+		responder.start();
+	}
+
+	/** Send a command without waiting for a reply; completes once written. */
+	public CompletableFuture<Void> send(String command) {
+		return enqueue(new Request(command, null)).thenApply(line -> null);
+	}
+
+	/** Send a command and wait for the first later line matching response (find). */
+	public CompletableFuture<SerialLine> send(String command, Pattern response, long timeout, TimeUnit unit) {
+		return send(command, payload -> response.matcher(payload).find(), timeout, unit);
+	}
+
+	/**
+	 * Send a command and complete with the first line received after the write
+	 * whose payload the matcher accepts, or fail with TimeoutException.
+	 */
+	public CompletableFuture<SerialLine> send(String command, Predicate<String> responseMatcher, long timeout,
+			TimeUnit unit) {
+		Request r = new Request(command, responseMatcher);
+		// before enqueue: the writer may add r to inFlight and fail it at once
+		r.future.whenComplete((line, error) -> {
+			ScheduledFuture<?> t = r.timeout;
+			if (t != null)
+				t.cancel(false);
+			inFlight.remove(r);
+		});
+		enqueue(r);
+		if (!r.future.isDone()) {
+			try {
+				r.timeout = timer.schedule(() -> {
+					r.future.completeExceptionally(new TimeoutException(
+							"no reply to '" + command + "' within " + unit.toMillis(timeout) + " ms"));
+				}, timeout, unit);
+			} catch (RejectedExecutionException e) {
+				// closed after enqueue
+				r.future.completeExceptionally(new IllegalStateException("command channel closed"));
+			}
+			// completed meanwhile: the cleanup above may have missed the timer
+			if (r.future.isDone() && r.timeout != null)
+				r.timeout.cancel(false);
+		}
+		return r.future;
+	}
+
+	private CompletableFuture<SerialLine> enqueue(Request r) {
+		if (closed)
+			r.future.completeExceptionally(new IllegalStateException("command channel closed"));
+		else
+			outbox.add(r);
+		return r.future;
+	}
+
+	private void writeLoop() {
+		List<Request> batch = new ArrayList<>(MAX_BATCH);
+		byte[] buf = new byte[1024];
+		try {
+			while (true) {
+				batch.clear();
+				batch.add(outbox.take());
+				outbox.drainTo(batch, MAX_BATCH - 1);
+				int len = 0;
+				boolean stop = false;
+				for (Iterator<Request> it = batch.iterator(); it.hasNext();) {
+					Request r = it.next();
+					if (r == STOP) {
+						stop = true;
+						it.remove();
+						continue;
+					}
+					if (r.future.isDone()) {
+						// timed out or cancelled before it was sent
+						it.remove();
+						continue;
+					}
+					if (len + r.bytes.length > buf.length)
+						buf = Arrays.copyOf(buf, Math.max(buf.length * 2, len + r.bytes.length));
+					System.arraycopy(r.bytes, 0, buf, len, r.bytes.length);
+					len += r.bytes.length;
+				}
+				if (len > 0)
+					write(batch, buf, len);
+				if (stop)
+					return;
+			}
+		} catch (InterruptedException e) {
+			Thread.currentThread().interrupt();
+		}
+	}
+
+	private void write(List<Request> batch, byte[] buf, int len) {
+		long now = System.nanoTime();
+		// registered before the write: a fast reply must find its request
+		for (Request r : batch) {
+			LOG.info("[SEND] {}", r.command);
+			if (r.matcher != null) {
+				r.writtenNanos = now;
+				inFlight.add(r);
+			}
+		}
+		int n;
+		try {
+			n = source.write(buf, len);
+		} catch (RuntimeException e) {
+			LOG.error("Failed to write to serial port: {}", e.getMessage(), e);
+			n = -1;
+		}
+		writes++;
+		if (n != len) {
+			IOException failure = new IOException("serial write failed (" + n + " of " + len + " bytes)");
+			for (Request r : batch)
+				r.future.completeExceptionally(failure);
+			return;
+		}
+		commandsWritten += batch.size();
+		for (Request r : batch)
+			if (r.matcher == null)
+				r.future.complete(null);
+	}
+
+	private void respondLoop() {
+		try {
+			while (!Thread.currentThread().isInterrupted()) {
+				SerialLine line = replies.take();
+				if (inFlight.isEmpty())
+					continue;
+				for (Request r : inFlight) {
+					// captured before the command was written: not a reply
+					if (line.getCaptureNanos() < r.writtenNanos)
+						continue;
+					if (matches(r, line.getPayload())) {
+						inFlight.remove(r);
+						if (r.future.complete(line))
+							break;
+					}
+				}
+			}
+		} catch (InterruptedException e) {
+			Thread.currentThread().interrupt();
+		}
+	}
+
+	private static boolean matches(Request r, String payload) {
+		try {
+			return r.matcher.test(payload);
+		} catch (RuntimeException e) {
+			r.future.completeExceptionally(e);
+			return false;
+		}
+	}
+
+	/** Number of commands written but not yet answered. */
+	public int getInFlight() {
+		return inFlight.size();
+	}
+
+	public long getCommandsWritten() {
+		return commandsWritten;
+	}
+
+	/** Source writes used for those commands (lower than commands when coalesced). */
+	public long getWrites() {
+		return writes;
+	}
+
+	/** Stop both threads; commands still queued or in flight fail. */
+	public void close() {
+		closed = true;
+		outbox.add(STOP);
+		Thread w = writer, r = responder;
+		try {
+			if (w != null)
+				w.join(1000);
+		} catch (InterruptedException e) {
+			Thread.currentThread().interrupt();
+		}
+		if (r != null)
+			r.interrupt();
+		timer.shutdownNow();
+		IllegalStateException closedError = new IllegalStateException("command channel closed");
+		for (Request q; (q = outbox.poll()) != null;)
+			q.future.completeExceptionally(closedError);
+		for (Request q : inFlight)
+			q.future.completeExceptionally(closedError);
+		replies.close();
+	}
+}
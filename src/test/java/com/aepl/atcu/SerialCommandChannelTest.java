@@ -0,0 +1,141 @@
+package com.aepl.atcu;
+
+import java.io.IOException;
+import java.nio.charset.StandardCharsets;
+import java.util.ArrayList;
+import java.util.List;
+import java.util.concurrent.CompletableFuture;
+import java.util.concurrent.ExecutionException;
+import java.util.concurrent.TimeUnit;
+import java.util.concurrent.TimeoutException;
+import java.util.regex.Pattern;
+
+import junit.framework.TestCase;
+
+/**
+ * SerialCommandChannelTest: reply matching, timeouts and failed writes, with a
+ * source that answers (or fails) on the writer thread.
+ */
+public class SerialCommandChannelTest extends TestCase {
+
+	/** Answers "OK <command>" to every command, unless failing. */
+	private static final class EchoSource implements SerialSource {
+		final LineRingBuffer<SerialLine> ring;
+		volatile boolean fail;
+		volatile boolean silent;
+		private long sequence;
+
+		EchoSource(LineRingBuffer<SerialLine> ring) {
+			this.ring = ring;
+		}
+
+		@Override
+		public String getId() {
+			return "echo";
+		}
+
+		@Override
+		public boolean open(Listener listener) {
+			return true;
+		}
+
+		@Override
+		public boolean isOpen() {
+			return true;
+		}
+
+		@Override
+		public int write(byte[] buf, int len) {
+			if (fail)
+				return -1;
+			if (!silent)
+				for (String cmd : new String(buf, 0, len, StandardCharsets.UTF_8).split("\r\n"))
+					ring.tryPublish(new SerialLine(0, System.nanoTime(), "echo", sequence++, "OK " + cmd));
+			return len;
+		}
+
+		@Override
+		public void close() {
+		}
+	}
+
+	private LineRingBuffer<SerialLine> ring;
+	private EchoSource source;
+	private SerialCommandChannel channel;
+
+	@Override
+	protected void setUp() {
+		ring = new LineRingBuffer<>(1024, LineRingBuffer.WaitStrategy.PARK);
+		source = new EchoSource(ring);
+		channel = new SerialCommandChannel(source,
+				ring.addConsumer("replies", 1024, LineRingBuffer.OverflowPolicy.DROP_OLDEST));
+		channel.start();
+	}
+
+	@Override
+	protected void tearDown() {
+		channel.close();
+	}
+
+	/**
+	 * The in-flight cleanup runs right after a future completes, which may be
+	 * just after get() returned: give it a moment.
+	 */
+	private void assertNoneInFlight() throws InterruptedException {
+		long deadline = System.currentTimeMillis() + 5000;
+		while (channel.getInFlight() != 0 && System.currentTimeMillis() < deadline)
+			Thread.sleep(1);
+		assertEquals(0, channel.getInFlight());
+	}
+
+	public void testReplyCompletesMatchingCommand() throws Exception {
+		List<CompletableFuture<SerialLine>> replies = new ArrayList<>();
+		for (int i = 0; i < 50; i++)
+			replies.add(channel.send("CMD" + i, Pattern.compile("^OK CMD" + i + "$"), 5, TimeUnit.SECONDS));
+		for (int i = 0; i < 50; i++)
+			assertEquals("OK CMD" + i, replies.get(i).get(5, TimeUnit.SECONDS).getPayload());
+		assertNoneInFlight();
+		assertEquals(50, channel.getCommandsWritten());
+	}
+
+	public void testTimeoutWhenNoReply() throws Exception {
+		source.silent = true;
+		CompletableFuture<SerialLine> reply = channel.send("VERSION?", Pattern.compile("VERSION"), 50,
+				TimeUnit.MILLISECONDS);
+		try {
+			reply.get(5, TimeUnit.SECONDS);
+			fail();
+		} catch (ExecutionException e) {
+			assertTrue(e.getCause() instanceof TimeoutException);
+		}
+		assertNoneInFlight();
+	}
+
+	public void testFailedWriteLeavesNothingInFlight() throws Exception {
+		source.fail = true;
+		List<CompletableFuture<SerialLine>> replies = new ArrayList<>();
+		for (int i = 0; i < 200; i++) {
+			replies.add(channel.send("CMD" + i, Pattern.compile("never"), 10, TimeUnit.SECONDS));
+			Thread.yield();
+		}
+		for (CompletableFuture<SerialLine> r : replies) {
+			try {
+				r.get(5, TimeUnit.SECONDS);
+				fail();
+			} catch (ExecutionException e) {
+				assertTrue(e.getCause() instanceof IOException);
+			}
+		}
+		assertNoneInFlight();
+	}
+
+	public void testSendAfterCloseFails() throws Exception {
+		channel.close();
+		try {
+			channel.send("X", Pattern.compile("X"), 1, TimeUnit.SECONDS).get(1, TimeUnit.SECONDS);
+			fail();
+		} catch (ExecutionException e) {
+			assertTrue(e.getCause() instanceof IllegalStateException);
+		}
+	}
+}
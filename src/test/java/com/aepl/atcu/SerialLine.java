@@ -0,0 +1,104 @@
+package com.aepl.atcu;
+
+import java.io.DataInput;
+import java.io.DataOutput;
+import java.io.IOException;
+
+/**
+ * SerialLine: one framed, cleaned line from a serial port.
+ *
+ * Carries the capture times of the serial event that completed the line
+ * (wall clock for rendering, monotonic for latency measurements), the port it
+ * came from, a per-reader sequence number and the payload text. The timestamp
+ * is only rendered as text by the log sink; consumers get the payload as-is.
+ * The framing time is kept in memory only, for pipeline latency metrics.
+ */
+public final class SerialLine {
+
+	/** On-disk form used when a consumer spills lines. */
+	public static final SpillSegment.Codec<SerialLine> CODEC = new SpillSegment.Codec<SerialLine>() {
+		@Override
+		public void write(DataOutput out, SerialLine line) throws IOException {
+			out.writeLong(line.epochNanos);
+			out.writeLong(line.captureNanos);
+			out.writeLong(line.sequence);
+			out.writeUTF(line.portId);
+			out.writeUTF(line.payload);
+		}
+
+		@Override
+		public SerialLine read(DataInput in) throws IOException {
+			long epochNanos = in.readLong();
+			long captureNanos = in.readLong();
+			long sequence = in.readLong();
+			String portId = in.readUTF();
+			String payload = in.readUTF();
+			return new SerialLine(epochNanos, captureNanos, portId, sequence, payload);
+		}
+	};
+
+	private final long epochNanos;
+	private final long captureNanos;
+	private final String portId;
+	private final long sequence;
+	private final String payload;
+	private final long framedNanos;
+
+	public SerialLine(long epochNanos, long captureNanos, String portId, long sequence, String payload) {
+		this(epochNanos, captureNanos, 0L, portId, sequence, payload);
+	}
+
+	/** @param framedNanos monotonic time the framer completed the line, 0 if unknown */
+	public SerialLine(long epochNanos, long captureNanos, long framedNanos, String portId, long sequence,
+			String payload) {
+		this.epochNanos = epochNanos;
+		this.captureNanos = captureNanos;
+		this.framedNanos = framedNanos;
+		this.portId = portId;
+		this.sequence = sequence;
+		this.payload = payload;
+	}
+
+	/** Wall-clock capture time in nanoseconds since the epoch. */
+	public long getEpochNanos() {
+		return epochNanos;
+	}
+
+	/** Monotonic capture time ({@link System#nanoTime()}). */
+	public long getCaptureNanos() {
+		return captureNanos;
+	}
+
+	/**
+	 * Monotonic time the line was framed, 0 if unknown (replayed, or read back
+	 * from a spill or capture file).
+	 */
+	public long getFramedNanos() {
+		return framedNanos;
+	}
+
+	public String getPortId() {
+		return portId;
+	}
+
+	public long getSequence() {
+		return sequence;
+	}
+
+	public String getPayload() {
+		return payload;
+	}
+
+	/**
+	 * Approximate heap retained by this line (object headers plus UTF-16
+	 * payload), used to bound consumer backlogs in bytes.
+	 */
+	public static int retainedSize(SerialLine line) {
+		return 96 + 2 * line.payload.length();
+	}
+
+	@Override
+	public String toString() {
+		return portId + "#" + sequence + " " + payload;
+	}
+}
@@ -1,136 +1,230 @@
 package com.aepl.atcu;
 
-import com.fazecast.jSerialComm.*;
+import org.apache.logging.log4j.LogManager;
+import org.apache.logging.log4j.Logger;
 
-import java.io.BufferedWriter;
-import java.io.FileWriter;
+import java.io.BufferedReader;
 import java.io.IOException;
+import java.io.InputStreamReader;
+import java.io.OutputStream;
 import java.nio.charset.StandardCharsets;
-import java.time.LocalDateTime;
-import java.time.format.DateTimeFormatter;
+import java.nio.file.Path;
+import java.nio.file.Paths;
+import java.util.List;
 import java.util.Map;
-import java.util.Scanner;
 import java.util.concurrent.*;
-import java.util.concurrent.ConcurrentHashMap;
-import java.util.concurrent.ConcurrentMap;
-import java.util.regex.Matcher;
+import java.util.concurrent.atomic.LongAdder;
+import java.util.function.Predicate;
 import java.util.regex.Pattern;
 
 /**
- * SerialReader with: - event-driven serial read (jSerialComm) - full-line
- * assembly (no fragmented prints) - ANSI stripping - aligned console+file
- * logging - parsing of SOFTWARE/VERSION/STATE and login CSV packets - in-memory
- * stateMap (state -> (software -> version)) - terminal input mode (read from
- * stdin and send to device)
+ * SerialReader with: - event-driven serial read (SerialSource: jSerialComm
+ * port or recorded replay) - full-line assembly on raw bytes (LineFramer, no
+ * fragmented prints) - streaming ANSI stripping (AnsiStripper) - aligned
+ * console+file logging - parsing of SOFTWARE/VERSION/STATE and login CSV
+ * packets - in-memory stateMap (state -> (software -> version)) - terminal
+ * input mode (read from stdin and send to device)
  *
  * Usage: java -cp <jar> com.aepl.atcu.SerialReader [PORT_NAME] [BAUD]
+ *
+ * or, without a device: java -cp <jar> com.aepl.atcu.SerialReader --replay
+ * FILE [SPEED] (serial-stream.log segment or capture file; SPEED 1 = real
+ * time, 0 = as fast as possible)
  */
 public class SerialReader {
 
+	private static final Logger LOG = LogManager.getLogger(SerialReader.class);
+
 	// CONFIG (override via args)
 	private static final String PORT_NAME = "COM21";
 	private static final int BAUD = 115200;
-	private static final String LOG_FILE = "serial-stream.log";
+	private static final String LOG_DIR = "serial-logs";
+	private static final String LOG_PREFIX = "serial-stream";
+	private static final int RING_CAPACITY = 16384;
+	// DROP_NEWEST / SPILL consumers may hold at most half the ring
+	private static final int BACKLOG_CAPACITY = RING_CAPACITY / 2;
+	private static final long CONSUMER_MAX_BYTES = 16L * 1024 * 1024;
+	private static final String SPILL_DIR = "serial-spill";
+	private static final int CONSOLE_CAPACITY = 4096;
+	private static final int COMMAND_REPLY_CAPACITY = 1024;
 
 	// Patterns
-	private static final Pattern ANSI_ESCAPE = Pattern.compile("\u001B\\[[;\\d]*[A-Za-z]");
-	private static final Pattern LEADING_TIMESTAMP = Pattern
-			.compile("^\\d{4}-\\d{2}-\\d{2}T\\d{2}:\\d{2}:\\d{2}\\.\\d{7}\\s+");
-	private static final Pattern SOFTWARE_PATTERN = Pattern.compile("(?i)SOFTWARE[:=\\s]+([^\\s,;:\\n]+)");
-	private static final Pattern VERSION_PATTERN = Pattern.compile("(?i)VERSION[:=\\s]+([^\\s,;:\\n]+)");
-	private static final Pattern STATE_PATTERN = Pattern.compile("(?i)STATE[:=\\s]+([^\\s,;:\\n]+)");
-	private static final Pattern VERSION_SIMPLE = Pattern.compile("\\d+\\.\\d+(?:\\.\\d+)*");
-	private static final Pattern LOG_PARSE = Pattern
-			.compile("^(\\S+)\\s*(?:([A-Z]+):\\s*)?(?:\\s*\\[([^\\]]+)\\]\\s*)?(.*)$");
-
-	public BlockingQueue<String> getProcessorQueue() {
-		return this.processorQueue;
-	}
+	// only for lines MessageTokenizer cannot decide ('.' vs. line separators)
+	private static final Pattern VEHICLE_LINE = Pattern.compile(".*VEHICLE\\s+.*:.*");
 
 	// In-memory state map
-	private final ConcurrentMap<String, ConcurrentMap<String, String>> stateMap = new ConcurrentHashMap<>();
+	// versioned and copy-on-write: snapshots and deltas for readers without locking
+	private final VersionStateMap stateMap = new VersionStateMap();
+	// optional persistence of stateMap, see enableStatePersistence
+	private StateMapStore stateStore;
+	// awaitVersionChange / awaitVersionReport callers, completed by putVersionIntoMap
+	private final List<VersionWaiter> versionWaiters = new CopyOnWriteArrayList<>();
+	private final ScheduledExecutorService waitTimer = Executors.newSingleThreadScheduledExecutor(r -> {
+		Thread t = new Thread(r, "version-wait-timer");
+		t.setDaemon(true);
+		return t;
+	});
 
-	private final SerialPort port;
-	private final BlockingQueue<String> writerQueue = new LinkedBlockingQueue<>(20000);
-	private final BlockingQueue<String> processorQueue = new LinkedBlockingQueue<>(20000);
+	private final SerialSource source;
+	private final String portId;
+	private volatile boolean terminalInput = true;
+	// one preallocated ring, one cursor per consumer; backlogs bounded in bytes
+	private final LineRingBuffer<SerialLine> lineRing = new LineRingBuffer<>(RING_CAPACITY,
+			LineRingBuffer.WaitStrategy.PARK, SerialLine::retainedSize);
+	// the log file must not lose lines: spill to disk when the writer lags
+	private final LineRingBuffer.Cursor<SerialLine> writerCursor;
+	// the parser only needs current state: drop new lines while it catches up
+	private final LineRingBuffer.Cursor<SerialLine> processorCursor;
+	// the console is best effort: keep the newest lines
+	private final LineRingBuffer.Cursor<SerialLine> consoleCursor;
+	private final LogFileSink fileSink;
+	private final ConsoleSink consoleSink;
+	// commands to the device and their replies
+	private final SerialCommandChannel commands;
+	// optional binary capture, see enableCapture
+	private CaptureSink captureSink;
+	private ExecutorService captureExecutor;
 
 	private final ExecutorService writerExecutor = Executors.newSingleThreadExecutor(r -> {
 		Thread t = new Thread(r, "log-writer");
 		t.setDaemon(true);
 		return t;
 	});
+	private final ExecutorService consoleExecutor = Executors.newSingleThreadExecutor(r -> {
+		Thread t = new Thread(r, "console-writer");
+		t.setDaemon(true);
+		return t;
+	});
 	private final ExecutorService processorExecutor = Executors.newSingleThreadExecutor(r -> {
 		Thread t = new Thread(r, "message-processor");
 		t.setDaemon(true);
 		return t;
 	});
 
-	private final StringBuilder lineBuffer = new StringBuilder();
+	// ingest metrics: instruments looked up once, updated on the hot path
+	private final Metrics metrics = new Metrics();
+	private final LongAdder bytesRead = metrics.counter("serial.bytes");
+	private final LongAdder chunksRead = metrics.counter("serial.chunks");
+	private final LongAdder linesFramed = metrics.counter("lines.framed");
+	private final LongAdder linesParsed = metrics.counter("lines.parsed");
+	private final LongAdder stateUpdates = metrics.counter("state.updates");
+	private final LatencyHistogram eventToFrame = metrics.histogram("latency.event-to-frame");
+	private final LatencyHistogram frameToParse = metrics.histogram("latency.frame-to-parse");
+	private final LatencyHistogram parseToUpdate = metrics.histogram("latency.parse-to-update");
+
+	// processor thread only
+	private final MessageTokenizer tokenizer = new MessageTokenizer();
+	private final LoginPacketParser loginParser = new LoginPacketParser();
+	private long parseStartNanos;
+	// the line being parsed, for the trace in VersionReport
+	private SerialLine currentLine;
+
+	private final LineFramer framer = new LineFramer(this::handleFramedLine);
+	// guarded by framer
+	private long chunkEpochNanos;
+	private long chunkCaptureNanos;
+	private long nextSequence;
 
 	public SerialReader(String portName, int baud) {
-		port = SerialPort.getCommPort(portName);
-		port.setBaudRate(baud);
-		port.setNumDataBits(8);
-		port.setNumStopBits(SerialPort.ONE_STOP_BIT);
-		port.setParity(SerialPort.NO_PARITY);
-		port.setComPortTimeouts(SerialPort.TIMEOUT_NONBLOCKING, 0, 0);
+		this(new JSerialCommSource(portName, baud));
+	}
+
+	/** Read from any source, e.g. a {@link ReplaySource} instead of a port. */
+	public SerialReader(SerialSource source) {
+		this.source = source;
+		portId = source.getId();
+		lineRing.setSpill(Paths.get(SPILL_DIR), SerialLine.CODEC);
+		writerCursor = lineRing.addConsumer("log-writer", BACKLOG_CAPACITY, CONSUMER_MAX_BYTES,
+				LineRingBuffer.OverflowPolicy.SPILL);
+		processorCursor = lineRing.addConsumer("message-processor", BACKLOG_CAPACITY, CONSUMER_MAX_BYTES,
+				LineRingBuffer.OverflowPolicy.DROP_NEWEST);
+		consoleCursor = lineRing.addConsumer("console", CONSOLE_CAPACITY, LineRingBuffer.OverflowPolicy.DROP_OLDEST);
+		fileSink = new LogFileSink(writerCursor, new RollingMappedLog(Paths.get(LOG_DIR), LOG_PREFIX));
+		consoleSink = new ConsoleSink(consoleCursor);
+		// replies are only useful while fresh: keep the newest lines
+		LineRingBuffer.Cursor<SerialLine> repliesCursor = lineRing.addConsumer("command-replies",
+				COMMAND_REPLY_CAPACITY, LineRingBuffer.OverflowPolicy.DROP_OLDEST);
+		commands = new SerialCommandChannel(source, repliesCursor);
+
+		metrics.gauge("ring.published", lineRing::getPublishedSequence);
+		metrics.gauge("ring.rejected", lineRing::getRejected);
+		metrics.gauge("ring.max.lag", lineRing::getMaxLag);
+		addQueueGauges(writerCursor);
+		addQueueGauges(processorCursor);
+		addQueueGauges(consoleCursor);
+		addQueueGauges(repliesCursor);
+	}
+
+	/** Depth, high-water mark, drops and spills of one consumer queue. */
+	private void addQueueGauges(LineRingBuffer.Cursor<SerialLine> cursor) {
+		String prefix = "queue." + cursor.getName() + ".";
+		metrics.gauge(prefix + "lag", cursor::lag);
+		metrics.gauge(prefix + "max.lag", cursor::getMaxLag);
+		metrics.gauge(prefix + "pending.bytes", cursor::getPendingBytes);
+		metrics.gauge(prefix + "dropped", cursor::getDropped);
+		metrics.gauge(prefix + "spilled", cursor::getSpilled);
 	}
 
 	public void start() {
-		if (!port.openPort()) {
-			System.err.println("Failed to open port: " + port.getSystemPortName());
+		// the source may deliver right away: every cursor already exists
+		if (!source.open(this::handleIncomingChunk)) {
+			LOG.error("Failed to open port: {}", source.getId());
 			return;
 		}
-		System.out.println("Opened " + port.getSystemPortName());
+		LOG.info("Opened {}", source.getId());
 
-		writerExecutor.submit(this::writeLoop);
+		writerExecutor.submit(fileSink);
+		consoleExecutor.submit(consoleSink);
+		if (captureSink != null)
+			captureExecutor.submit(captureSink);
 		processorExecutor.submit(this::processLoop);
-
-		// Serial data listener
-		port.addDataListener(new SerialPortDataListener() {
-			@Override
-			public int getListeningEvents() {
-				return SerialPort.LISTENING_EVENT_DATA_AVAILABLE;
-			}
-
-			@Override
-			public void serialEvent(SerialPortEvent event) {
-				if (event.getEventType() != SerialPort.LISTENING_EVENT_DATA_AVAILABLE)
-					return;
-				int available = port.bytesAvailable();
-				if (available <= 0)
-					return;
-				byte[] buffer = new byte[available];
-				int read = port.readBytes(buffer, buffer.length);
-				if (read > 0) {
-					String chunk = new String(buffer, 0, read, StandardCharsets.UTF_8);
-					handleIncomingChunk(chunk);
-				}
-			}
-		});
-
-		// Terminal input thread: read from stdin and send to serial
-		Thread inputThread = new Thread(this::terminalInputLoop, "terminal-input");
-		inputThread.setDaemon(false); // keep JVM alive while user interacts
-		inputThread.start();
+		commands.start();
 
 		Runtime.getRuntime().addShutdownHook(new Thread(() -> {
 			stop();
-			System.out.println("Shutdown complete.");
+			LOG.info("Shutdown complete.");
 		}));
+
+		if (terminalInput) {
+			// Terminal input thread: read from stdin and send to serial
+			Thread inputThread = new Thread(this::terminalInputLoop, "terminal-input");
+			inputThread.setDaemon(false); // keep JVM alive while user interacts
+			inputThread.start();
+		}
+	}
+
+	/**
+	 * Whether start() also reads commands from System.in (default true); turn
+	 * off for replay runs and benchmarks.
+	 */
+	public void setTerminalInput(boolean terminalInput) {
+		this.terminalInput = terminalInput;
 	}
 
 	public void stop() {
 		try {
-			port.removeDataListener();
-			if (port.isOpen())
-				port.closePort();
+			metrics.stopDump();
+			commands.close();
+			waitTimer.shutdownNow();
+			IllegalStateException stopped = new IllegalStateException("serial reader stopped");
+			for (VersionWaiter w : versionWaiters)
+				w.future.completeExceptionally(stopped);
+			source.close();
 		} finally {
-			writerExecutor.shutdown();
-			processorExecutor.shutdown();
+			// interrupt the file sink so it writes out what it has buffered
+			writerExecutor.shutdownNow();
+			consoleExecutor.shutdownNow();
+			if (captureExecutor != null)
+				captureExecutor.shutdownNow();
+			// wakes the parser out of take(); it closes the state store on exit
+			processorExecutor.shutdownNow();
 			try {
 				writerExecutor.awaitTermination(3, TimeUnit.SECONDS);
-				processorExecutor.awaitTermination(3, TimeUnit.SECONDS);
+				if (captureExecutor != null)
+					captureExecutor.awaitTermination(3, TimeUnit.SECONDS);
+				// if the parser never ran, nothing else closes the store
+				if (processorExecutor.awaitTermination(3, TimeUnit.SECONDS))
+					closeStateStore();
 			} catch (InterruptedException ignored) {
 				Thread.currentThread().interrupt();
 			}
@@ -140,85 +234,65 @@ public class SerialReader {
 	/**
 	 * Read from terminal (System.in) and send to serial port. Commands: - exit /
 	 * quit -> stops program - otherwise the line is sent with CRLF appended
+	 * through the command channel. Blocks in readLine; ends at end of input.
 	 */
 	private void terminalInputLoop() {
-		try (Scanner scanner = new Scanner(System.in, StandardCharsets.UTF_8.name())) {
-			System.out.println("[INPUT] Type commands to send to device. Type 'exit' or 'quit' to stop.");
-			while (true) {
-				if (!scanner.hasNextLine()) {
-					Thread.sleep(50);
-					continue;
-				}
-				String cmd = scanner.nextLine();
-				if (cmd == null)
-					continue;
+		try (BufferedReader in = new BufferedReader(new InputStreamReader(System.in, StandardCharsets.UTF_8))) {
+			LOG.info("[INPUT] Type commands to send to device. Type 'exit' or 'quit' to stop.");
+			String cmd;
+			while ((cmd = in.readLine()) != null) {
 				String trimmed = cmd.trim();
 				if (trimmed.equalsIgnoreCase("exit") || trimmed.equalsIgnoreCase("quit")) {
-					System.out.println("Exiting...");
+					LOG.info("Exiting...");
 					stop();
 					// ensure JVM exits
 					System.exit(0);
 				}
-				// Echo the command to console for clarity
-				System.out.println("[SEND] " + cmd);
-				byte[] bytes = (cmd + "\r\n").getBytes(StandardCharsets.UTF_8);
-				try {
-					port.writeBytes(bytes, bytes.length);
-				} catch (Exception ex) {
-					System.err.println("Failed to write to serial port: " + ex.getMessage());
-				}
+				commands.send(cmd);
 			}
-		} catch (InterruptedException ie) {
-			Thread.currentThread().interrupt();
-		} catch (Exception e) {
-			e.printStackTrace();
+		} catch (IOException e) {
+			LOG.error("Terminal input loop failed", e);
 		}
 	}
 
 	/**
-	 * Assemble chunks into full lines, strip ANSI, timestamp and enqueue.
+	 * Assemble chunks into full lines via the byte framer. Lines completed by
+	 * this chunk are stamped with the chunk's arrival time.
 	 */
-	private void handleIncomingChunk(String chunk) {
-		if (chunk == null || chunk.isEmpty())
+	private void handleIncomingChunk(byte[] buf, int off, int len, long arrivalEpochNanos, long arrivalNanos) {
+		if (len <= 0)
 			return;
-		synchronized (lineBuffer) {
-			chunk = chunk.replace("\r\n", "\n").replace('\r', '\n');
-			lineBuffer.append(chunk);
-			int newlineIndex;
-			while ((newlineIndex = lineBuffer.indexOf("\n")) != -1) {
-				String rawLine = lineBuffer.substring(0, newlineIndex);
-				lineBuffer.delete(0, newlineIndex + 1);
-				String cleaned = stripAnsi(rawLine).trim();
-				if (!cleaned.isEmpty()) {
-					String timestamped = timestampWith7() + " " + cleaned;
-					boolean wOk = writerQueue.offer(timestamped);
-					boolean pOk = processorQueue.offer(timestamped);
-					if (!wOk || !pOk) {
-						System.err.println("Queue full: dropping line -> " + cleaned);
-					}
-				}
-			}
+		bytesRead.add(len);
+		chunksRead.increment();
+		synchronized (framer) {
+			chunkEpochNanos = arrivalEpochNanos;
+			chunkCaptureNanos = arrivalNanos;
+			framer.feed(buf, off, len);
 		}
 	}
 
 	/**
-	 * Writer: format and write to console and file
+	 * Called by the framer for each completed (already ANSI-stripped) line: trim,
+	 * wrap in a SerialLine and publish to the ring.
 	 */
-	private void writeLoop() {
-		try (BufferedWriter bw = new BufferedWriter(new FileWriter(LOG_FILE, true))) {
-			while (!Thread.currentThread().isInterrupted()) {
-				String raw = writerQueue.take();
-				String formatted = formatLogLine(raw);
-				System.out.println(formatted);
-				bw.write(formatted);
-				bw.newLine();
-				bw.flush();
-			}
-		} catch (InterruptedException e) {
-			Thread.currentThread().interrupt();
-		} catch (IOException ioe) {
-			ioe.printStackTrace();
-		}
+	private void handleFramedLine(byte[] buf, int off, int len) {
+		// skip blank lines before decoding anything
+		int start = off, end = off + len;
+		while (start < end && (buf[start] & 0xFF) <= ' ')
+			start++;
+		while (end > start && (buf[end - 1] & 0xFF) <= ' ')
+			end--;
+		if (start == end)
+			return;
+		String cleaned = new String(buf, start, end - start, StandardCharsets.UTF_8);
+		long framedNanos = System.nanoTime();
+		eventToFrame.record(framedNanos - chunkCaptureNanos);
+		linesFramed.increment();
+		SerialLine line = new SerialLine(chunkEpochNanos, chunkCaptureNanos, framedNanos, portId, nextSequence++,
+				cleaned);
+		// overflow is handled (and counted) per consumer by the ring; nothing is
+		// printed here, the serial callback must stay cheap under overload
+		lineRing.tryPublish(line);
 	}
 
 	/**
@@ -227,12 +301,38 @@ public class SerialReader {
 	private void processLoop() {
 		try {
 			while (!Thread.currentThread().isInterrupted()) {
-				String line = processorQueue.take();
-				String withoutTs = LEADING_TIMESTAMP.matcher(line).replaceFirst("");
-				handleMessage(withoutTs);
+				SerialLine line = processorCursor.take();
+				parseStartNanos = System.nanoTime();
+				// 0 = read back from the spill, framing time not kept
+				if (line.getFramedNanos() != 0)
+					frameToParse.record(parseStartNanos - line.getFramedNanos());
+				currentLine = line;
+				handleMessage(line.getPayload());
+				linesParsed.increment();
 			}
 		} catch (InterruptedException e) {
 			Thread.currentThread().interrupt();
+		} finally {
+			// the store is only written from this thread: close it after the last append
+			closeStateStore();
+		}
+	}
+
+	/**
+	 * Compact and close the state store. Runs with the interrupt flag cleared,
+	 * since an interrupt would close its FileChannel mid-write.
+	 */
+	private void closeStateStore() {
+		if (stateStore == null)
+			return;
+		boolean interrupted = Thread.interrupted();
+		try {
+			stateStore.close();
+		} catch (IOException e) {
+			LOG.error("Failed to save state: {}", e.getMessage());
+		} finally {
+			if (interrupted)
+				Thread.currentThread().interrupt();
 		}
 	}
 
@@ -243,179 +343,286 @@ public class SerialReader {
 		if (line == null || line.isEmpty())
 			return;
 
-		// 1) labeled SOFTWARE/VERSION/STATE preferred
-		String software = extractToken(SOFTWARE_PATTERN, line);
-		String version = extractToken(VERSION_PATTERN, line);
-		String state = extractToken(STATE_PATTERN, line);
+		// one pass finds labels, version tokens and markers
+		MessageTokenizer tok = tokenizer;
+		tok.scan(line);
 
-		if (software != null && version != null && state != null) {
-			putVersionIntoMap(state.trim(), software.trim(), version.trim());
+		// 1) labeled SOFTWARE/VERSION/STATE preferred
+		if (tok.hasSoftware() && tok.hasVersion() && tok.hasState()) {
+			putVersionIntoMap(tok.state(), tok.software(), tok.version());
 			return;
 		}
 
 		// 2) If labeled SOFTWARE found but VERSION missing, check if SOFTWARE value
 		// itself is a version
-		if (software != null && version == null) {
-			if (VERSION_SIMPLE.matcher(software).find()) {
-				putVersionIntoMap(state == null ? "UNKNOWN" : state.trim(), "SOFTWARE", software.trim());
+		if (tok.hasSoftware() && !tok.hasVersion()) {
+			if (tok.softwareLooksLikeVersion()) {
+				putVersionIntoMap(tok.hasState() ? tok.state() : "UNKNOWN", "SOFTWARE", tok.software());
 				return;
 			}
 		}
 
 		// 3) CSV login packet (e.g. "55AA,...,5.2.8,...|")
-		if (line.startsWith("55AA") || line.contains("55AA,")) {
-			String payload = line;
-			int pipeIdx = payload.indexOf('|');
-			if (pipeIdx != -1)
-				payload = payload.substring(0, pipeIdx);
-			String[] parts = payload.split(",");
-			String foundVersion = null;
-			for (String p : parts) {
-				String t = p.trim();
-				if (VERSION_SIMPLE.matcher(t).matches()) {
-					foundVersion = t;
-					break;
-				}
-			}
-			String deviceId = null;
-			if (parts.length > 6) {
-				String candidate = parts[6].trim();
-				if (!candidate.isEmpty() && !VERSION_SIMPLE.matcher(candidate).matches()) {
-					deviceId = candidate;
-				}
-			}
-			if (foundVersion != null) {
-				String keySoftware = (deviceId != null) ? deviceId : "LOGIN_SOFTWARE";
-				putVersionIntoMap("LOGIN", keySoftware, foundVersion);
-				return;
-			}
+		if (tok.isLoginPacket() && loginParser.parse(line)) {
+			String deviceId = loginParser.deviceId();
+			String keySoftware = (deviceId != null) ? deviceId : "LOGIN_SOFTWARE";
+			putVersionIntoMap("LOGIN", keySoftware, loginParser.version());
+			return;
 		}
 
 		// 4) fallback: any standalone version-like token
-		Matcher mVer = VERSION_SIMPLE.matcher(line);
-		if (mVer.find()) {
-			putVersionIntoMap("UNKNOWN", "SOFTWARE", mVer.group());
+		String firstVersion = tok.firstVersion();
+		if (firstVersion != null) {
+			putVersionIntoMap("UNKNOWN", "SOFTWARE", firstVersion);
 		}
 
 		// Example action rules still available
-		if (line.contains("ignStatus=1")) {
-			System.out.println("[ACTION] ignition status is 1 -> trigger alert or API call");
-		} else if (line.matches(".*VEHICLE\\s+.*:.*")) {
-			System.out.println("[ACTION] vehicle info line detected");
+		if (tok.isIgnitionOn()) {
+			LOG.info("[ACTION] ignition status is 1 -> trigger alert or API call");
+		} else if (tok.needsRegexFallback() ? VEHICLE_LINE.matcher(line).matches() : tok.isVehicleLine()) {
+			LOG.info("[ACTION] vehicle info line detected");
 		}
 	}
 
 	private void putVersionIntoMap(String state, String software, String version) {
-		stateMap.computeIfAbsent(state, k -> new ConcurrentHashMap<>()).put(software, version);
-		System.out.println("[MAP-UPDATE] state=" + state + " software=" + software + " version=" + version);
+		String previous = stateMap.put(state, software, version);
+		// repeated reports of the same version are not news, except to
+		// awaitVersionReport callers
+		boolean changed = !version.equals(previous);
+		long storedNanos = System.nanoTime();
+		if (changed) {
+			parseToUpdate.record(storedNanos - parseStartNanos);
+			stateUpdates.increment();
+			if (stateStore != null)
+				stateStore.append(stateMap.getGeneration(), state, software, version);
+			LOG.info("[MAP-UPDATE] state={} software={} version={}", state, software, version);
+		}
+		VersionReport report = null;
+		for (VersionWaiter w : versionWaiters)
+			if ((w.state == null || w.state.equals(state)) && (w.software == null || w.software.equals(software))) {
+				if (report == null)
+					report = new VersionReport(state, software, version, currentLine, parseStartNanos, storedNanos);
+				w.offer(report, changed);
+			}
 	}
 
-	// --- utilities ---
+	// Runtime accessors
+
+	public LineRingBuffer<SerialLine> getLineRing() {
+		return lineRing;
+	}
 
-	private static String extractToken(Pattern pattern, String input) {
-		if (input == null)
-			return null;
-		Matcher m = pattern.matcher(input);
-		if (m.find()) {
-			String g = m.group(1);
-			return (g != null) ? g.trim() : null;
+	/** Lines the parser has handled so far. */
+	public long getLinesProcessed() {
+		return linesParsed.sum();
+	}
+
+	/** Lines the parser skipped because it was behind (DROP_NEWEST). */
+	public long getLinesDroppedByParser() {
+		return processorCursor.getDropped();
+	}
+
+	/**
+	 * Ingest metrics: serial.bytes/chunks, lines.framed/parsed, state.updates
+	 * counters; ring.* and queue.&lt;consumer&gt;.* gauges (lag, max.lag,
+	 * pending.bytes, dropped, spilled); latency.event-to-frame, frame-to-parse
+	 * and parse-to-update histograms. getMetrics().startDump(...) logs them
+	 * periodically.
+	 */
+	public Metrics getMetrics() {
+		return metrics;
+	}
+
+	/** The console view of the serial stream: tune rate limit and sampling here. */
+	public ConsoleSink getConsole() {
+		return consoleSink;
+	}
+
+	/**
+	 * Send commands to the device, optionally waiting for the matching reply,
+	 * e.g. getCommands().send("VERSION?", VERSION_REPLY, 5, TimeUnit.SECONDS).
+	 */
+	public SerialCommandChannel getCommands() {
+		return commands;
+	}
+
+	/**
+	 * Subscribe to every line published from now on. Each subscriber reads
+	 * through its own cursor holding at most capacity unread lines; policy
+	 * decides what happens when it falls behind (DROP_OLDEST never slows the
+	 * reader or the other subscribers). Call close() on the cursor to
+	 * unsubscribe.
+	 */
+	public LineRingBuffer.Cursor<SerialLine> subscribe(String name, int capacity,
+			LineRingBuffer.OverflowPolicy policy) {
+		return subscribe(name, capacity, CONSUMER_MAX_BYTES, policy);
+	}
+
+	/**
+	 * Like {@link #subscribe(String, int, LineRingBuffer.OverflowPolicy)} with
+	 * the backlog also bounded to maxBytes (approximate retained heap).
+	 */
+	public LineRingBuffer.Cursor<SerialLine> subscribe(String name, int capacity, long maxBytes,
+			LineRingBuffer.OverflowPolicy policy) {
+		return lineRing.addConsumer(name, capacity, maxBytes, policy);
+	}
+
+	/**
+	 * Also record every line to a binary capture file (see CaptureSink /
+	 * CaptureReader). Call before start(); an existing capture is replaced.
+	 * Like the log file, the capture spills to disk rather than lose lines.
+	 */
+	public void enableCapture(Path file) {
+		if (captureSink != null)
+			throw new IllegalStateException("Capture already enabled: " + captureSink.getFile());
+		LineRingBuffer.Cursor<SerialLine> cursor = lineRing.addConsumer("capture", BACKLOG_CAPACITY,
+				CONSUMER_MAX_BYTES, LineRingBuffer.OverflowPolicy.SPILL);
+		captureSink = new CaptureSink(cursor, file);
+		addQueueGauges(cursor);
+		captureExecutor = Executors.newSingleThreadExecutor(r -> {
+			Thread t = new Thread(r, "capture-writer");
+			t.setDaemon(true);
+			return t;
+		});
+	}
+
+	/**
+	 * Keep the state map in dir (snapshot + write-ahead log) and restore it now,
+	 * so getVersionFor answers from the last run right away. Call before
+	 * start().
+	 */
+	public void enableStatePersistence(Path dir) throws IOException {
+		if (stateStore != null)
+			throw new IllegalStateException("State persistence already enabled");
+		StateMapStore store = new StateMapStore(dir);
+		store.load(stateMap);
+		stateStore = store;
+	}
+
+	/**
+	 * Select the 55AA field positions for the connected device's firmware family.
+	 */
+	public void setLoginPacketLayout(LoginPacketParser.Layout layout) {
+		loginParser.setLayout(layout);
+	}
+
+	/**
+	 * Complete with the next version stored for (state, software) that differs
+	 * from the one before it and that predicate accepts; state null = any
+	 * state, software null = any software in that state, predicate null = any
+	 * version. Fails with a TimeoutException after timeout. Completed on the
+	 * parser thread right after the map update, so use the *Async stages for
+	 * anything slow.
+	 */
+	public CompletableFuture<String> awaitVersionChange(String state, String software, Predicate<String> predicate,
+			long timeout, TimeUnit unit) {
+		CompletableFuture<VersionReport> report = await(new VersionWaiter(state, software, predicate, true, 0),
+				"no version change", timeout, unit);
+		CompletableFuture<String> version = report.thenApply(VersionReport::getVersion);
+		// cancelling the version cancels the wait
+		version.whenComplete((v, e) -> report.cancel(false));
+		return version;
+	}
+
+	/**
+	 * Complete with the next version parsed for (state, software) from a line
+	 * captured after sinceNanos ({@link System#nanoTime()}), also one equal to
+	 * the version already stored, and with the trace of that line (sequence
+	 * number and the time of each pipeline hop). Versions stored before, or
+	 * restored from the state store, never complete it. Otherwise like
+	 * {@link #awaitVersionChange}.
+	 */
+	public CompletableFuture<VersionReport> awaitVersionReport(String state, String software, long sinceNanos,
+			Predicate<String> predicate, long timeout, TimeUnit unit) {
+		return await(new VersionWaiter(state, software, predicate, false, sinceNanos), "no version report", timeout,
+				unit);
+	}
+
+	private CompletableFuture<VersionReport> await(VersionWaiter w, String what, long timeout, TimeUnit unit) {
+		versionWaiters.add(w);
+		ScheduledFuture<?> expiry = waitTimer.schedule(() -> w.future.completeExceptionally(new TimeoutException(
+				what + " for " + w.state + "/" + w.software + " within " + unit.toMillis(timeout) + " ms")), timeout,
+				unit);
+		w.future.whenComplete((v, e) -> {
+			expiry.cancel(false);
+			versionWaiters.remove(w);
+		});
+		return w.future;
+	}
+
+	/** One awaitVersionChange / awaitVersionReport call. */
+	private static final class VersionWaiter {
+		final String state;
+		final String software;
+		final Predicate<String> predicate;
+		final boolean changesOnly;
+		final long sinceNanos;
+		final CompletableFuture<VersionReport> future = new CompletableFuture<>();
+
+		VersionWaiter(String state, String software, Predicate<String> predicate, boolean changesOnly,
+				long sinceNanos) {
+			this.state = state;
+			this.software = software;
+			this.predicate = predicate;
+			this.changesOnly = changesOnly;
+			this.sinceNanos = sinceNanos;
 		}
-		return null;
-	}
-
-	private static String formatLogLine(String raw) {
-		if (raw == null)
-			return "";
-		Matcher m = LOG_PARSE.matcher(raw);
-		if (!m.matches())
-			return raw;
-		String ts = safeOrEmpty(m.group(1));
-		String level = safeOrEmpty(m.group(2));
-		String tag = safeOrEmpty(m.group(3));
-		String msg = safeOrEmpty(m.group(4));
-		String tagOut = tag.isEmpty() ? "" : "[" + tag + "]";
-		String tsFmt = padRight(ts, 27);
-		String levelFmt = padRight(level, 6);
-		String tagFmt = padRight(tagOut, 12);
-		return String.format("%s %s %s %s", tsFmt, levelFmt, tagFmt, msg);
-	}
-
-	private static String safeOrEmpty(String s) {
-		return (s == null) ? "" : s;
-	}
-
-	private static String padRight(String s, int width) {
-		if (s == null)
-			s = "";
-		if (s.length() >= width)
-			return s.substring(0, width);
-		StringBuilder sb = new StringBuilder(s);
-		while (sb.length() < width)
-			sb.append(' ');
-		return sb.toString();
-	}
-
-	private static String timestampWith7() {
-		LocalDateTime now = LocalDateTime.now();
-		int nano = now.getNano();
-		int frac7 = nano / 100;
-		String fracStr = String.format("%07d", frac7);
-		String base = now.format(DateTimeFormatter.ofPattern("yyyy-MM-dd'T'HH:mm:ss"));
-		return base + "." + fracStr;
-	}
-
-	private static String stripAnsi(String input) {
-		if (input == null)
-			return null;
-		return ANSI_ESCAPE.matcher(input).replaceAll("");
-	}
-
-	// JSON snapshot (simple)
-	private String toJson() {
-		StringBuilder sb = new StringBuilder();
-		sb.append("{");
-		boolean firstState = true;
-		for (Map.Entry<String, ConcurrentMap<String, String>> stateEntry : stateMap.entrySet()) {
-			if (!firstState)
-				sb.append(", ");
-			firstState = false;
-			sb.append("\"").append(escapeJson(stateEntry.getKey())).append("\": ");
-			sb.append("{");
-			boolean firstSw = true;
-			for (Map.Entry<String, String> swEntry : stateEntry.getValue().entrySet()) {
-				if (!firstSw)
-					sb.append(", ");
-				firstSw = false;
-				sb.append("\"").append(escapeJson(swEntry.getKey())).append("\": ");
-				sb.append("\"").append(escapeJson(swEntry.getValue())).append("\"");
+
+		void offer(VersionReport report, boolean changed) {
+			if (changesOnly ? !changed : report.getEventNanos() - sinceNanos <= 0)
+				return;
+			try {
+				if (predicate == null || predicate.test(report.getVersion()))
+					future.complete(report);
+			} catch (RuntimeException e) {
+				future.completeExceptionally(e);
 			}
-			sb.append("}");
 		}
-		sb.append("}");
-		return sb.toString();
 	}
 
-	private static String escapeJson(String s) {
-		if (s == null)
-			return "";
-		return s.replace("\\", "\\\\").replace("\"", "\\\"").replace("\n", "\\n").replace("\r", "\\r");
+	public String getVersionFor(String state, String software) {
+		return stateMap.get(state, software);
 	}
 
-	// Runtime accessors
-	public String getVersionFor(String state, String software) {
-		ConcurrentMap<String, String> swMap = stateMap.get(state);
-		return (swMap == null) ? null : swMap.get(software);
+	/** Deep, unmodifiable copy of the state map (O(entries)). */
+	public Map<String, Map<String, String>> getStateMapSnapshot() {
+		return stateMap.snapshot().toMap();
 	}
 
-	public Map<String, ConcurrentMap<String, String>> getStateMapSnapshot() {
-		return new ConcurrentHashMap<>(stateMap);
+	/** The current state map snapshot and its generation, O(1). */
+	public VersionStateMap.Snapshot getStateSnapshot() {
+		return stateMap.snapshot();
+	}
+
+	/**
+	 * Stream the state map as JSON (see StateJsonWriter): only the changes after
+	 * sinceGeneration while they are still kept, otherwise (or for a negative
+	 * sinceGeneration) the full map. The "generation" field is the value to
+	 * pass next time.
+	 */
+	public void writeStateJson(OutputStream out, long sinceGeneration) throws IOException {
+		new StateJsonWriter(out).write(stateMap, sinceGeneration);
+	}
+
+	/**
+	 * Map updates after generation (from an earlier snapshot or change), or
+	 * null if they are too old to be kept: take a new snapshot then.
+	 */
+	public List<VersionStateMap.Change> getStateChangesSince(long generation) {
+		return stateMap.changesSince(generation);
 	}
 
 	// Main
 	public static void main(String[] args) {
-		String portName = args.length > 0 ? args[0] : PORT_NAME;
-		int baud = args.length > 1 ? Integer.parseInt(args[1]) : BAUD;
-		SerialReader reader = new SerialReader(portName, baud);
+		SerialReader reader;
+		if (args.length > 1 && args[0].equals("--replay")) {
+			double speed = args.length > 2 ? Double.parseDouble(args[2]) : 1;
+			reader = new SerialReader(new ReplaySource(Paths.get(args[1]), speed));
+		} else {
+			String portName = args.length > 0 ? args[0] : PORT_NAME;
+			int baud = args.length > 1 ? Integer.parseInt(args[1]) : BAUD;
+			reader = new SerialReader(portName, baud);
+		}
 		reader.start();
 		try {
 			Thread.currentThread().join();
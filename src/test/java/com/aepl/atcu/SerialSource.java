@@ -0,0 +1,39 @@
+package com.aepl.atcu;
+
+/**
+ * SerialSource: where SerialReader gets its bytes from and sends commands to.
+ *
+ * {@link JSerialCommSource} wraps a real port; {@link ReplaySource} plays back
+ * a recorded serial-stream.log or capture file, so the pipeline can be
+ * exercised and measured without a device.
+ */
+public interface SerialSource {
+
+	/**
+	 * Receives raw chunks as they arrive. Called from the source's own thread;
+	 * buf is only valid during the call.
+	 */
+	interface Listener {
+		/**
+		 * @param arrivalEpochNanos wall-clock time of the chunk (for replay, the
+		 *                          recorded time)
+		 * @param arrivalNanos      System.nanoTime() when the chunk was handed
+		 *                          over
+		 */
+		void onData(byte[] buf, int off, int len, long arrivalEpochNanos, long arrivalNanos);
+	}
+
+	/** Port id stamped on every line (e.g. "COM21", "ttyUSB0"). */
+	String getId();
+
+	/** Open and start delivering chunks to listener; false if it cannot open. */
+	boolean open(Listener listener);
+
+	boolean isOpen();
+
+	/** Send bytes to the device; returns bytes written or -1. */
+	int write(byte[] buf, int len);
+
+	/** Stop delivering and release the port/file. */
+	void close();
+}
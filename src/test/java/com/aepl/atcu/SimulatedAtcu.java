@@ -0,0 +1,462 @@
+package com.aepl.atcu;
+
+import java.nio.charset.StandardCharsets;
+import java.util.ArrayDeque;
+import java.util.ArrayList;
+import java.util.Deque;
+import java.util.List;
+import java.util.Locale;
+import java.util.Properties;
+import java.util.Random;
+import java.util.concurrent.ScheduledExecutorService;
+import java.util.concurrent.ScheduledFuture;
+import java.util.concurrent.TimeUnit;
+
+import org.apache.logging.log4j.LogManager;
+import org.apache.logging.log4j.Logger;
+
+/**
+ * SimulatedAtcu: behaviour of one ATCU as seen on its serial console.
+ *
+ * Boots with a short boot log, a SOFTWARE/VERSION/STATE line and a 55AA login
+ * packet, then emits periodic device lines at the configured rate, a status
+ * line every statusInterval and a login packet every loginInterval. A FOTA
+ * (serial command "FOTA <version>" / "AT+FOTA=<version>" or
+ * {@link #triggerFota(String)}) downloads, reboots after rebootDelay and comes
+ * back with the new version, unless the next scripted {@link FailureMode} says
+ * otherwise. "VERSION?" / "AT+VER?" answers with a status line, "REBOOT"
+ * reboots. Output can be salted with garbage bytes and ANSI sequences and is
+ * written in randomly split chunks.
+ *
+ * All timing runs on a shared scheduler, so one process can host a fleet.
+ */
+public class SimulatedAtcu {
+
+	private static final Logger LOG = LogManager.getLogger(SimulatedAtcu.class);
+
+	/** What happens to a FOTA attempt (scripted per attempt, in order). */
+	public enum FailureMode {
+		/** Download, reboot, report the new version. */
+		NONE,
+		/** Download fails part way; no reboot, old version. */
+		DOWNLOAD_FAIL,
+		/** Reboots into the new image, fails verification, reboots back. */
+		ROLLBACK,
+		/** Crashes during boot a few times, then comes up on the old version. */
+		BOOT_LOOP,
+		/** Reboots and never talks again. */
+		SILENT,
+		/** Reboots and the serial link goes away. */
+		DISCONNECT
+	}
+
+	/** Where the device's console output goes, e.g. a PtyLink. */
+	public interface Output {
+		void write(byte[] buf, int off, int len);
+
+		/** The link went away (FailureMode.DISCONNECT). */
+		default void disconnect() {
+		}
+	}
+
+	/**
+	 * Device settings. Defaults are a quiet, well-behaved device; see
+	 * {@link #fromProperties(Properties, String)} for the keys.
+	 */
+	public static final class Profile {
+		public String deviceId = "ATCU0001";
+		public String imei = "864394040000001";
+		public String software = "ATCU_APP";
+		public String version = "5.2.0";
+		public double linesPerSecond = 5;
+		public long statusIntervalMillis = 5_000;
+		public long loginIntervalMillis = 30_000;
+		public long fotaDownloadMillis = 3_000;
+		public long rebootDelayMillis = 5_000;
+		/** Chance per line of garbage bytes or a broken line. */
+		public double noise = 0;
+		/** Chance per line of ANSI color / cursor sequences. */
+		public double ansi = 0;
+		/** Write lines in randomly split chunks. */
+		public boolean splitWrites = true;
+		/** Failure mode per FOTA attempt; NONE once exhausted. */
+		public List<FailureMode> failures = new ArrayList<>();
+		public long seed = System.nanoTime();
+
+		public Profile copy() {
+			Profile p = new Profile();
+			p.deviceId = deviceId;
+			p.imei = imei;
+			p.software = software;
+			p.version = version;
+			p.linesPerSecond = linesPerSecond;
+			p.statusIntervalMillis = statusIntervalMillis;
+			p.loginIntervalMillis = loginIntervalMillis;
+			p.fotaDownloadMillis = fotaDownloadMillis;
+			p.rebootDelayMillis = rebootDelayMillis;
+			p.noise = noise;
+			p.ansi = ansi;
+			p.splitWrites = splitWrites;
+			p.failures = new ArrayList<>(failures);
+			p.seed = seed;
+			return p;
+		}
+
+		/**
+		 * Read &lt;prefix&gt;.version, .software, .lines.per.second,
+		 * .status.interval.ms, .login.interval.ms, .fota.download.ms,
+		 * .reboot.delay.ms, .noise, .ansi, .split.writes and .failures (comma
+		 * separated FailureMode names); missing keys keep the defaults.
+		 */
+		public static Profile fromProperties(Properties p, String prefix) {
+			Profile d = new Profile();
+			d.software = p.getProperty(prefix + ".software", d.software);
+			d.version = p.getProperty(prefix + ".version", d.version);
+			d.linesPerSecond = Double.parseDouble(p.getProperty(prefix + ".lines.per.second", "" + d.linesPerSecond));
+			d.statusIntervalMillis = Long
+					.parseLong(p.getProperty(prefix + ".status.interval.ms", "" + d.statusIntervalMillis));
+			d.loginIntervalMillis = Long
+					.parseLong(p.getProperty(prefix + ".login.interval.ms", "" + d.loginIntervalMillis));
+			d.fotaDownloadMillis = Long
+					.parseLong(p.getProperty(prefix + ".fota.download.ms", "" + d.fotaDownloadMillis));
+			d.rebootDelayMillis = Long.parseLong(p.getProperty(prefix + ".reboot.delay.ms", "" + d.rebootDelayMillis));
+			d.noise = Double.parseDouble(p.getProperty(prefix + ".noise", "" + d.noise));
+			d.ansi = Double.parseDouble(p.getProperty(prefix + ".ansi", "" + d.ansi));
+			d.splitWrites = Boolean.parseBoolean(p.getProperty(prefix + ".split.writes", "" + d.splitWrites));
+			String failures = p.getProperty(prefix + ".failures", "").trim();
+			if (!failures.isEmpty())
+				for (String f : failures.split(","))
+					d.failures.add(FailureMode.valueOf(f.trim().toUpperCase(Locale.ROOT)));
+			return d;
+		}
+	}
+
+	private enum State {
+		OFF, BOOTING, RUNNING, DOWNLOADING, REBOOTING, DEAD
+	}
+
+	private static final long TICK_MILLIS = 10;
+	private static final String ESC = "\u001b";
+	// periodic traffic carries no dotted numbers, which would read as versions
+	private static final String[] TRAFFIC = {
+			"I: [GSM] +CREG: 0,1",
+			"D: [GPS] fix=1 sats=%d lat_e6=18520400 lon_e6=73856700 hdop_x10=9",
+			"I: [CAN] frame id=0x18FEF100 dlc=8 data=00 11 22 33 44 55 66 77",
+			"W: [PWR] ignStatus=%d battery_mv=12%d00",
+			"VEHICLE INFO: speed=%d rpm=1800",
+			"D: [MQTT] publish ok rc=0 seq=%d",
+			"I: [GSM] csq=%d,99" };
+
+	private final Profile profile;
+	private final ScheduledExecutorService scheduler;
+	private final Output output;
+	private final Random random;
+	private final Deque<FailureMode> failures;
+
+	// guarded by this
+	private State state = State.OFF;
+	private String version;
+	private String pendingVersion;
+	private int generation;
+	private double lineCredit;
+	private long trafficCounter;
+	private long nextStatusMillis;
+	private long nextLoginMillis;
+	private ScheduledFuture<?> ticker;
+	// set by finishFota, consumed by boot
+	private String rollbackTo;
+	private int bootLoops;
+	private final StringBuilder input = new StringBuilder();
+	private long linesWritten;
+	private int fotaAttempts;
+
+	public SimulatedAtcu(Profile profile, ScheduledExecutorService scheduler, Output output) {
+		this.profile = profile.copy();
+		this.scheduler = scheduler;
+		this.output = output;
+		this.random = new Random(profile.seed);
+		this.failures = new ArrayDeque<>(profile.failures);
+		this.version = profile.version;
+	}
+
+	/** Power on: boot and start talking. */
+	public synchronized void start() {
+		if (state != State.OFF)
+			return;
+		long period = Math.max(TICK_MILLIS, (long) (1000 / Math.max(profile.linesPerSecond, 0.001)));
+		ticker = scheduler.scheduleAtFixedRate(this::tick, period, Math.min(period, TICK_MILLIS * 10),
+				TimeUnit.MILLISECONDS);
+		boot(version);
+	}
+
+	/** Power off: stop all output. */
+	public synchronized void stop() {
+		state = State.OFF;
+		generation++;
+		if (ticker != null)
+			ticker.cancel(false);
+	}
+
+	/** Bytes typed into the device's console (from the host). */
+	public void onInput(byte[] buf, int off, int len) {
+		List<String> commands = new ArrayList<>();
+		synchronized (this) {
+			for (int i = off; i < off + len; i++) {
+				char c = (char) (buf[i] & 0xFF);
+				if (c == '\r' || c == '\n') {
+					if (input.length() > 0)
+						commands.add(input.toString().trim());
+					input.setLength(0);
+				} else if (input.length() < 256) {
+					input.append(c);
+				}
+			}
+		}
+		for (String cmd : commands)
+			scheduler.execute(() -> onCommand(cmd));
+	}
+
+	/** Handle one console command. */
+	public synchronized void onCommand(String cmd) {
+		String upper = cmd.toUpperCase(Locale.ROOT);
+		if (upper.startsWith("FOTA ")) {
+			triggerFota(cmd.substring(5).trim());
+		} else if (upper.startsWith("AT+FOTA=")) {
+			triggerFota(cmd.substring(8).trim());
+		} else if (upper.equals("VERSION?") || upper.equals("AT+VER?")) {
+			if (state == State.RUNNING)
+				emit(statusLine("RUNNING"));
+		} else if (upper.equals("REBOOT")) {
+			if (state == State.RUNNING)
+				reboot(version, "I: [SYS] reboot requested");
+		} else if (state == State.RUNNING && !cmd.isEmpty()) {
+			emit("E: [CLI] unknown command: " + cmd);
+		}
+	}
+
+	/**
+	 * Start a FOTA to targetVersion; ignored unless the device is running.
+	 * Returns false if it was ignored.
+	 */
+	public synchronized boolean triggerFota(String targetVersion) {
+		if (state != State.RUNNING || targetVersion.isEmpty())
+			return false;
+		FailureMode mode = failures.isEmpty() ? FailureMode.NONE : failures.poll();
+		fotaAttempts++;
+		state = State.DOWNLOADING;
+		pendingVersion = targetVersion;
+		emit("I: [FOTA] job accepted target=" + targetVersion);
+		int g = generation;
+		long step = Math.max(1, profile.fotaDownloadMillis / 5);
+		for (int i = 1; i <= 5; i++) {
+			int pct = i * 20;
+			boolean last = i == 5;
+			later(g, step * i, () -> {
+				if (mode == FailureMode.DOWNLOAD_FAIL && pct >= 60) {
+					emit("E: [FOTA] download failed at " + pct + "% (timeout)");
+					state = State.RUNNING;
+					pendingVersion = null;
+					generation++;
+					return;
+				}
+				emit("I: [FOTA] download progress " + pct + "%");
+				if (last)
+					finishFota(mode);
+			});
+		}
+		return true;
+	}
+
+	private void finishFota(FailureMode mode) {
+		String target = pendingVersion;
+		pendingVersion = null;
+		emit("I: [FOTA] image verified, rebooting into " + target);
+		switch (mode) {
+		case ROLLBACK:
+			// boot() of the new image fails verification and reboots back
+			rollbackTo = version;
+			reboot(target, null);
+			break;
+		case BOOT_LOOP:
+			bootLoops = 3;
+			reboot(target, null);
+			break;
+		case SILENT:
+			state = State.DEAD;
+			generation++;
+			break;
+		case DISCONNECT:
+			state = State.DEAD;
+			generation++;
+			later(generation, 200, output::disconnect);
+			break;
+		default:
+			reboot(target, null);
+		}
+	}
+
+	private void reboot(String nextVersion, String reason) {
+		if (reason != null)
+			emit(reason);
+		state = State.REBOOTING;
+		int g = ++generation;
+		later(g, profile.rebootDelayMillis, () -> boot(nextVersion));
+	}
+
+	private void boot(String bootVersion) {
+		state = State.BOOTING;
+		int g = ++generation;
+		emit("boot: bootloader 1.0.3 starting application");
+		later(g, 100, () -> emit("I: [SYS] " + profile.software + " " + bootVersion + " booting, id="
+				+ profile.deviceId));
+		if (bootLoops > 0) {
+			bootLoops--;
+			String back = bootLoops == 0 ? version : bootVersion;
+			later(g, 300, () -> {
+				emit("E: [SYS] watchdog reset during init");
+				reboot(back, null);
+			});
+			return;
+		}
+		if (rollbackTo != null) {
+			String back = rollbackTo;
+			rollbackTo = null;
+			later(g, 300, () -> {
+				emit("E: [SYS] image verify failed, rolling back to " + back);
+				reboot(back, null);
+			});
+			return;
+		}
+		later(g, 200, () -> emit("I: [GSM] modem init ok"));
+		later(g, 300, () -> {
+			version = bootVersion;
+			emit(statusLine("BOOT"));
+		});
+		later(g, 500, () -> {
+			emit(loginPacket());
+			emit(statusLine("RUNNING"));
+			state = State.RUNNING;
+			long now = System.currentTimeMillis();
+			nextStatusMillis = now + profile.statusIntervalMillis;
+			nextLoginMillis = now + profile.loginIntervalMillis;
+		});
+	}
+
+	/** Run action after delay unless the device rebooted or stopped since. */
+	private void later(int g, long delayMillis, Runnable action) {
+		scheduler.schedule(() -> {
+			synchronized (SimulatedAtcu.this) {
+				if (generation == g && state != State.OFF)
+					action.run();
+			}
+		}, delayMillis, TimeUnit.MILLISECONDS);
+	}
+
+	private synchronized void tick() {
+		if (state != State.RUNNING && state != State.DOWNLOADING)
+			return;
+		long now = System.currentTimeMillis();
+		if (state == State.RUNNING && now >= nextStatusMillis) {
+			emit(statusLine("RUNNING"));
+			nextStatusMillis = now + profile.statusIntervalMillis;
+		}
+		if (state == State.RUNNING && now >= nextLoginMillis) {
+			emit(loginPacket());
+			nextLoginMillis = now + profile.loginIntervalMillis;
+		}
+		long period = Math.max(TICK_MILLIS, (long) (1000 / Math.max(profile.linesPerSecond, 0.001)));
+		lineCredit += profile.linesPerSecond * Math.min(period, TICK_MILLIS * 10) / 1000.0;
+		while (lineCredit >= 1) {
+			lineCredit -= 1;
+			emit(trafficLine());
+		}
+	}
+
+	private String trafficLine() {
+		long n = trafficCounter++;
+		String t = TRAFFIC[(int) (n % TRAFFIC.length)];
+		if (t.indexOf('%') < 0)
+			return t;
+		if (t.contains("ignStatus"))
+			return String.format(t, random.nextInt(10) == 0 ? 1 : 0, random.nextInt(10));
+		return String.format(t, random.nextInt(100));
+	}
+
+	private String statusLine(String st) {
+		return "SOFTWARE: " + profile.software + " VERSION: " + version + " STATE: " + st;
+	}
+
+	private String loginPacket() {
+		String body = "55AA,01,0A," + profile.imei + ",1,2," + profile.deviceId + "," + version + ",00,1F";
+		int sum = 0;
+		for (int i = 0; i < body.length(); i++)
+			sum = (sum + body.charAt(i)) & 0xFF;
+		return body + "|" + String.format("%02X", sum);
+	}
+
+	/** Write one line with optional noise, ANSI and split writes. */
+	private void emit(String line) {
+		String text = line;
+		if (profile.ansi > 0 && random.nextDouble() < profile.ansi)
+			text = colorize(text);
+		StringBuilder sb = new StringBuilder(text.length() + 16);
+		if (profile.noise > 0 && random.nextDouble() < profile.noise) {
+			switch (random.nextInt(3)) {
+			case 0: // line noise before the line
+				for (int i = random.nextInt(8) + 1; i > 0; i--)
+					sb.append((char) (0x80 + random.nextInt(0x80)));
+				break;
+			case 1: // a line cut short by a reset
+				sb.append(text, 0, text.length() / 2).append("\r\n");
+				break;
+			default: // blank lines
+				sb.append("\r\n\r\n");
+			}
+		}
+		sb.append(text).append("\r\n");
+		// noise chars above are single bytes, not UTF-8
+		byte[] bytes = sb.toString().getBytes(StandardCharsets.ISO_8859_1);
+		int off = 0;
+		if (profile.splitWrites && bytes.length > 4) {
+			int pieces = 1 + random.nextInt(3);
+			for (int i = 1; i < pieces; i++) {
+				int cut = off + 1 + random.nextInt(Math.max(1, (bytes.length - off) / 2));
+				output.write(bytes, off, cut - off);
+				off = cut;
+			}
+		}
+		output.write(bytes, off, bytes.length - off);
+		linesWritten++;
+	}
+
+	private String colorize(String line) {
+		switch (random.nextInt(3)) {
+		case 0:
+			return ESC + "[32m" + line + ESC + "[0m";
+		case 1:
+			return ESC + "[2K" + ESC + "[1;33m" + line + ESC + "[0m";
+		default:
+			return ESC + "]0;" + profile.deviceId + "\u0007" + line;
+		}
+	}
+
+	public String getDeviceId() {
+		return profile.deviceId;
+	}
+
+	public synchronized String getVersion() {
+		return version;
+	}
+
+	public synchronized boolean isRunning() {
+		return state == State.RUNNING;
+	}
+
+	public synchronized long getLinesWritten() {
+		return linesWritten;
+	}
+
+	public synchronized int getFotaAttempts() {
+		return fotaAttempts;
+	}
+}
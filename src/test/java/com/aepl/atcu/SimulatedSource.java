@@ -0,0 +1,69 @@
+package com.aepl.atcu;
+
+/**
+ * SimulatedSource: a SimulatedAtcu wired straight into SerialReader, no pty
+ * in between. Device output arrives as chunks stamped with the current time
+ * and commands go to the device's console, so a fleet of readers and devices
+ * can run in one JVM on any OS.
+ */
+public class SimulatedSource implements SerialSource, SimulatedAtcu.Output {
+
+	private final String id;
+	private volatile SimulatedAtcu device;
+	private volatile Listener listener;
+	private volatile boolean open;
+
+	public SimulatedSource(String id) {
+		this.id = id;
+	}
+
+	/** The device behind this source; must be set before commands are written. */
+	public void attach(SimulatedAtcu device) {
+		this.device = device;
+	}
+
+	@Override
+	public String getId() {
+		return id;
+	}
+
+	@Override
+	public boolean open(Listener listener) {
+		this.listener = listener;
+		open = true;
+		return true;
+	}
+
+	@Override
+	public boolean isOpen() {
+		return open;
+	}
+
+	/** Device output (SimulatedAtcu.Output). Dropped while the source is closed. */
+	@Override
+	public void write(byte[] buf, int off, int len) {
+		Listener l = listener;
+		if (open && l != null)
+			l.onData(buf, off, len, TimestampEncoder.nowEpochNanos(), System.nanoTime());
+	}
+
+	@Override
+	public void disconnect() {
+		open = false;
+	}
+
+	/** Host command (SerialSource). */
+	@Override
+	public int write(byte[] buf, int len) {
+		SimulatedAtcu d = device;
+		if (!open || d == null)
+			return -1;
+		d.onInput(buf, 0, len);
+		return len;
+	}
+
+	@Override
+	public void close() {
+		open = false;
+	}
+}
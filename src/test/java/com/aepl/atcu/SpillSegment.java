@@ -0,0 +1,106 @@
+package com.aepl.atcu;
+
+import java.io.BufferedInputStream;
+import java.io.BufferedOutputStream;
+import java.io.DataInput;
+import java.io.DataInputStream;
+import java.io.DataOutput;
+import java.io.DataOutputStream;
+import java.io.FileInputStream;
+import java.io.FileOutputStream;
+import java.io.IOException;
+import java.nio.file.Files;
+import java.nio.file.Path;
+
+import org.apache.logging.log4j.LogManager;
+import org.apache.logging.log4j.Logger;
+
+/**
+ * SpillSegment: append-only temporary file holding the elements a slow
+ * consumer could not keep in memory, read back in order once it catches up.
+ *
+ * Writes go through a buffer and only become readable after
+ * {@link #flush()}; the owning cursor serializes all calls. The file is deleted
+ * on {@link #close()}.
+ */
+public class SpillSegment<T> {
+
+	private static final Logger LOG = LogManager.getLogger(SpillSegment.class);
+
+	/**
+	 * Converts elements to and from their on-disk form.
+	 */
+	public interface Codec<T> {
+		void write(DataOutput out, T value) throws IOException;
+
+		T read(DataInput in) throws IOException;
+	}
+
+	private final Path file;
+	private final Codec<T> codec;
+	private final DataOutputStream out;
+	private DataInputStream in;
+	private long written;
+	private long flushed;
+	private long read;
+	private long bytes;
+
+	SpillSegment(Path dir, String name, Codec<T> codec) throws IOException {
+		Files.createDirectories(dir);
+		this.file = Files.createTempFile(dir, "spill-" + name.replaceAll("[^A-Za-z0-9_-]", "_") + "-", ".seg");
+		this.codec = codec;
+		this.out = new DataOutputStream(new BufferedOutputStream(new FileOutputStream(file.toFile()), 64 * 1024));
+	}
+
+	void append(T value) throws IOException {
+		int before = out.size();
+		codec.write(out, value);
+		bytes += out.size() - before;
+		written++;
+	}
+
+	void flush() throws IOException {
+		if (flushed == written)
+			return;
+		out.flush();
+		flushed = written;
+	}
+
+	/**
+	 * Next flushed element, or null if everything flushed so far has been read.
+	 */
+	T readNext() throws IOException {
+		if (read >= flushed)
+			return null;
+		if (in == null)
+			in = new DataInputStream(new BufferedInputStream(new FileInputStream(file.toFile()), 64 * 1024));
+		T v = codec.read(in);
+		read++;
+		return v;
+	}
+
+	long pending() {
+		return written - read;
+	}
+
+	long getBytesWritten() {
+		return bytes;
+	}
+
+	void close() {
+		try {
+			out.close();
+		} catch (IOException ignored) {
+		}
+		try {
+			if (in != null)
+				in.close();
+		} catch (IOException ignored) {
+		}
+		try {
+			Files.deleteIfExists(file);
+		} catch (IOException e) {
+			LOG.warn("Failed to delete spill segment {}: {}", file, e.getMessage());
+		}
+	}
+}
@@ -0,0 +1,216 @@
+package com.aepl.atcu;
+
+import java.io.Flushable;
+import java.io.IOException;
+import java.io.OutputStream;
+import java.nio.ByteBuffer;
+import java.nio.channels.Channels;
+import java.nio.channels.WritableByteChannel;
+import java.nio.charset.StandardCharsets;
+import java.util.List;
+
+/**
+ * StateJsonWriter: streams the state map as JSON to a stream or channel.
+ *
+ * Full document ({@link #writeSnapshot}):
+ *
+ * <pre>
+ * {"generation":42,"full":true,"states":{"LOGIN":{"ATCU0001":"5.2.8"},...}}
+ * </pre>
+ *
+ * Delta document ({@link #writeChanges}), changes after "since" oldest first:
+ *
+ * <pre>
+ * {"generation":44,"full":false,"since":42,"changes":[
+ *   {"generation":43,"state":"LOGIN","software":"ATCU0001","previous":"5.2.8","version":"5.3.0"},...]}
+ * </pre>
+ *
+ * Strings are escaped and UTF-8 encoded in one pass straight into a fixed
+ * 8 KiB buffer that is written out whenever it fills, so memory use does not
+ * depend on the size of the map. Not thread-safe; does not close the target.
+ */
+public class StateJsonWriter implements Flushable {
+
+	private static final byte[] HEX = "0123456789abcdef".getBytes(StandardCharsets.US_ASCII);
+	private static final int BUFFER_BYTES = 8 * 1024;
+
+	private final WritableByteChannel channel;
+	private final ByteBuffer buffer = ByteBuffer.allocate(BUFFER_BYTES);
+	private final byte[] bytes = buffer.array();
+	private int pos;
+	// callbacks cannot throw IOException: first failure is kept and rethrown
+	private IOException failure;
+
+	public StateJsonWriter(OutputStream out) {
+		this(Channels.newChannel(out));
+	}
+
+	public StateJsonWriter(WritableByteChannel channel) {
+		this.channel = channel;
+	}
+
+	/** The whole map at the snapshot's generation. Flushes at the end. */
+	public void writeSnapshot(VersionStateMap.Snapshot snapshot) throws IOException {
+		ascii("{\"generation\":").number(snapshot.getGeneration()).ascii(",\"full\":true,\"states\":{");
+		String[] last = { null };
+		snapshot.forEach((state, software, version) -> {
+			if (!state.equals(last[0])) {
+				if (last[0] != null)
+					ascii("},");
+				last[0] = state;
+				string(state).ascii(":{");
+			} else {
+				ascii(",");
+			}
+			string(software).ascii(":").string(version);
+		});
+		if (last[0] != null)
+			ascii("}");
+		ascii("}}\n");
+		flush();
+	}
+
+	/**
+	 * The changes after generation since (as returned by changesSince). Flushes
+	 * at the end.
+	 */
+	public void writeChanges(long since, List<VersionStateMap.Change> changes) throws IOException {
+		long generation = changes.isEmpty() ? since : changes.get(changes.size() - 1).getGeneration();
+		ascii("{\"generation\":").number(generation).ascii(",\"full\":false,\"since\":").number(since)
+				.ascii(",\"changes\":[");
+		for (int i = 0; i < changes.size(); i++) {
+			VersionStateMap.Change c = changes.get(i);
+			if (i > 0)
+				ascii(",");
+			ascii("{\"generation\":").number(c.getGeneration()).ascii(",\"state\":").string(c.getState())
+					.ascii(",\"software\":").string(c.getSoftware()).ascii(",\"previous\":").string(c.getPrevious())
+					.ascii(",\"version\":").string(c.getVersion()).ascii("}");
+		}
+		ascii("]}\n");
+		flush();
+	}
+
+	/**
+	 * Delta since the given generation if the map still has it, else the full
+	 * snapshot; a negative since always writes the snapshot.
+	 */
+	public void write(VersionStateMap map, long since) throws IOException {
+		List<VersionStateMap.Change> changes = since < 0 ? null : map.changesSince(since);
+		if (changes == null)
+			writeSnapshot(map.snapshot());
+		else
+			writeChanges(since, changes);
+	}
+
+	@Override
+	public void flush() throws IOException {
+		drain();
+		if (failure != null) {
+			IOException e = failure;
+			failure = null;
+			pos = 0;
+			throw e;
+		}
+	}
+
+	private void drain() {
+		if (pos == 0 || failure != null) {
+			pos = 0;
+			return;
+		}
+		buffer.clear().limit(pos);
+		try {
+			while (buffer.hasRemaining())
+				channel.write(buffer);
+		} catch (IOException e) {
+			failure = e;
+		}
+		pos = 0;
+	}
+
+	private void room(int n) {
+		if (pos + n > bytes.length)
+			drain();
+	}
+
+	private StateJsonWriter ascii(String s) {
+		for (int i = 0; i < s.length(); i++) {
+			room(1);
+			bytes[pos++] = (byte) s.charAt(i);
+		}
+		return this;
+	}
+
+	private StateJsonWriter number(long n) {
+		return ascii(Long.toString(n));
+	}
+
+	/** Quoted, escaped, UTF-8; null as null. */
+	private StateJsonWriter string(String s) {
+		if (s == null)
+			return ascii("null");
+		room(1);
+		bytes[pos++] = '"';
+		for (int i = 0; i < s.length(); i++) {
+			char c = s.charAt(i);
+			// 6 bytes covers the longest escape and any UTF-8 sequence
+			room(6);
+			if (c >= 0x20 && c < 0x80) {
+				if (c == '"' || c == '\\')
+					bytes[pos++] = '\\';
+				bytes[pos++] = (byte) c;
+			} else if (c < 0x20) {
+				bytes[pos++] = '\\';
+				switch (c) {
+				case '\n':
+					bytes[pos++] = 'n';
+					break;
+				case '\r':
+					bytes[pos++] = 'r';
+					break;
+				case '\t':
+					bytes[pos++] = 't';
+					break;
+				case '\b':
+					bytes[pos++] = 'b';
+					break;
+				case '\f':
+					bytes[pos++] = 'f';
+					break;
+				default:
+					unicodeEscape(c);
+				}
+			} else if (c < 0x800) {
+				bytes[pos++] = (byte) (0xC0 | (c >> 6));
+				bytes[pos++] = (byte) (0x80 | (c & 0x3F));
+			} else if (Character.isHighSurrogate(c) && i + 1 < s.length()
+					&& Character.isLowSurrogate(s.charAt(i + 1))) {
+				int cp = Character.toCodePoint(c, s.charAt(++i));
+				bytes[pos++] = (byte) (0xF0 | (cp >> 18));
+				bytes[pos++] = (byte) (0x80 | ((cp >> 12) & 0x3F));
+				bytes[pos++] = (byte) (0x80 | ((cp >> 6) & 0x3F));
+				bytes[pos++] = (byte) (0x80 | (cp & 0x3F));
+			} else if (Character.isSurrogate(c) || c == '\u2028' || c == '\u2029') {
+				// lone surrogates are not UTF-8; the separators break JavaScript
+				bytes[pos++] = '\\';
+				unicodeEscape(c);
+			} else {
+				bytes[pos++] = (byte) (0xE0 | (c >> 12));
+				bytes[pos++] = (byte) (0x80 | ((c >> 6) & 0x3F));
+				bytes[pos++] = (byte) (0x80 | (c & 0x3F));
+			}
+		}
+		room(1);
+		bytes[pos++] = '"';
+		return this;
+	}
+
+	/** "uXXXX" (the backslash is already written). */
+	private void unicodeEscape(char c) {
+		bytes[pos++] = 'u';
+		bytes[pos++] = HEX[(c >> 12) & 0xF];
+		bytes[pos++] = HEX[(c >> 8) & 0xF];
+		bytes[pos++] = HEX[(c >> 4) & 0xF];
+		bytes[pos++] = HEX[c & 0xF];
+	}
+}
@@ -0,0 +1,151 @@
+package com.aepl.atcu;
+
+import java.io.ByteArrayOutputStream;
+import java.io.IOException;
+import java.io.OutputStream;
+import java.nio.ByteBuffer;
+import java.nio.charset.CodingErrorAction;
+import java.nio.charset.StandardCharsets;
+import java.util.HashMap;
+import java.util.List;
+import java.util.Map;
+import java.util.Random;
+
+import org.openqa.selenium.json.Json;
+
+import junit.framework.TestCase;
+
+/**
+ * StateJsonWriterTest: escaping of control characters, quotes, surrogates and
+ * U+2028/U+2029, documents larger than the buffer, and write failures.
+ */
+public class StateJsonWriterTest extends TestCase {
+
+	private static String snapshotJson(VersionStateMap map) throws IOException {
+		ByteArrayOutputStream out = new ByteArrayOutputStream();
+		new StateJsonWriter(out).writeSnapshot(map.snapshot());
+		return new String(out.toByteArray(), StandardCharsets.UTF_8);
+	}
+
+	/** The JSON for one string value, as written inside a snapshot. */
+	private static String encoded(String value) throws IOException {
+		VersionStateMap map = new VersionStateMap();
+		map.put("S", "K", value);
+		String json = snapshotJson(map);
+		String prefix = "{\"generation\":1,\"full\":true,\"states\":{\"S\":{\"K\":";
+		assertTrue(json, json.startsWith(prefix) && json.endsWith("}}}\n"));
+		return json.substring(prefix.length(), json.length() - 4);
+	}
+
+	@SuppressWarnings("unchecked")
+	private static Map<String, Object> parse(String json) {
+		return (Map<String, Object>) new Json().toType(json, Map.class);
+	}
+
+	public void testEscapes() throws IOException {
+		assertEquals("\"plain 5.2.8\"", encoded("plain 5.2.8"));
+		assertEquals("\"q\\\"b\\\\s\"", encoded("q\"b\\s"));
+		assertEquals("\"\\n\\r\\t\\b\\f\\u0000\\u001f\"", encoded("\n\r\t\b\f\u0000\u001F"));
+		assertEquals("\"\u007F\"", encoded("\u007F"));
+		assertEquals("\"\\u2028\\u2029\"", encoded("\u2028\u2029"));
+	}
+
+	public void testUtf8AndSurrogates() throws IOException {
+		ByteArrayOutputStream out = new ByteArrayOutputStream();
+		VersionStateMap map = new VersionStateMap();
+		map.put("S", "K", "\u00E9\u20AC\uD83D\uDE00");
+		new StateJsonWriter(out).writeSnapshot(map.snapshot());
+		byte[] expected = "\"\u00E9\u20AC\uD83D\uDE00\"".getBytes(StandardCharsets.UTF_8);
+		String json = new String(out.toByteArray(), StandardCharsets.ISO_8859_1);
+		assertTrue(json.contains(new String(expected, StandardCharsets.ISO_8859_1)));
+		// lone or reversed surrogates cannot be UTF-8: escaped instead
+		assertEquals("\"a\\ud83db\"", encoded("a\uD83Db"));
+		assertEquals("\"\\ude00\\ud83d\"", encoded("\uDE00\uD83D"));
+		assertEquals("\"x\\ud83d\"", encoded("x\uD83D"));
+	}
+
+	@SuppressWarnings("unchecked")
+	public void testRandomStringsRoundTrip() throws IOException {
+		Random random = new Random(20240505L);
+		char[] interesting = { '"', '\\', '/', '\n', '\u0001', '\u001F', ' ', 'a', '\u007F', '\u0080', '\u07FF',
+				'\u0800', '\u2028', '\u2029', '\uD800', '\uDBFF', '\uDC00', '\uDFFF', '\uFFFE' };
+		VersionStateMap map = new VersionStateMap();
+		Map<String, String> expected = new HashMap<>();
+		for (int i = 0; i < 2000; i++) {
+			StringBuilder sb = new StringBuilder();
+			int n = random.nextInt(12);
+			for (int k = 0; k < n; k++)
+				// U+FFFF is left out: the JSON reader used here takes it for end of input
+				sb.append(random.nextBoolean() ? interesting[random.nextInt(interesting.length)]
+						: (char) random.nextInt(0xFFFF));
+			String value = sb.toString();
+			map.put("S", "k" + i, value);
+			expected.put("k" + i, value);
+		}
+		ByteArrayOutputStream out = new ByteArrayOutputStream();
+		new StateJsonWriter(out).writeSnapshot(map.snapshot());
+		// well-formed UTF-8, or this throws
+		String json = StandardCharsets.UTF_8.newDecoder().onMalformedInput(CodingErrorAction.REPORT)
+				.onUnmappableCharacter(CodingErrorAction.REPORT).decode(ByteBuffer.wrap(out.toByteArray()))
+				.toString();
+		for (int i = 0; i < json.length() - 1; i++) {
+			char c = json.charAt(i);
+			assertFalse("raw control character at " + i, c < 0x20);
+			assertFalse("raw line separator at " + i, c == '\u2028' || c == '\u2029');
+		}
+		Map<String, Object> states = (Map<String, Object>) parse(json).get("states");
+		assertEquals(expected, states.get("S"));
+	}
+
+	@SuppressWarnings("unchecked")
+	public void testDocumentLargerThanBuffer() throws IOException {
+		VersionStateMap map = new VersionStateMap();
+		for (int i = 0; i < 3000; i++)
+			map.put("STATE" + (i % 7), "software-\u20AC-" + i, "5.2." + i);
+		Map<String, Object> doc = parse(snapshotJson(map));
+		assertEquals(3000L, ((Number) doc.get("generation")).longValue());
+		assertEquals(map.snapshot().toMap(), doc.get("states"));
+
+		long since = map.getGeneration();
+		map.put("STATE0", "software-\u20AC-0", "6.0.0");
+		map.put("LOGIN", "DEV\"1", "1.0");
+		ByteArrayOutputStream out = new ByteArrayOutputStream();
+		new StateJsonWriter(out).write(map, since);
+		Map<String, Object> delta = parse(new String(out.toByteArray(), StandardCharsets.UTF_8));
+		assertEquals(Boolean.FALSE, delta.get("full"));
+		List<Map<String, Object>> changes = (List<Map<String, Object>>) delta.get("changes");
+		assertEquals(2, changes.size());
+		assertEquals("5.2.0", changes.get(0).get("previous"));
+		assertNull(changes.get(1).get("previous"));
+		assertEquals("DEV\"1", changes.get(1).get("software"));
+	}
+
+	public void testWriteFailureIsRethrownOnce() throws IOException {
+		VersionStateMap map = new VersionStateMap();
+		for (int i = 0; i < 2000; i++)
+			map.put("S", "software" + i, "1.0." + i);
+		int[] writes = { 0 };
+		OutputStream failing = new OutputStream() {
+			@Override
+			public void write(int b) throws IOException {
+				write(new byte[] { (byte) b }, 0, 1);
+			}
+
+			@Override
+			public void write(byte[] b, int off, int len) throws IOException {
+				writes[0]++;
+				throw new IOException("disk full");
+			}
+		};
+		StateJsonWriter writer = new StateJsonWriter(failing);
+		try {
+			writer.writeSnapshot(map.snapshot());
+			fail();
+		} catch (IOException expected) {
+			assertEquals("disk full", expected.getMessage());
+		}
+		// nothing more was attempted after the first failure
+		assertEquals(1, writes[0]);
+		writer.flush();
+	}
+}
@@ -0,0 +1,316 @@
+package com.aepl.atcu;
+
+import java.io.BufferedInputStream;
+import java.io.BufferedOutputStream;
+import java.io.ByteArrayInputStream;
+import java.io.ByteArrayOutputStream;
+import java.io.Closeable;
+import java.io.DataInputStream;
+import java.io.DataOutputStream;
+import java.io.EOFException;
+import java.io.FileOutputStream;
+import java.io.IOException;
+import java.io.InputStream;
+import java.nio.ByteBuffer;
+import java.nio.channels.FileChannel;
+import java.nio.charset.StandardCharsets;
+import java.nio.file.Files;
+import java.nio.file.Path;
+import java.nio.file.StandardCopyOption;
+import java.nio.file.StandardOpenOption;
+import java.util.ArrayList;
+import java.util.Arrays;
+import java.util.List;
+import java.util.zip.CRC32;
+import java.util.zip.CheckedInputStream;
+import java.util.zip.CheckedOutputStream;
+
+import org.apache.logging.log4j.LogManager;
+import org.apache.logging.log4j.Logger;
+
+/**
+ * StateMapStore: keeps a VersionStateMap across restarts.
+ *
+ * Every change is appended to state.wal as a CRC-checked record (generation,
+ * state, software, version). Every compactEvery records, and on close, the
+ * whole map is written to state.snapshot (temp file, fsync, atomic rename)
+ * and the WAL starts over. {@link #load(VersionStateMap)} restores the
+ * snapshot and replays the WAL records after its generation; a torn or
+ * corrupt WAL tail (crash mid-write) is cut off at the last good record.
+ *
+ * Called from the parser thread only.
+ */
+public class StateMapStore implements Closeable {
+
+	private static final Logger LOG = LogManager.getLogger(StateMapStore.class);
+
+	public static final String SNAPSHOT_FILE = "state.snapshot";
+	public static final String WAL_FILE = "state.wal";
+	public static final int DEFAULT_COMPACT_EVERY = 10_000;
+
+	private static final byte[] SNAPSHOT_MAGIC = "ATCUSNP1".getBytes(StandardCharsets.US_ASCII);
+	private static final byte[] WAL_MAGIC = "ATCUWAL1".getBytes(StandardCharsets.US_ASCII);
+	// length + crc before each WAL payload
+	private static final int RECORD_HEADER = 8;
+	private static final int MAX_RECORD = 64 * 1024;
+
+	private final Path dir;
+	private final Path snapshotFile;
+	private final Path walFile;
+	private final int compactEvery;
+	private final LogFileSink.FsyncPolicy fsyncPolicy;
+	private final long fsyncIntervalNanos;
+
+	private VersionStateMap map;
+	private FileChannel wal;
+	private final ByteArrayOutputStream recordBytes = new ByteArrayOutputStream(256);
+	private final DataOutputStream record = new DataOutputStream(recordBytes);
+	private final CRC32 crc = new CRC32();
+	private ByteBuffer writeBuffer = ByteBuffer.allocate(512);
+	private long lastFsyncNanos;
+	private int recordsSinceSnapshot;
+
+	// stats
+	private volatile long recordsWritten;
+	private volatile long snapshotsWritten;
+	private volatile long writeErrors;
+
+	public StateMapStore(Path dir) {
+		this(dir, DEFAULT_COMPACT_EVERY, LogFileSink.FsyncPolicy.NONE, 0);
+	}
+
+	/**
+	 * @param fsyncPolicy NONE survives process restarts (the OS writes the
+	 *                    data); EVERY_WRITE / INTERVAL also power loss
+	 */
+	public StateMapStore(Path dir, int compactEvery, LogFileSink.FsyncPolicy fsyncPolicy, long fsyncIntervalNanos) {
+		if (compactEvery <= 0)
+			throw new IllegalArgumentException("compactEvery must be > 0: " + compactEvery);
+		this.dir = dir;
+		this.snapshotFile = dir.resolve(SNAPSHOT_FILE);
+		this.walFile = dir.resolve(WAL_FILE);
+		this.compactEvery = compactEvery;
+		this.fsyncPolicy = fsyncPolicy;
+		this.fsyncIntervalNanos = fsyncIntervalNanos;
+	}
+
+	/**
+	 * Restore map from snapshot + WAL and keep it for later compactions; then
+	 * open the WAL for appending. Returns the number of WAL records replayed.
+	 */
+	public int load(VersionStateMap map) throws IOException {
+		this.map = map;
+		Files.createDirectories(dir);
+		if (Files.exists(snapshotFile)) {
+			try {
+				readSnapshot(map);
+			} catch (IOException e) {
+				// renamed into place only when complete, so this is real damage
+				LOG.error("State snapshot {} unreadable ({}); using the WAL only", snapshotFile, e.getMessage());
+			}
+		}
+		int replayed = 0;
+		long goodLength = WAL_MAGIC.length;
+		if (Files.exists(walFile)) {
+			long[] end = { WAL_MAGIC.length };
+			replayed = replayWal(map, end);
+			goodLength = end[0];
+		}
+		wal = FileChannel.open(walFile, StandardOpenOption.CREATE, StandardOpenOption.READ,
+				StandardOpenOption.WRITE);
+		if (goodLength < WAL_MAGIC.length || wal.size() < WAL_MAGIC.length) {
+			// new, empty or foreign file: start a fresh WAL
+			wal.truncate(0);
+			wal.write(ByteBuffer.wrap(WAL_MAGIC), 0);
+			goodLength = WAL_MAGIC.length;
+		} else if (wal.size() > goodLength) {
+			LOG.warn("State WAL {}: dropping {} bytes of torn or corrupt tail", walFile, wal.size() - goodLength);
+			wal.truncate(goodLength);
+		}
+		wal.position(goodLength);
+		recordsSinceSnapshot = replayed;
+		LOG.info("State restored from {}: {} entries at generation {} ({} WAL records)", dir, map.snapshot().size(),
+				map.getGeneration(), replayed);
+		return replayed;
+	}
+
+	private void readSnapshot(VersionStateMap map) throws IOException {
+		CRC32 sum = new CRC32();
+		try (InputStream raw = new BufferedInputStream(Files.newInputStream(snapshotFile), 64 * 1024);
+				DataInputStream in = new DataInputStream(new CheckedInputStream(raw, sum))) {
+			byte[] magic = new byte[SNAPSHOT_MAGIC.length];
+			in.readFully(magic);
+			if (!Arrays.equals(magic, SNAPSHOT_MAGIC))
+				throw new IOException("not a state snapshot");
+			long generation = in.readLong();
+			int count = in.readInt();
+			List<String[]> entries = new ArrayList<>(Math.max(0, Math.min(count, 1 << 20)));
+			for (int i = 0; i < count; i++)
+				entries.add(new String[] { in.readUTF(), in.readUTF(), in.readUTF() });
+			long expected = sum.getValue();
+			if (new DataInputStream(raw).readInt() != (int) expected)
+				throw new IOException("checksum mismatch");
+			map.restore(generation, entries);
+		}
+	}
+
+	/** Apply WAL records after the map's generation; end[0] = end of the last good record. */
+	private int replayWal(VersionStateMap map, long[] end) throws IOException {
+		int replayed = 0;
+		try (DataInputStream in = new DataInputStream(
+				new BufferedInputStream(Files.newInputStream(walFile), 64 * 1024))) {
+			byte[] magic = new byte[WAL_MAGIC.length];
+			int n = in.read(magic);
+			if (n <= 0) {
+				end[0] = 0;
+				return 0;
+			}
+			if (n < magic.length || !Arrays.equals(magic, WAL_MAGIC)) {
+				LOG.error("State WAL {} has no WAL header; ignoring it", walFile);
+				end[0] = 0;
+				return 0;
+			}
+			byte[] payload = new byte[256];
+			CRC32 sum = new CRC32();
+			while (true) {
+				int length, checksum;
+				try {
+					length = in.readInt();
+					checksum = in.readInt();
+					if (length <= 0 || length > MAX_RECORD)
+						return replayed;
+					if (payload.length < length)
+						payload = new byte[length];
+					in.readFully(payload, 0, length);
+				} catch (EOFException tornTail) {
+					return replayed;
+				}
+				sum.reset();
+				sum.update(payload, 0, length);
+				if ((int) sum.getValue() != checksum)
+					return replayed;
+				DataInputStream rec = new DataInputStream(new ByteArrayInputStream(payload, 0, length));
+				long generation = rec.readLong();
+				String state = rec.readUTF(), software = rec.readUTF(), version = rec.readUTF();
+				if (generation > map.getGeneration()) {
+					map.put(state, software, version, generation);
+					replayed++;
+				}
+				end[0] += RECORD_HEADER + length;
+			}
+		}
+	}
+
+	/** Persist one change (the map's put that created generation). */
+	public void append(long generation, String state, String software, String version) {
+		if (wal == null)
+			return;
+		try {
+			recordBytes.reset();
+			record.writeLong(generation);
+			record.writeUTF(state);
+			record.writeUTF(software);
+			record.writeUTF(version);
+			byte[] payload = recordBytes.toByteArray();
+			crc.reset();
+			crc.update(payload, 0, payload.length);
+			if (writeBuffer.capacity() < RECORD_HEADER + payload.length)
+				writeBuffer = ByteBuffer.allocate(RECORD_HEADER + payload.length);
+			writeBuffer.clear();
+			writeBuffer.putInt(payload.length).putInt((int) crc.getValue()).put(payload);
+			writeBuffer.flip();
+			while (writeBuffer.hasRemaining())
+				wal.write(writeBuffer);
+			recordsWritten++;
+			maybeFsync();
+			if (++recordsSinceSnapshot >= compactEvery)
+				compact();
+		} catch (IOException e) {
+			writeErrors++;
+			LOG.error("State WAL write failed: {}", e.getMessage());
+		}
+	}
+
+	private void maybeFsync() throws IOException {
+		switch (fsyncPolicy) {
+		case EVERY_WRITE:
+			wal.force(false);
+			break;
+		case INTERVAL:
+			long now = System.nanoTime();
+			if (now - lastFsyncNanos >= fsyncIntervalNanos) {
+				wal.force(false);
+				lastFsyncNanos = now;
+			}
+			break;
+		default:
+		}
+	}
+
+	/**
+	 * Write the current map as the snapshot, then empty the WAL. A crash in
+	 * between is harmless: replay skips records the snapshot already has.
+	 */
+	public void compact() throws IOException {
+		if (map == null || wal == null)
+			return;
+		VersionStateMap.Snapshot snapshot = map.snapshot();
+		Path tmp = dir.resolve(SNAPSHOT_FILE + ".tmp");
+		CRC32 sum = new CRC32();
+		try (FileOutputStream file = new FileOutputStream(tmp.toFile())) {
+			DataOutputStream out = new DataOutputStream(
+					new CheckedOutputStream(new BufferedOutputStream(file, 64 * 1024), sum));
+			out.write(SNAPSHOT_MAGIC);
+			out.writeLong(snapshot.getGeneration());
+			out.writeInt(snapshot.size());
+			IOException[] failure = { null };
+			snapshot.forEach((state, software, version) -> {
+				try {
+					out.writeUTF(state);
+					out.writeUTF(software);
+					out.writeUTF(version);
+				} catch (IOException e) {
+					failure[0] = e;
+				}
+			});
+			if (failure[0] != null)
+				throw failure[0];
+			out.flush();
+			// the checksum covers everything above and is not part of itself
+			new DataOutputStream(file).writeInt((int) sum.getValue());
+			file.getFD().sync();
+		}
+		Files.move(tmp, snapshotFile, StandardCopyOption.REPLACE_EXISTING, StandardCopyOption.ATOMIC_MOVE);
+		wal.truncate(WAL_MAGIC.length);
+		wal.position(WAL_MAGIC.length);
+		recordsSinceSnapshot = 0;
+		snapshotsWritten++;
+		LOG.debug("State snapshot written: {} entries at generation {}", snapshot.size(), snapshot.getGeneration());
+	}
+
+	public long getRecordsWritten() {
+		return recordsWritten;
+	}
+
+	public long getSnapshotsWritten() {
+		return snapshotsWritten;
+	}
+
+	public long getWriteErrors() {
+		return writeErrors;
+	}
+
+	/** Compact (so the next start reads one file) and close the WAL. */
+	@Override
+	public void close() throws IOException {
+		if (wal == null)
+			return;
+		try {
+			compact();
+			wal.force(true);
+		} finally {
+			wal.close();
+			wal = null;
+		}
+	}
+}
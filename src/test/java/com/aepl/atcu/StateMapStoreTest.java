@@ -0,0 +1,194 @@
+package com.aepl.atcu;
+
+import java.io.IOException;
+import java.nio.ByteBuffer;
+import java.nio.channels.FileChannel;
+import java.nio.charset.StandardCharsets;
+import java.nio.file.Files;
+import java.nio.file.Path;
+import java.nio.file.StandardCopyOption;
+import java.nio.file.StandardOpenOption;
+import java.util.stream.Stream;
+
+import junit.framework.TestCase;
+
+/**
+ * StateMapStoreTest: restart from snapshot + WAL, and recovery from a WAL
+ * whose tail was torn or corrupted by a crash.
+ */
+public class StateMapStoreTest extends TestCase {
+
+	private Path dir;
+	private Path crashed;
+
+	@Override
+	protected void setUp() throws IOException {
+		dir = Files.createTempDirectory("state-store-test");
+		crashed = Files.createTempDirectory("state-store-crashed");
+	}
+
+	@Override
+	protected void tearDown() throws IOException {
+		for (Path d : new Path[] { dir, crashed }) {
+			try (Stream<Path> files = Files.list(d)) {
+				for (Object f : files.toArray())
+					Files.deleteIfExists((Path) f);
+			}
+			Files.deleteIfExists(d);
+		}
+	}
+
+	private static void put(VersionStateMap map, StateMapStore store, String state, String software,
+			String version) {
+		map.put(state, software, version);
+		store.append(map.getGeneration(), state, software, version);
+	}
+
+	/**
+	 * Write three records to a WAL-only store and copy its files to crashed
+	 * while the WAL is still open, as a crash would leave them. Returns the
+	 * WAL length after each record.
+	 */
+	private long[] writeThreeAndCrash() throws IOException {
+		VersionStateMap map = new VersionStateMap();
+		StateMapStore store = new StateMapStore(dir, 1000, LogFileSink.FsyncPolicy.NONE, 0);
+		store.load(map);
+		Path wal = dir.resolve(StateMapStore.WAL_FILE);
+		long[] lengths = new long[3];
+		put(map, store, "LOGIN", "DEV1", "5.2.7");
+		lengths[0] = Files.size(wal);
+		put(map, store, "LOGIN", "DEV1", "5.2.8");
+		lengths[1] = Files.size(wal);
+		put(map, store, "RUN", "GPS", "1.0.3");
+		lengths[2] = Files.size(wal);
+		Files.copy(wal, crashed.resolve(StateMapStore.WAL_FILE), StandardCopyOption.REPLACE_EXISTING);
+		store.close();
+		return lengths;
+	}
+
+	private VersionStateMap reload(StateMapStore store) throws IOException {
+		VersionStateMap map = new VersionStateMap();
+		store.load(map);
+		return map;
+	}
+
+	public void testRestartRestoresSnapshotAndWal() throws IOException {
+		VersionStateMap map = new VersionStateMap();
+		StateMapStore store = new StateMapStore(dir, 2, LogFileSink.FsyncPolicy.EVERY_WRITE, 0);
+		assertEquals(0, store.load(map));
+		put(map, store, "LOGIN", "DEV1", "5.2.7");
+		put(map, store, "LOGIN", "DEV1", "5.2.8"); // compacts
+		put(map, store, "RUN", "GPS", "1.0.3");
+		assertEquals(1, store.getSnapshotsWritten());
+		Files.copy(dir.resolve(StateMapStore.SNAPSHOT_FILE), crashed.resolve(StateMapStore.SNAPSHOT_FILE));
+		Files.copy(dir.resolve(StateMapStore.WAL_FILE), crashed.resolve(StateMapStore.WAL_FILE));
+		store.close();
+
+		StateMapStore fromCrash = new StateMapStore(crashed);
+		VersionStateMap restored = new VersionStateMap();
+		assertEquals(1, fromCrash.load(restored));
+		assertEquals(map.snapshot().toMap(), restored.snapshot().toMap());
+		assertEquals(map.getGeneration(), restored.getGeneration());
+		fromCrash.close();
+
+		StateMapStore clean = new StateMapStore(dir);
+		restored = new VersionStateMap();
+		assertEquals(0, clean.load(restored));
+		assertEquals(map.snapshot().toMap(), restored.snapshot().toMap());
+		clean.close();
+	}
+
+	public void testTornTailIsCutAtLastGoodRecord() throws IOException {
+		long[] lengths = writeThreeAndCrash();
+		Path wal = crashed.resolve(StateMapStore.WAL_FILE);
+		// every cut inside the third record, header included
+		for (long cut = lengths[1] + 1; cut < lengths[2]; cut++) {
+			Path torn = crashed.resolve("torn");
+			Files.copy(wal, torn, StandardCopyOption.REPLACE_EXISTING);
+			try (FileChannel ch = FileChannel.open(torn, StandardOpenOption.WRITE)) {
+				ch.truncate(cut);
+			}
+			Files.move(torn, dir.resolve(StateMapStore.WAL_FILE), StandardCopyOption.REPLACE_EXISTING);
+			Files.deleteIfExists(dir.resolve(StateMapStore.SNAPSHOT_FILE));
+			StateMapStore store = new StateMapStore(dir, 1000, LogFileSink.FsyncPolicy.NONE, 0);
+			VersionStateMap map = reload(store);
+			assertEquals("cut at " + cut, "5.2.8", map.get("LOGIN", "DEV1"));
+			assertNull("cut at " + cut, map.get("RUN", "GPS"));
+			assertEquals(2, map.getGeneration());
+			assertEquals(lengths[1], Files.size(dir.resolve(StateMapStore.WAL_FILE)));
+			// appends continue right after the last good record
+			put(map, store, "RUN", "GPS", "1.0.4");
+			Files.copy(dir.resolve(StateMapStore.WAL_FILE), crashed.resolve("next"),
+					StandardCopyOption.REPLACE_EXISTING);
+			store.close();
+			Files.move(crashed.resolve("next"), dir.resolve(StateMapStore.WAL_FILE),
+					StandardCopyOption.REPLACE_EXISTING);
+			Files.deleteIfExists(dir.resolve(StateMapStore.SNAPSHOT_FILE));
+			StateMapStore again = new StateMapStore(dir, 1000, LogFileSink.FsyncPolicy.NONE, 0);
+			assertEquals("1.0.4", reload(again).get("RUN", "GPS"));
+			again.close();
+		}
+	}
+
+	public void testCorruptRecordStopsReplay() throws IOException {
+		long[] lengths = writeThreeAndCrash();
+		Path wal = crashed.resolve(StateMapStore.WAL_FILE);
+		// flip a payload byte of the second record: it and everything after is dropped
+		try (FileChannel ch = FileChannel.open(wal, StandardOpenOption.READ, StandardOpenOption.WRITE)) {
+			ByteBuffer b = ByteBuffer.allocate(1);
+			long at = lengths[1] - 2;
+			ch.read(b, at);
+			b.put(0, (byte) (b.get(0) ^ 0x40));
+			b.rewind();
+			ch.write(b, at);
+		}
+		Files.deleteIfExists(dir.resolve(StateMapStore.SNAPSHOT_FILE));
+		Files.copy(wal, dir.resolve(StateMapStore.WAL_FILE), StandardCopyOption.REPLACE_EXISTING);
+		StateMapStore store = new StateMapStore(dir, 1000, LogFileSink.FsyncPolicy.NONE, 0);
+		VersionStateMap map = reload(store);
+		assertEquals("5.2.7", map.get("LOGIN", "DEV1"));
+		assertNull(map.get("RUN", "GPS"));
+		assertEquals(lengths[0], Files.size(dir.resolve(StateMapStore.WAL_FILE)));
+		store.close();
+	}
+
+	public void testGarbageLengthAndForeignFile() throws IOException {
+		long[] lengths = writeThreeAndCrash();
+		Path wal = crashed.resolve(StateMapStore.WAL_FILE);
+		// a zeroed or absurd length after the last record
+		try (FileChannel ch = FileChannel.open(wal, StandardOpenOption.WRITE)) {
+			ch.write(ByteBuffer.wrap(new byte[] { 0x7F, 0, 0, 0, 1, 2, 3, 4, 5 }), lengths[2]);
+		}
+		Files.deleteIfExists(dir.resolve(StateMapStore.SNAPSHOT_FILE));
+		Files.copy(wal, dir.resolve(StateMapStore.WAL_FILE), StandardCopyOption.REPLACE_EXISTING);
+		StateMapStore store = new StateMapStore(dir, 1000, LogFileSink.FsyncPolicy.NONE, 0);
+		assertEquals(3, store.load(new VersionStateMap()));
+		assertEquals(lengths[2], Files.size(dir.resolve(StateMapStore.WAL_FILE)));
+		store.close();
+
+		// not a WAL at all: ignored and replaced by an empty one
+		Files.deleteIfExists(dir.resolve(StateMapStore.SNAPSHOT_FILE));
+		Files.write(dir.resolve(StateMapStore.WAL_FILE), "hello".getBytes(StandardCharsets.US_ASCII));
+		store = new StateMapStore(dir, 1000, LogFileSink.FsyncPolicy.NONE, 0);
+		VersionStateMap map = new VersionStateMap();
+		assertEquals(0, store.load(map));
+		assertEquals(0, map.snapshot().size());
+		put(map, store, "LOGIN", "DEV1", "5.2.9");
+		store.close();
+		store = new StateMapStore(dir);
+		assertEquals("5.2.9", reload(store).get("LOGIN", "DEV1"));
+		store.close();
+	}
+
+	public void testCorruptSnapshotFallsBackToWal() throws IOException {
+		writeThreeAndCrash();
+		Files.write(dir.resolve(StateMapStore.SNAPSHOT_FILE), "ATCUSNP1garbage".getBytes(StandardCharsets.US_ASCII));
+		Files.copy(crashed.resolve(StateMapStore.WAL_FILE), dir.resolve(StateMapStore.WAL_FILE),
+				StandardCopyOption.REPLACE_EXISTING);
+		StateMapStore store = new StateMapStore(dir, 1000, LogFileSink.FsyncPolicy.NONE, 0);
+		VersionStateMap map = reload(store);
+		assertEquals("5.2.8", map.get("LOGIN", "DEV1"));
+		assertEquals("1.0.3", map.get("RUN", "GPS"));
+		store.close();
+	}
+}
@@ -0,0 +1,98 @@
+package com.aepl.atcu;
+
+import java.time.Instant;
+import java.time.LocalDateTime;
+import java.time.ZoneId;
+import java.time.ZoneOffset;
+
+/**
+ * TimestampEncoder: renders epoch nanoseconds as local
+ * yyyy-MM-ddTHH:mm:ss.fffffff (27 chars, 7 fraction digits) without a
+ * formatter, String.format or per-call allocation.
+ *
+ * The date/time prefix is cached per second, so a burst of lines only rewrites
+ * the seven fraction digits. One instance per thread: the output buffer is
+ * reused on every call.
+ */
+public class TimestampEncoder {
+
+	public static final int LENGTH = 27;
+	private static final int PREFIX_LENGTH = 19; // yyyy-MM-ddTHH:mm:ss
+
+	private final ZoneId zone;
+	private final char[] chars = new char[LENGTH];
+	private long cachedSecond = Long.MIN_VALUE;
+
+	public TimestampEncoder() {
+		this(ZoneId.systemDefault());
+	}
+
+	public TimestampEncoder(ZoneId zone) {
+		this.zone = zone;
+		chars[PREFIX_LENGTH] = '.';
+	}
+
+	/**
+	 * Current wall-clock time as nanoseconds since the epoch (resolution is
+	 * whatever the platform clock offers).
+	 */
+	public static long nowEpochNanos() {
+		Instant now = Instant.now();
+		return now.getEpochSecond() * 1_000_000_000L + now.getNano();
+	}
+
+	/**
+	 * Encode into the internal buffer and return it; valid until the next call.
+	 */
+	public char[] encode(long epochNanos) {
+		long second = Math.floorDiv(epochNanos, 1_000_000_000L);
+		int nano = (int) Math.floorMod(epochNanos, 1_000_000_000L);
+		if (second != cachedSecond) {
+			writePrefix(second);
+			cachedSecond = second;
+		}
+		int frac7 = nano / 100;
+		for (int i = LENGTH - 1; i > PREFIX_LENGTH; i--) {
+			chars[i] = (char) ('0' + frac7 % 10);
+			frac7 /= 10;
+		}
+		return chars;
+	}
+
+	/**
+	 * Encode as ASCII bytes into dst at off; returns the number of bytes written.
+	 */
+	public int encode(long epochNanos, byte[] dst, int off) {
+		char[] c = encode(epochNanos);
+		for (int i = 0; i < LENGTH; i++)
+			dst[off + i] = (byte) c[i];
+		return LENGTH;
+	}
+
+	public String format(long epochNanos) {
+		return new String(encode(epochNanos));
+	}
+
+	private void writePrefix(long second) {
+		ZoneOffset offset = zone.getRules().getOffset(Instant.ofEpochSecond(second));
+		LocalDateTime t = LocalDateTime.ofEpochSecond(second, 0, offset);
+		put(0, t.getYear(), 4);
+		chars[4] = '-';
+		put(5, t.getMonthValue(), 2);
+		chars[7] = '-';
+		put(8, t.getDayOfMonth(), 2);
+		chars[10] = 'T';
+		put(11, t.getHour(), 2);
+		chars[13] = ':';
+		put(14, t.getMinute(), 2);
+		chars[16] = ':';
+		put(17, t.getSecond(), 2);
+	}
+
+	private void put(int pos, int value, int width) {
+		for (int i = pos + width - 1; i >= pos; i--) {
+			chars[i] = (char) ('0' + value % 10);
+			value /= 10;
+		}
+	}
+}
@@ -0,0 +1,90 @@
+package com.aepl.atcu;
+
+import java.nio.charset.StandardCharsets;
+import java.time.Instant;
+import java.time.LocalDateTime;
+import java.time.ZoneId;
+import java.time.format.DateTimeFormatter;
+
+import junit.framework.TestCase;
+
+/**
+ * TimestampEncoderTest: output checked against LocalDateTime and
+ * DateTimeFormatter around day, month, year and DST boundaries, on a fresh
+ * encoder and on one whose cached prefix is being reused.
+ */
+public class TimestampEncoderTest extends TestCase {
+
+	private static final DateTimeFormatter REFERENCE = DateTimeFormatter.ofPattern("yyyy-MM-dd'T'HH:mm:ss.SSSSSSS");
+	private static final ZoneId BERLIN = ZoneId.of("Europe/Berlin");
+	private static final ZoneId UTC = ZoneId.of("UTC");
+
+	private static long nanos(String instant) {
+		Instant i = Instant.parse(instant);
+		return i.getEpochSecond() * 1_000_000_000L + i.getNano();
+	}
+
+	private static String reference(long epochNanos, ZoneId zone) {
+		Instant i = Instant.ofEpochSecond(Math.floorDiv(epochNanos, 1_000_000_000L),
+				Math.floorMod(epochNanos, 1_000_000_000L));
+		return LocalDateTime.ofInstant(i, zone).format(REFERENCE);
+	}
+
+	/** Walk [from, from + span) in steps, on a shared encoder and on fresh ones. */
+	private static void assertMatches(ZoneId zone, long from, long span, long step) {
+		TimestampEncoder cached = new TimestampEncoder(zone);
+		for (long t = from; t < from + span; t += step) {
+			String expected = reference(t, zone);
+			String got = cached.format(t);
+			assertEquals(TimestampEncoder.LENGTH, got.length());
+			assertEquals(expected, got);
+			assertEquals(expected, new TimestampEncoder(zone).format(t));
+		}
+	}
+
+	public void testSameSecondReusesPrefix() {
+		TimestampEncoder enc = new TimestampEncoder(UTC);
+		long base = nanos("2026-10-18T13:17:44Z");
+		assertEquals("2026-10-18T13:17:44.0000000", enc.format(base));
+		assertEquals("2026-10-18T13:17:44.0000001", enc.format(base + 100));
+		assertEquals("2026-10-18T13:17:44.0000001", enc.format(base + 199));
+		assertEquals("2026-10-18T13:17:44.9999999", enc.format(base + 999_999_999));
+		assertEquals("2026-10-18T13:17:45.0000000", enc.format(base + 1_000_000_000));
+		// back into the earlier second rewrites the prefix again
+		assertEquals("2026-10-18T13:17:44.5000000", enc.format(base + 500_000_000));
+	}
+
+	public void testDayMonthAndYearBoundaries() {
+		long step = 123_456_789L;
+		assertMatches(UTC, nanos("2026-10-18T23:59:58Z"), 4_000_000_000L, step);
+		assertMatches(UTC, nanos("2026-02-28T23:59:58Z"), 4_000_000_000L, step);
+		assertMatches(UTC, nanos("2028-02-28T23:59:58Z"), 4_000_000_000L, step);
+		assertMatches(UTC, nanos("2026-12-31T23:59:58Z"), 4_000_000_000L, step);
+		assertMatches(BERLIN, nanos("2026-09-30T21:59:58Z"), 4_000_000_000L, step);
+	}
+
+	public void testDstTransitions() {
+		long step = 250_000_001L;
+		// spring forward: 01:59:59 CET is followed by 03:00:00 CEST
+		assertMatches(BERLIN, nanos("2026-03-29T00:59:58Z"), 4_000_000_000L, step);
+		// fall back: 02:59:59 CEST is followed by 02:00:00 CET
+		assertMatches(BERLIN, nanos("2026-10-25T00:59:58Z"), 4_000_000_000L, step);
+		TimestampEncoder enc = new TimestampEncoder(BERLIN);
+		long lastSummer = nanos("2026-10-25T00:59:59.9999999Z");
+		assertEquals("2026-10-25T02:59:59.9999999", enc.format(lastSummer));
+		assertEquals("2026-10-25T02:00:00.0000000", enc.format(lastSummer + 100));
+	}
+
+	public void testBeforeEpoch() {
+		assertMatches(UTC, nanos("1969-12-31T23:59:58Z"), 4_000_000_000L, 333_333_333L);
+	}
+
+	public void testByteEncodingMatchesChars() {
+		TimestampEncoder enc = new TimestampEncoder(BERLIN);
+		long t = nanos("2026-03-29T00:59:59.1234567Z");
+		byte[] dst = new byte[TimestampEncoder.LENGTH + 2];
+		assertEquals(TimestampEncoder.LENGTH, enc.encode(t, dst, 1));
+		assertEquals(reference(t, BERLIN),
+				new String(dst, 1, TimestampEncoder.LENGTH, StandardCharsets.US_ASCII));
+	}
+}
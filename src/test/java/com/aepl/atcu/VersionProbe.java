@@ -0,0 +1,165 @@
+package com.aepl.atcu;
+
+import java.util.Properties;
+import java.util.concurrent.CompletableFuture;
+import java.util.concurrent.CompletionException;
+import java.util.concurrent.ExecutionException;
+import java.util.concurrent.Executors;
+import java.util.concurrent.ScheduledExecutorService;
+import java.util.concurrent.TimeUnit;
+import java.util.concurrent.TimeoutException;
+import java.util.regex.Matcher;
+import java.util.regex.Pattern;
+
+import org.apache.logging.log4j.LogManager;
+import org.apache.logging.log4j.Logger;
+
+/**
+ * VersionProbe: asks the device for its version instead of waiting for it to
+ * volunteer one.
+ *
+ * Sends the version-query command through the SerialCommandChannel and waits
+ * for a reply matching the reply pattern (group 1 = version). Unanswered
+ * queries are repeated with a growing interval (initial, x multiplier, capped
+ * at max) until a reply arrives or the deadline passes, so a device that is
+ * still rebooting is polled often at first and gently later. The reboot
+ * pattern tells the orchestrator when a FOTA reboot has started and probing
+ * makes sense.
+ */
+public class VersionProbe {
+
+	private static final Logger LOG = LogManager.getLogger(VersionProbe.class);
+
+	public static final String DEFAULT_REPLY = "VERSION:\\s*(\\d+(?:\\.\\d+)+)";
+	public static final String DEFAULT_REBOOT = "(?i)\\b(?:reboot\\w*|boot(?:ing|loader)?)\\b";
+
+	// only delays the first query; replies and timeouts come from the channel
+	private static final ScheduledExecutorService TIMER = Executors.newSingleThreadScheduledExecutor(r -> {
+		Thread t = new Thread(r, "version-probe");
+		t.setDaemon(true);
+		return t;
+	});
+
+	private final String command;
+	private final Pattern reply;
+	private final Pattern reboot;
+	private long initialDelayMillis = 1_000;
+	private long intervalMillis = 500;
+	private long maxIntervalMillis = 10_000;
+	private double multiplier = 2;
+
+	public VersionProbe(String command, Pattern reply, Pattern reboot) {
+		this.command = command;
+		this.reply = reply;
+		this.reboot = reboot;
+	}
+
+	/**
+	 * Read probe.command, probe.reply.pattern, probe.reboot.pattern,
+	 * probe.initial.delay.ms, probe.interval.ms, probe.max.interval.ms and
+	 * probe.multiplier. Returns null (passive waiting) without a command.
+	 */
+	public static VersionProbe fromProperties(Properties p) {
+		String command = p.getProperty("probe.command", "").trim();
+		if (command.isEmpty())
+			return null;
+		VersionProbe probe = new VersionProbe(command,
+				Pattern.compile(p.getProperty("probe.reply.pattern", DEFAULT_REPLY)),
+				Pattern.compile(p.getProperty("probe.reboot.pattern", DEFAULT_REBOOT)));
+		probe.setBackoff(Long.parseLong(p.getProperty("probe.initial.delay.ms", "1000").trim()),
+				Long.parseLong(p.getProperty("probe.interval.ms", "500").trim()),
+				Long.parseLong(p.getProperty("probe.max.interval.ms", "10000").trim()),
+				Double.parseDouble(p.getProperty("probe.multiplier", "2").trim()));
+		return probe;
+	}
+
+	/**
+	 * initialDelay: quiet time after a reboot is seen before the first query;
+	 * interval: wait for the first reply, multiplied after each miss up to
+	 * maxInterval.
+	 */
+	public void setBackoff(long initialDelayMillis, long intervalMillis, long maxIntervalMillis, double multiplier) {
+		if (intervalMillis <= 0 || maxIntervalMillis < intervalMillis || multiplier < 1)
+			throw new IllegalArgumentException("bad probe backoff: interval=" + intervalMillis + " max="
+					+ maxIntervalMillis + " multiplier=" + multiplier);
+		this.initialDelayMillis = Math.max(0, initialDelayMillis);
+		this.intervalMillis = intervalMillis;
+		this.maxIntervalMillis = maxIntervalMillis;
+		this.multiplier = multiplier;
+	}
+
+	/** True if the serial line shows the device (re)booting. */
+	public boolean isRebootLine(String payload) {
+		return reboot.matcher(payload).find();
+	}
+
+	/**
+	 * Query until a reply arrives or timeout passes; completes with the reported
+	 * version and the reply line's trace (state "PROBE", software = the
+	 * command), or null at the deadline. Starts after the initial delay if
+	 * afterReboot.
+	 */
+	public CompletableFuture<VersionReport> probe(SerialCommandChannel channel, boolean afterReboot, long timeout,
+			TimeUnit unit) {
+		long deadline = System.nanoTime() + unit.toNanos(timeout);
+		CompletableFuture<VersionReport> result = new CompletableFuture<>();
+		Runnable first = () -> attempt(channel, intervalMillis, 1, deadline, result);
+		if (afterReboot && initialDelayMillis > 0)
+			TIMER.schedule(first, initialDelayMillis, TimeUnit.MILLISECONDS);
+		else
+			first.run();
+		return result;
+	}
+
+	/** Blocking probe; null if the device did not answer in time. */
+	public String probeAndWait(SerialCommandChannel channel, boolean afterReboot, long timeout, TimeUnit unit)
+			throws InterruptedException {
+		VersionReport report = probeReportAndWait(channel, afterReboot, timeout, unit);
+		return report == null ? null : report.getVersion();
+	}
+
+	/** Blocking probe with the reply's trace; null if the device did not answer in time. */
+	public VersionReport probeReportAndWait(SerialCommandChannel channel, boolean afterReboot, long timeout,
+			TimeUnit unit) throws InterruptedException {
+		try {
+			return probe(channel, afterReboot, timeout, unit).get();
+		} catch (ExecutionException e) {
+			LOG.warn("[PROBE] failed: {}", e.getCause().toString());
+			return null;
+		}
+	}
+
+	private void attempt(SerialCommandChannel channel, long waitMillis, int n, long deadline,
+			CompletableFuture<VersionReport> result) {
+		long remaining = TimeUnit.NANOSECONDS.toMillis(deadline - System.nanoTime());
+		if (remaining <= 0 || result.isDone()) {
+			result.complete(null);
+			return;
+		}
+		long wait = Math.min(waitMillis, remaining);
+		LOG.debug("[PROBE] #{} '{}' (waiting {} ms)", n, command, wait);
+		channel.send(command, reply, wait, TimeUnit.MILLISECONDS).whenComplete((line, error) -> {
+			if (error == null) {
+				long matchedNanos = System.nanoTime();
+				Matcher m = reply.matcher(line.getPayload());
+				String version = m.find() && m.groupCount() >= 1 ? m.group(1) : line.getPayload();
+				LOG.info("[PROBE] version {} after {} queries", version, n);
+				result.complete(new VersionReport("PROBE", command, version, line, matchedNanos, 0L));
+			} else if (unwrap(error) instanceof TimeoutException) {
+				long next = Math.min(maxIntervalMillis, (long) (waitMillis * multiplier));
+				attempt(channel, next, n + 1, deadline, result);
+			} else {
+				result.completeExceptionally(unwrap(error));
+			}
+		});
+	}
+
+	private static Throwable unwrap(Throwable t) {
+		return t instanceof CompletionException && t.getCause() != null ? t.getCause() : t;
+	}
+
+	@Override
+	public String toString() {
+		return "'" + command + "' -> /" + reply + "/ every " + intervalMillis + ".." + maxIntervalMillis + " ms";
+	}
+}
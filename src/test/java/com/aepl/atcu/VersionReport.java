@@ -0,0 +1,83 @@
+package com.aepl.atcu;
+
+/**
+ * VersionReport: a version the device reported, with the trace of the serial
+ * line that carried it.
+ *
+ * The line is identified by port and sequence number; the monotonic
+ * ({@link System#nanoTime()}) timestamps mark each hop it took: serial event,
+ * framing, start of parsing, and the state map update (or the reply match,
+ * for a {@link VersionProbe} answer). A timestamp of 0 means the hop did not
+ * happen or is unknown.
+ */
+public final class VersionReport {
+
+	private final String state;
+	private final String software;
+	private final String version;
+	private final String portId;
+	private final long sequence;
+	private final long eventNanos;
+	private final long framedNanos;
+	private final long parsedNanos;
+	private final long storedNanos;
+
+	public VersionReport(String state, String software, String version, SerialLine line, long parsedNanos,
+			long storedNanos) {
+		this.state = state;
+		this.software = software;
+		this.version = version;
+		this.portId = line.getPortId();
+		this.sequence = line.getSequence();
+		this.eventNanos = line.getCaptureNanos();
+		this.framedNanos = line.getFramedNanos();
+		this.parsedNanos = parsedNanos;
+		this.storedNanos = storedNanos;
+	}
+
+	public String getState() {
+		return state;
+	}
+
+	public String getSoftware() {
+		return software;
+	}
+
+	public String getVersion() {
+		return version;
+	}
+
+	public String getPortId() {
+		return portId;
+	}
+
+	/** Sequence number of the line that carried the version. */
+	public long getSequence() {
+		return sequence;
+	}
+
+	/** Serial event (chunk arrival) that completed the line. */
+	public long getEventNanos() {
+		return eventNanos;
+	}
+
+	/** Line framed and published to the ring. */
+	public long getFramedNanos() {
+		return framedNanos;
+	}
+
+	/** Parser (or command responder) picked the line up. */
+	public long getParsedNanos() {
+		return parsedNanos;
+	}
+
+	/** State map updated; 0 for probe replies, which are not stored. */
+	public long getStoredNanos() {
+		return storedNanos;
+	}
+
+	@Override
+	public String toString() {
+		return state + "/" + software + "=" + version + " (" + portId + "#" + sequence + ")";
+	}
+}
@@ -0,0 +1,221 @@
+package com.aepl.atcu;
+
+import java.util.ArrayList;
+import java.util.Collections;
+import java.util.LinkedHashMap;
+import java.util.List;
+import java.util.Map;
+import java.util.concurrent.atomic.AtomicReferenceArray;
+
+/**
+ * VersionStateMap: state -&gt; (software -&gt; version), versioned.
+ *
+ * Every effective put creates a new immutable {@link Snapshot} (sharing all
+ * untouched structure with the previous one, see HashTrie) and bumps the
+ * generation. Readers never lock and never copy: {@link #snapshot()} is one
+ * volatile read and the snapshot stays consistent however the map changes
+ * afterwards. {@link #changesSince(long)} returns just the puts after a
+ * generation the reader has already seen, from a ring of the most recent
+ * changes, so a poller pays for what changed, not for the fleet size.
+ *
+ * Puts that store the version already present change nothing: no new
+ * generation, no change record.
+ */
+public class VersionStateMap {
+
+	/** Changes kept for changesSince(); older generations need a snapshot. */
+	public static final int DEFAULT_HISTORY = 4096;
+
+	/** One effective put. */
+	public static final class Change {
+		private final long generation;
+		private final String state;
+		private final String software;
+		private final String previous;
+		private final String version;
+
+		Change(long generation, String state, String software, String previous, String version) {
+			this.generation = generation;
+			this.state = state;
+			this.software = software;
+			this.previous = previous;
+			this.version = version;
+		}
+
+		/** Generation this change created. */
+		public long getGeneration() {
+			return generation;
+		}
+
+		public String getState() {
+			return state;
+		}
+
+		public String getSoftware() {
+			return software;
+		}
+
+		/** Version before the change, null if there was none. */
+		public String getPrevious() {
+			return previous;
+		}
+
+		public String getVersion() {
+			return version;
+		}
+
+		@Override
+		public String toString() {
+			return "#" + generation + " " + state + "/" + software + ": " + previous + " -> " + version;
+		}
+	}
+
+	/** Receives snapshot entries; all entries of a state come one after another. */
+	public interface EntryVisitor {
+		void visit(String state, String software, String version);
+	}
+
+	/** Immutable view of the map at one generation. */
+	public static final class Snapshot {
+		private final HashTrie<String, HashTrie<String, String>> states;
+		private final long generation;
+		private final int size;
+
+		Snapshot(HashTrie<String, HashTrie<String, String>> states, long generation, int size) {
+			this.states = states;
+			this.generation = generation;
+			this.size = size;
+		}
+
+		public long getGeneration() {
+			return generation;
+		}
+
+		/** Number of (state, software) entries. */
+		public int size() {
+			return size;
+		}
+
+		public String get(String state, String software) {
+			HashTrie<String, String> bySoftware = states.get(state);
+			return bySoftware == null ? null : bySoftware.get(software);
+		}
+
+		/** Visit every entry, grouped by state (no particular order otherwise). */
+		public void forEach(EntryVisitor visitor) {
+			states.forEach((state, bySoftware) -> bySoftware
+					.forEach((software, version) -> visitor.visit(state, software, version)));
+		}
+
+		/** Deep, unmodifiable copy as nested maps (O(size)). */
+		public Map<String, Map<String, String>> toMap() {
+			Map<String, Map<String, String>> out = new LinkedHashMap<>();
+			states.forEach((state, bySoftware) -> {
+				Map<String, String> inner = new LinkedHashMap<>();
+				bySoftware.forEach(inner::put);
+				out.put(state, Collections.unmodifiableMap(inner));
+			});
+			return Collections.unmodifiableMap(out);
+		}
+	}
+
+	private final AtomicReferenceArray<Change> history;
+	private final int historyMask;
+	private volatile Snapshot current = new Snapshot(HashTrie.empty(), 0, 0);
+
+	public VersionStateMap() {
+		this(DEFAULT_HISTORY);
+	}
+
+	/** @param history changes kept for changesSince (rounded up to a power of two) */
+	public VersionStateMap(int history) {
+		int n = Integer.highestOneBit(Math.max(1, history - 1)) << 1;
+		this.history = new AtomicReferenceArray<>(n);
+		this.historyMask = n - 1;
+	}
+
+	/**
+	 * Store version for (state, software); returns the previous version (equal
+	 * to version if nothing changed).
+	 */
+	public synchronized String put(String state, String software, String version) {
+		return put(state, software, version, current.generation + 1);
+	}
+
+	/**
+	 * put() recorded as the given generation (replay of a persisted change);
+	 * generation must be above the current one.
+	 */
+	synchronized String put(String state, String software, String version, long generation) {
+		Snapshot s = current;
+		if (generation <= s.generation)
+			throw new IllegalArgumentException("generation " + generation + " not after " + s.generation);
+		HashTrie<String, String> bySoftware = s.states.get(state);
+		if (bySoftware == null)
+			bySoftware = HashTrie.empty();
+		String previous = bySoftware.get(software);
+		if (version.equals(previous))
+			return previous;
+		HashTrie<String, String> updated = bySoftware.put(software, version);
+		// recorded before the snapshot is published: a reader that sees the
+		// generation also sees its change
+		history.set((int) generation & historyMask, new Change(generation, state, software, previous, version));
+		current = new Snapshot(s.states.put(state, updated), generation,
+				s.size + updated.size() - bySoftware.size());
+		return previous;
+	}
+
+	/**
+	 * Replace everything with persisted entries ({state, software, version}) at
+	 * their generation; the change history starts over.
+	 */
+	synchronized void restore(long generation, List<String[]> entries) {
+		HashTrie<String, HashTrie<String, String>> states = HashTrie.empty();
+		int size = 0;
+		for (String[] e : entries) {
+			HashTrie<String, String> bySoftware = states.get(e[0]);
+			if (bySoftware == null)
+				bySoftware = HashTrie.empty();
+			HashTrie<String, String> updated = bySoftware.put(e[1], e[2]);
+			size += updated.size() - bySoftware.size();
+			states = states.put(e[0], updated);
+		}
+		for (int i = 0; i < history.length(); i++)
+			history.set(i, null);
+		current = new Snapshot(states, generation, size);
+	}
+
+	public String get(String state, String software) {
+		return current.get(state, software);
+	}
+
+	/** The current snapshot (O(1), immutable). */
+	public Snapshot snapshot() {
+		return current;
+	}
+
+	public long getGeneration() {
+		return current.generation;
+	}
+
+	/**
+	 * Changes after generation, oldest first (empty if none); null if some are
+	 * no longer kept, then take a snapshot() instead.
+	 */
+	public List<Change> changesSince(long generation) {
+		long head = current.generation;
+		if (generation >= head)
+			return Collections.emptyList();
+		if (generation < 0 || head - generation > historyMask + 1)
+			return null;
+		List<Change> out = new ArrayList<>((int) (head - generation));
+		for (long g = generation + 1; g <= head; g++) {
+			Change c = history.get((int) g & historyMask);
+			// overwritten by a newer change while we read
+			if (c == null || c.generation != g)
+				return null;
+			out.add(c);
+		}
+		return out;
+	}
+}